@@ -6,6 +6,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.POST;
 import javax.ws.rs.Consumes;
 import com.sun.jersey.multipart.FormDataParam;
@@ -13,12 +14,14 @@ import com.sun.jersey.core.header.FormDataContentDisposition;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.Arrays;
 
 /**
  *
@@ -31,6 +34,7 @@ public class RESTServer {
     private static final String FILES_FOLDER = "webapps/myapp/files/";
     private static final String HTML_FOLDER = "webapps/myapp/";
     private static final String RMI_MANAGEMENT_SERVER_URL = "rmi://localhost:1099/RESTManagement";
+    private static final int CHUNK_SIZE = 1024 * 1024;     //In bytes. Most data sent to or read from the management server in one call.
 
     @GET
     @Path("/{param}")
@@ -115,9 +119,15 @@ public class RESTServer {
     @Produces(MediaType.TEXT_HTML)
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     public Response putTask(@FormDataParam("name") String fileName, @FormDataParam("content") InputStream contentStream, @FormDataParam("workType") String type) throws IOException, NotBoundException {
-        byte contentBytes[] = inputStreamToByteArray(contentStream);
         RESTInterface server = this.getRESTServer();
-        server.putTask(fileName, contentBytes, type);
+        long uploadId = server.openTask(fileName, type);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = readChunk(contentStream, buffer)) > 0) { //Send the file on a chunk at a time, so it is never held whole.
+            server.appendTask(uploadId, read == buffer.length ? buffer : Arrays.copyOf(buffer, read));
+        }
+        contentStream.close();
+        server.commitTask(uploadId);
 
         return Response.status(Response.Status.OK).entity(new File(HTML_FOLDER + "formOk.html")).build();
     }
@@ -127,16 +137,53 @@ public class RESTServer {
      *
      * @param fileName The name of the results file to find.
      * @param taskType The type of task that was carried out.
-     * @return The XML document as a Response object.
+     * @return The XML document as a Response object, or 404 if there are no results.
      */
     @GET
     @Path("/Results/{taskType}/{fileName}")
     @Produces(MediaType.TEXT_XML)
     public Response results(@PathParam("fileName") String fileName, @PathParam("taskType") String taskType) throws NotBoundException, MalformedURLException, RemoteException {
-        byte[] results = this.getRESTServer().getResults(fileName, taskType);
+        final RESTInterface server = this.getRESTServer();
+        final String resultsKey = server.resolveResults(fileName, taskType); //Found once, so every chunk is of the same results.
+        final byte[] first = resultsKey == null ? null : server.getResultsRange(resultsKey, 0, CHUNK_SIZE);
+        if (first == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        StreamingOutput results = new StreamingOutput() { //Read the results a chunk at a time as they are written out.
+            @Override
+            public void write(OutputStream out) throws IOException {
+                byte[] chunk = first;
+                out.write(chunk);
+                long offset = chunk.length;
+                while (chunk.length == CHUNK_SIZE) {
+                    chunk = server.getResultsRange(resultsKey, offset, CHUNK_SIZE);
+                    if (chunk == null) { //Removed part way, so what was written is not the whole results.
+                        throw new IOException("Results of " + fileName + " went away after " + offset + " bytes were read.");
+                    }
+                    out.write(chunk);
+                    offset += chunk.length;
+                }
+            }
+        };
         return Response.status(Response.Status.OK).entity(results).build();
     }
 
+    /**
+     * Fills the buffer from the stream, unless the stream ends first.
+     *
+     * @param in The stream to read.
+     * @param buffer The buffer to fill.
+     * @return The amount of bytes read.
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) > -1) {
+            total += read;
+        }
+        return total;
+    }
+
     /**
      * Lists all the ongoing and finished tasks within the system.
      *
@@ -0,0 +1,86 @@
+package chorddht;
+
+import java.rmi.RemoteException;
+
+/**
+ * Controls when a node accepts store requests. Requests arriving while the
+ * node is joining a ring are parked until the node is ready, rather than
+ * spinning, and requests arriving while it is leaving are turned away so they
+ * can be redirected.
+ *
+ * @author Dominic
+ */
+class AdmissionGate {
+
+    static final int ADMISSION_TIMEOUT = Integer.getInteger("chorddht.admissionTimeout", 10000); //In milliseconds. Time a request is parked for before it is refused.
+
+    /**
+     * The states a node moves through in relation to its ring.
+     */
+    enum State {
+        JOINING, READY, LEAVING
+    }
+
+    private State state = State.READY;     //The current state of the node. Guarded by this gate.
+
+    /**
+     * Closes the gate while the node joins a ring.
+     */
+    synchronized void joining() {
+        this.state = State.JOINING;
+    }
+
+    /**
+     * Opens the gate, waking all parked requests. Has no effect once the node
+     * is leaving.
+     */
+    synchronized void ready() {
+        if (this.state == State.JOINING) {
+            this.state = State.READY;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the gate for good as the node leaves its ring, waking all parked
+     * requests so they can be redirected.
+     */
+    synchronized void leaving() {
+        this.state = State.LEAVING;
+        this.notifyAll();
+    }
+
+    /**
+     * Checks if the gate is open without waiting.
+     *
+     * @return A boolean representing if the node accepts requests.
+     */
+    synchronized boolean isReady() {
+        return this.state == State.READY;
+    }
+
+    /**
+     * Parks the calling thread until the node is ready, or it starts leaving.
+     *
+     * @return true if the node is ready, false if it is leaving and the
+     * request should be sent elsewhere.
+     * @throws RemoteException If the node is still joining after
+     * ADMISSION_TIMEOUT.
+     */
+    synchronized boolean await() throws RemoteException {
+        long deadline = System.currentTimeMillis() + ADMISSION_TIMEOUT;
+        while (this.state == State.JOINING) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new RemoteException("Node did not become ready within " + ADMISSION_TIMEOUT + "ms.");
+            }
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for node to become ready.");
+            }
+        }
+        return this.state == State.READY;
+    }
+}
@@ -0,0 +1,185 @@
+package chorddht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Makes DHT requests without blocking the caller. Each request runs on a
+ * bounded pool of threads and its result is given as a CompletableFuture,
+ * which fails with a TimeoutException if the request takes longer than its
+ * deadline. When the pool and its queue are full the caller runs the request
+ * itself, so a burst of requests slows its sender rather than piling up.
+ *
+ * @author Dominic
+ */
+class AsyncChordClient {
+
+    static final int THREADS = Integer.getInteger("chorddht.asyncThreads", 64);             //Most requests running at once.
+    static final int QUEUE_SIZE = THREADS * 16;                                              //Requests that may wait for a thread.
+    static final int DEFAULT_TIMEOUT = Integer.getInteger("chorddht.asyncTimeout", 10000);  //In milliseconds. Deadline of requests not given one.
+
+    private RoutingCache routes;                //Routes requests to owners.
+    private ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable, "async-client");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * Creates a client making requests through the given routing cache.
+     *
+     * @param routes The cache used to find owners of keys.
+     */
+    AsyncChordClient(RoutingCache routes) {
+        this.routes = routes;
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    CompletableFuture<byte[]> getAsync(String key) {
+        return this.getAsync(key, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Gets a value.
+     *
+     * @param key The key of the value.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return The value, or null if it is not stored.
+     */
+    CompletableFuture<byte[]> getAsync(String key, long timeout) {
+        return this.submit(() -> this.routes.get(key), timeout);
+    }
+
+    CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return this.putAsync(key, value, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param key The key of the value.
+     * @param value The value to store.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return Completes once the value is stored.
+     */
+    CompletableFuture<Void> putAsync(String key, byte[] value, long timeout) {
+        return this.submit(() -> {
+            this.routes.put(key, value);
+            return null;
+        }, timeout);
+    }
+
+    CompletableFuture<IChordNode> findSuccessorAsync(long hashKey) {
+        return this.findSuccessorAsync(hashKey, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Finds the node responsible for a key.
+     *
+     * @param hashKey The key to find the owner of.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return The node responsible for the key.
+     */
+    CompletableFuture<IChordNode> findSuccessorAsync(long hashKey, long timeout) {
+        return this.submit(() -> this.routes.findSuccessor(hashKey), timeout);
+    }
+
+    /**
+     * Gets many values, asking every owner at once rather than one after
+     * another.
+     *
+     * @param keys The keys of the values.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return The values found, and why any keys could not be read.
+     */
+    CompletableFuture<BatchResult> multiGetAsync(Collection<String> keys, long timeout) {
+        return this.batchAsync(keys, timeout, this.routes::getFrom);
+    }
+
+    /**
+     * Checks which of many keys are held, asking every owner at once, without
+     * fetching the values.
+     *
+     * @param keys The keys to check.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return An empty value for each key held, null for each key not held,
+     * and why any keys could not be checked.
+     */
+    CompletableFuture<BatchResult> multiHoldsAsync(Collection<String> keys, long timeout) {
+        return this.batchAsync(keys, timeout, this.routes::holdsFrom);
+    }
+
+    /**
+     * Splits keys by owner and runs a batch request on each owner at once.
+     *
+     * @param keys The keys of the request.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @param request The request made of each owner.
+     * @return The outcomes of every owner, together.
+     */
+    private CompletableFuture<BatchResult> batchAsync(Collection<String> keys, long timeout, OwnerRequest request) {
+        return this.submit(() -> this.routes.groupByOwner(keys), timeout).thenCompose(groups -> {
+            ArrayList<CompletableFuture<BatchResult>> parts = new ArrayList<>();
+            for (Entry<Finger, ArrayList<String>> group : groups.entrySet()) {
+                parts.add(this.submit(() -> request.run(group.getKey(), group.getValue()), timeout));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                BatchResult result = new BatchResult();
+                for (CompletableFuture<BatchResult> part : parts) {
+                    result.addAll(part.join());
+                }
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Runs a request on the pool, interrupting it if its deadline passes.
+     *
+     * @param request The request to run.
+     * @param timeout In milliseconds. Time after which the request fails.
+     * @return The result of the request.
+     */
+    private <T> CompletableFuture<T> submit(Request<T> request, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = this.executor.submit(() -> {
+            try {
+                result.complete(request.run());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+            if (error instanceof TimeoutException) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A blocking DHT request.
+     */
+    @FunctionalInterface
+    private interface Request<T> {
+
+        T run() throws Exception;
+    }
+
+    /**
+     * A batch request of the keys one owner is believed to hold.
+     */
+    @FunctionalInterface
+    private interface OwnerRequest {
+
+        BatchResult run(Finger owner, Collection<String> keys) throws Exception;
+    }
+}
@@ -0,0 +1,82 @@
+package chorddht;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The per key outcome of a batched get or put. Keys that succeeded are held
+ * with their value, keys that failed are held with the reason they failed.
+ *
+ * @author Dominic
+ */
+public class BatchResult implements Serializable {
+
+    private HashMap<String, byte[]> values = new HashMap<>();     //Keys that succeeded, with their value. Null values are keys not found.
+    private HashMap<String, String> errors = new HashMap<>();     //Keys that failed, with the reason.
+
+    /**
+     * Records a key that succeeded.
+     *
+     * @param key The key.
+     * @param value The value of the key, or null if it was not found.
+     */
+    void succeeded(String key, byte[] value) {
+        this.values.put(key, value);
+        this.errors.remove(key);
+    }
+
+    /**
+     * Records a key that failed.
+     *
+     * @param key The key.
+     * @param reason The reason the key failed.
+     */
+    void failed(String key, String reason) {
+        this.errors.put(key, reason);
+        this.values.remove(key);
+    }
+
+    /**
+     * Adds the outcomes of another batch to this one.
+     *
+     * @param other The batch to add.
+     */
+    void addAll(BatchResult other) {
+        for (Entry<String, byte[]> value : other.values.entrySet()) {
+            this.succeeded(value.getKey(), value.getValue());
+        }
+        for (Entry<String, String> error : other.errors.entrySet()) {
+            this.failed(error.getKey(), error.getValue());
+        }
+    }
+
+    /**
+     * Gets the keys that succeeded, with their values.
+     *
+     * @return The values of the keys that succeeded. Keys not found map to null.
+     */
+    public Map<String, byte[]> getValues() {
+        return values;
+    }
+
+    /**
+     * Gets the keys that failed, with the reason they failed.
+     *
+     * @return The reason each failed key failed.
+     */
+    public Map<String, String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Checks if the given key succeeded.
+     *
+     * @param key The key to check.
+     * @return A boolean representing if the key succeeded.
+     */
+    public boolean succeeded(String key) {
+        return this.values.containsKey(key);
+    }
+}
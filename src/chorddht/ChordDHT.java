@@ -72,11 +72,11 @@ public class ChordDHT {
 //        command = inputString.substring(0, pos);
 //        parameters = inputString.substring(pos).trim();
         
-        HashMap<Integer,ArrayList<String>> map = new HashMap<>();
+        HashMap<Long,ArrayList<String>> map = new HashMap<>();
 
         for(int i=0;i<255;i++){
             for(int j=0;j<255;j++){
-                int hash = Utility.hash("" + (char)i + (char)j);
+                long hash = Utility.hash("" + (char)i + (char)j);
                 if(map.containsKey(hash)){
                     map.get(hash).add("" + (char)i + (char)j);
                 } else {
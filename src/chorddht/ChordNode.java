@@ -1,13 +1,29 @@
 package chorddht;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
-import java.util.SortedMap;
+import java.util.Random;
 import java.util.TreeMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A node to operate in a DHT peer to peer networking running the Chord
@@ -17,9 +33,20 @@ import java.util.logging.Logger;
  */
 class ChordNode implements Runnable, IChordNode {
 
-    static final int KEY_BITS = 8;              //Amount of bits to use for generation of the hash key. Also determines size of routing table.
-    static final int STABLE_DELAY = 2000;       //Delay to wait until a new joined node begins taking put and get requests.
-    static final int SUCESSOR_LIST_SIZE = 2;    //The number of successors the successor list will contain.
+    static final int KEY_BITS = Math.max(1, Math.min(64, Integer.getInteger("chorddht.keyBits", 64))); //Amount of bits to use for generation of the hash key, at most 64. Also determines size of routing table.
+    static final long KEY_MASK = KEY_BITS == 64 ? -1L : (1L << KEY_BITS) - 1; //Mask that wraps a value onto the identifier ring.
+    static final int SUCESSOR_LIST_SIZE = Math.max(2, Replicator.REPLICATION_FACTOR - 1); //The number of successors the successor list will contain. Enough to hold every replica.
+    static final int MAX_LOOKUP_HOPS = 2 * KEY_BITS;    //Most hops a lookup may take before it is abandoned.
+    static final int LOOKUP_TIMEOUT = 5000;             //In milliseconds. Time an iterative lookup may take before it is abandoned.
+    static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("chorddht.virtualNodes", 1)); //Amount of ids, and so ring positions, each process holds.
+    static final int MAX_RING_WALK = 100000;            //Most nodes visited when walking the whole ring.
+    static final int REPLICA_REFRESH_ROUNDS = 10;       //Maintenance rounds between comparing owned data with the current replicas.
+    static final int TREE_EXPIRY = 2000;                //In milliseconds. Time a hash tree over replicas is reused for.
+    static final boolean PROXIMITY_ROUTING = Boolean.parseBoolean(System.getProperty("chorddht.proximityRouting", "true")); //If fingers are picked by round trip time from the nodes that could fill them.
+    static final int PROXIMITY_CANDIDATES = Integer.getInteger("chorddht.proximityCandidates", 4); //Most nodes compared for each finger.
+    static final int KEY_FILTER_ROUNDS = 10;            //Maintenance rounds between rebuilds of a key filter that holds keys handed away.
+    static final int WRITE_EXPIRY = 5 * 60 * 1000;      //In milliseconds. Time a chunked write may go without a chunk before it is dropped.
+    static final String COUNT_SUFFIX = "\0count";       //Added to the key of a value to name the count of references to it, held in the same store.
     private String name;                        //The name of the node that a key is generated in the hashing function.
 
     private volatile Finger predecessor;        //This node with next least value in the ring, in relation to this node.
@@ -29,11 +56,29 @@ class ChordNode implements Runnable, IChordNode {
     private int nextFix;                        //Determines the next routing table entry to check the correctness of.
     private int nextSuccessCheck;               //Determines the next successor list entry to check the correctness of.
 
-    private TreeMap<Integer, Store> dataStore = new TreeMap<>();    //Stores all DHT byte array data, in an ordered fashion.
-    private int key;                                                //The hashed key of this node.
+    private StorageEngine dataStore;                                //Stores all DHT byte array data, in ring order.
+    private StorageEngine replicaStore;                             //Copies of data owned by the nodes preceding this one.
+    private long key;                                               //The hashed key of this node.
     private Finger[] successorList;                                 //Holds list of r next successors.
 
-    volatile boolean stable = true;                                 //Represents if the node is in a stable state to accept requests for get and put.
+    private AdmissionGate admissionGate = new AdmissionGate();      //Parks store requests until this node is in a stable state to accept them.
+    private FailureDetector failureDetector = new FailureDetector(this); //Cached liveness of the nodes this node routes through.
+    private volatile LookupMode lookupMode = LookupMode.stringToMode(System.getProperty("chorddht.lookupMode")); //How this node resolves successors.
+    private ChordNode host = this;                                  //The node of this process that owns the data store. Itself unless a virtual node.
+    private ArrayList<ChordNode> virtualNodes = new ArrayList<>();  //The extra ring positions this process holds, sharing this nodes data store.
+    private Replicator replicator = new Replicator();               //Sends copies of owned data to, and reads from, replicas.
+    private ValueCache valueCache = new ValueCache();               //Copies of values read from other nodes, shared by this process.
+    private volatile KeyFilter keyFilter = new KeyFilter(KeyFilter.MIN_KEYS); //Filter over the keys of both stores, kept by the host.
+    private volatile KeyFilter nextKeyFilter;                       //Filter being built to replace keyFilter, if any.
+    private volatile boolean keyFilterStale;                        //If keys have been handed away since keyFilter was built.
+    private int keyFilterRound;                                     //Maintenance rounds since keyFilter was last checked for rebuilding.
+    private Object[] countLocks = newCountLocks();                  //Held while a counter or replaced value in each stripe of the ring is changed, shared by this process.
+    private NioServer transportServer;                              //Serves the binary transport for this process, if it is in use.
+    private int replicaRound;                                       //Maintenance rounds since owned data was last compared with replicas.
+    private boolean startedEmpty;                                   //If this process started without data and has not yet repaired every replica since, kept by the host.
+    private ConcurrentHashMap<Long, MerkleTree> replicaTrees = new ConcurrentHashMap<>(); //Hash trees over copies held for preceding nodes, by the key of their owner.
+    private ConcurrentHashMap<Long, PendingWrite> pendingWrites = new ConcurrentHashMap<>(); //Chunked writes in progress, by id.
+    private AtomicLong nextWriteId = new AtomicLong(new Random().nextLong()); //Id given to the next chunked write.
 
     /**
      * Creates a Chord node given a string to form a key from.
@@ -42,9 +87,39 @@ class ChordNode implements Runnable, IChordNode {
      * from.
      */
     public ChordNode(String myKeyString) {
+        this(myKeyString, null);
+        for (int i = 1; i < VIRTUAL_NODES; i++) {
+            this.virtualNodes.add(new ChordNode(myKeyString + "#" + i, this));
+        }
+    }
+
+    /**
+     * Creates a Chord node given a string to form a key from. If a host is
+     * given, the node is a virtual node of the host and shares its data store
+     * and failure detector.
+     *
+     * @param myKeyString The name of the node, that a key will be generated
+     * from.
+     * @param host The node of this process the virtual node belongs to, or
+     * null if this is the host itself.
+     */
+    private ChordNode(String myKeyString, ChordNode host) {
+        if (host != null) {
+            this.host = host;
+            this.dataStore = host.dataStore;
+            this.replicaStore = host.replicaStore;
+            this.replicator = host.replicator;
+            this.valueCache = host.valueCache;
+            this.countLocks = host.countLocks;
+            this.failureDetector = host.failureDetector;
+        } else {
+            this.dataStore = StorageEngine.create(myKeyString);
+            this.replicaStore = StorageEngine.create(myKeyString + "-replicas");
+            this.startedEmpty = this.dataStore.keys().isEmpty(); //Either new, or restarted without a data log, so replicas may hold what it lost.
+        }
         this.name = myKeyString;
         this.key = Utility.hash(myKeyString);
-        log("Key assigned is: " + key);
+        log("Key assigned is: " + Long.toUnsignedString(key));
         this.nextFix = -1;
         this.nextSuccessCheck = SUCESSOR_LIST_SIZE;
         this.successorList = new Finger[SUCESSOR_LIST_SIZE];
@@ -58,68 +133,944 @@ class ChordNode implements Runnable, IChordNode {
 
         this.routingTable[0] = new Finger(this);
 
-        //Start up the periodic maintenance thread
+        //Start up the periodic maintenance and heartbeat threads
         new Thread(this, myKeyString).start();
+        if (this.host == this) {
+            this.failureDetector.start(myKeyString);
+            if (Transport.isNio()) {
+                try {
+                    this.transportServer = new NioServer(this);
+                } catch (IOException ex) {
+                    log("Could not start the binary transport, serving RMI only.");
+                }
+            }
+        }
     }
 
     /**
      * Adds the key, value pair to the corresponding responsible node that has
-     * the duty of storing data for that particular key.
+     * the duty of storing data for that particular key. The value is encoded
+     * with the default codec here, and travels and is stored encoded.
      *
      * @param key The key of the data to store.
      * @param value The value, or bytes of the data to store.
      */
     @Override
     public IChordNode put(String key, byte[] value) throws RemoteException {
-        while (this.stable == false); //Wait until stabilized to conduct store requests.
-        int hashKey = Utility.hash(key); //First see if key is in our range that we're responsible for
-        if (this.isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key)) { //If so, add to our store.
-            synchronized (this.dataStore) {
-                if(Objects.isNull(this.dataStore.get(hashKey))){ //If null, make store and add initial entry.
-                    this.dataStore.put(hashKey, new Store(hashKey,key, value));
-                } else { //If not null, add to existing store.
-                    this.dataStore.get(hashKey).put(key, value);
-                }
-            }
-            log("Placed in data with key: " + hashKey);
+        return this.put(key, ValueCodec.encode(value), 0);
+    }
+
+    /**
+     * Stores a value on the node responsible for its key. While the ring is
+     * settling nodes may disagree on who that is, so after MAX_LOOKUP_HOPS
+     * forwards the value is kept where it is, to be moved on by a later
+     * checkDataMoveDown().
+     *
+     * @param key The key of the data to store.
+     * @param value The value, encoded by ValueCodec.
+     * @param hops The amount of times the value has been forwarded.
+     * @return The node that kept the value.
+     */
+    @Override
+    public IChordNode put(String key, byte[] value, int hops) throws RemoteException {
+        if (!this.admissionGate.await()) { //Wait until stabilized to conduct store requests. If leaving, our successor takes them.
+            return this.getImmediateSuccessor().getNode().put(key, value, hops + 1);
+        }
+        this.valueCache.invalidate(key);
+        long hashKey = Utility.hash(key); //First see if key is in our range that we're responsible for
+        if (hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key)) { //If so, add to our store.
+            this.writeOwned(this.getReplicaTargets(), key, hashKey, value);
             return this;
         } else { //If not find the node which is responsible and put it there.
             IChordNode responsibleNode = this.findSuccessor(hashKey);
-            return responsibleNode.put(key, value);
+            return responsibleNode.put(key, value, hops + 1);
+        }
+    }
+
+    /**
+     * Stores a value this node is responsible for on its replicas, then here
+     * once the write quorum is met. A write that misses the quorum is not
+     * kept here, and the replicas that took it are given back the value held
+     * here, so a failed put leaves the value as it was.
+     *
+     * @param replicas The nodes to store a copy on.
+     * @param key The key of the data to store.
+     * @param hashKey The hash of the key.
+     * @param value The value, or bytes of the data to store.
+     */
+    private void writeOwned(List<Finger> replicas, String key, long hashKey, byte[] value) throws RemoteException {
+        try {
+            this.replicator.write(replicas, key, hashKey, value);
+        } catch (RemoteException ex) {
+            this.restoreReplicas(replicas, key, hashKey);
+            throw ex;
         }
+        this.storeOwned(key, hashKey, value);
     }
 
+    /**
+     * Gives the replicas back the value this node holds, or removes their
+     * copy if it holds none, after a write that missed its quorum. Replicas
+     * that cannot be reached are corrected by the next replica sync.
+     *
+     * @param replicas The nodes the write was sent to.
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     */
+    private void restoreReplicas(List<Finger> replicas, String key, long hashKey) {
+        byte[] held = this.dataStore.get(hashKey, key);
+        for (Finger replica : replicas) {
+            try {
+                if (held == null) {
+                    replica.getNode().removeReplica(key, hashKey);
+                } else {
+                    replica.getNode().putReplica(key, hashKey, held);
+                }
+            } catch (RemoteException e) {
+                this.failureDetector.suspect(replica);
+                log("Failed to restore copy of " + key + " on " + Long.toUnsignedString(replica.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Adds a value this node is responsible for to the data store.
+     *
+     * @param key The key of the data to store.
+     * @param hashKey The hash of the key.
+     * @param value The value, or bytes of the data to store.
+     */
+    private void storeOwned(String key, long hashKey, byte[] value) {
+        this.valueCache.invalidate(key);
+        this.dataStore.put(hashKey, key, value);
+        this.addToKeyFilter(hashKey);
+        log("Placed in data with key: " + Long.toUnsignedString(hashKey));
+    }
+
+    /**
+     * Puts many key, value pairs into the ring. Owners are resolved once for
+     * each run of keys they are responsible for, and each owner is sent its
+     * keys in a single call.
+     *
+     * @param values The keys and values to store.
+     * @return The outcome of each key.
+     */
     @Override
-    public IChordNode move(int key, Store store) throws RemoteException {
-        while (this.stable == false); //Wait until stabilized to conduct store requests.
-        if (this.isInHalfOpenRangeR(key, this.predecessor.getKey(), this.key)) { //If so, add to our store.
-            synchronized (this.dataStore) {
-                this.dataStore.put(key, store);
+    public BatchResult multiPut(Map<String, byte[]> values) throws RemoteException {
+        BatchResult result = new BatchResult();
+        HashMap<String, byte[]> encoded = new HashMap<>();
+        for (Entry<String, byte[]> value : values.entrySet()) {
+            this.valueCache.invalidate(value.getKey());
+            encoded.put(value.getKey(), ValueCodec.encode(value.getValue()));
+        }
+        for (Entry<Finger, ArrayList<String>> group : this.groupByOwner(values.keySet(), result).entrySet()) {
+            HashMap<String, byte[]> owned = new HashMap<>();
+            for (String key : group.getValue()) {
+                owned.put(key, encoded.get(key));
+            }
+            try {
+                result.addAll(ValueCodec.decode(group.getKey().getNode().putOwned(owned)));
+            } catch (RemoteException e) {
+                this.failureDetector.suspect(group.getKey());
+                for (String key : owned.keySet()) {
+                    result.failed(key, "Owner unreachable: " + e.getMessage());
+                }
             }
-            log("Placed in data with key: " + key);
+        }
+        for (String key : new ArrayList<>(result.getErrors().keySet())) { //Owners may have changed since they were resolved, so route what is left one by one.
+            try {
+                this.put(key, encoded.get(key), 0);
+                result.succeeded(key, values.get(key));
+            } catch (RemoteException e) {
+                result.failed(key, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets many keys from the ring. Owners are resolved once for each run of
+     * keys they are responsible for, and each owner is asked for its keys in a
+     * single call.
+     *
+     * @param keys The keys to get.
+     * @return The outcome of each key. Keys not found have a null value.
+     */
+    @Override
+    public BatchResult multiGet(Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        for (Entry<Finger, ArrayList<String>> group : this.groupByOwner(keys, result).entrySet()) {
+            try {
+                result.addAll(ValueCodec.decode(group.getKey().getNode().getStoreBytesBatch(group.getValue())));
+            } catch (RemoteException e) {
+                this.failureDetector.suspect(group.getKey());
+                for (String key : group.getValue()) {
+                    result.failed(key, "Owner unreachable: " + e.getMessage());
+                }
+            }
+        }
+        for (String key : new ArrayList<>(result.getErrors().keySet())) { //Fall back to a routed get, which can also answer from replicas.
+            try {
+                result.succeeded(key, this.get(key));
+            } catch (RemoteException e) {
+                result.failed(key, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups keys by the node responsible for them. Keys are taken in ring
+     * order, so once the owner of a key is found every following key up to
+     * the owner needs no lookup of its own.
+     *
+     * @param keys The keys to group.
+     * @param result Where keys whose owner could not be found are recorded.
+     * @return The keys each owner is responsible for.
+     */
+    private LinkedHashMap<Finger, ArrayList<String>> groupByOwner(Collection<String> keys, BatchResult result) {
+        ArrayList<String> sorted = new ArrayList<>(keys);
+        HashMap<String, Long> hashes = new HashMap<>();
+        for (String key : sorted) {
+            hashes.put(key, Utility.hash(key));
+        }
+        sorted.sort((a, b) -> Long.compareUnsigned(hashes.get(a), hashes.get(b)));
+        LinkedHashMap<Finger, ArrayList<String>> groups = new LinkedHashMap<>();
+        Finger owner = null;
+        long rangeStart = 0;    //Exclusive start of the keys known to belong to the owner.
+        for (String key : sorted) {
+            long hashKey = hashes.get(key);
+            if (owner == null || !isInHalfOpenRangeR(hashKey, rangeStart, owner.getKey())) {
+                try {
+                    owner = new Finger(this.findSuccessor(hashKey));
+                    rangeStart = (hashKey - 1) & KEY_MASK;
+                    groups.put(owner, new ArrayList<>());
+                } catch (RemoteException e) {
+                    owner = null;
+                    result.failed(key, "Owner lookup failed: " + e.getMessage());
+                    continue;
+                }
+            }
+            groups.get(owner).add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Stores the given values if this node is responsible for them. They are
+     * sent to the replicas in one call each, and kept here once the write
+     * quorum is met. Keys outside this nodes range, and every key of a batch
+     * that misses the quorum, are refused, so the caller can route them.
+     *
+     * @param values The keys and values to store.
+     * @return The outcome of each key.
+     */
+    @Override
+    public BatchResult putOwned(Map<String, byte[]> values) throws RemoteException {
+        BatchResult result = new BatchResult();
+        if (!this.admissionGate.await()) {
+            for (String key : values.keySet()) {
+                result.failed(key, "Node is leaving the ring.");
+            }
+            return result;
+        }
+        HashMap<String, byte[]> owned = new HashMap<>();
+        for (Entry<String, byte[]> value : values.entrySet()) {
+            if (isInHalfOpenRangeR(Utility.hash(value.getKey()), this.predecessor.getKey(), this.key)) {
+                owned.put(value.getKey(), value.getValue());
+            } else {
+                result.failed(value.getKey(), "Not responsible for key.");
+            }
+        }
+        if (owned.isEmpty()) {
+            return result;
+        }
+        List<Finger> replicas = this.getReplicaTargets();
+        try {
+            this.replicator.writeBatch(replicas, owned);
+        } catch (RemoteException e) { //As in writeOwned(), nothing of a batch that missed its quorum is kept.
+            for (String key : owned.keySet()) {
+                this.restoreReplicas(replicas, key, Utility.hash(key));
+                result.failed(key, e.getMessage());
+            }
+            return result;
+        }
+        for (Entry<String, byte[]> value : owned.entrySet()) {
+            this.storeOwned(value.getKey(), Utility.hash(value.getKey()), value.getValue());
+            result.succeeded(value.getKey(), value.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Gets the given keys from this nodes stores only.
+     *
+     * @param keys The keys to get.
+     * @return The value of each key, null for keys not held by this node.
+     */
+    @Override
+    public BatchResult getStoreBytesBatch(Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        for (String key : keys) {
+            result.succeeded(key, this.getStoreBytes(key, Utility.hash(key)));
+        }
+        return result;
+    }
+
+    /**
+     * Gets a value this process is responsible for, for clients that have
+     * routed to this node themselves.
+     *
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     * @return The value, or null if it is not stored.
+     * @throws NotOwnerException If no position of this process is responsible
+     * for the key.
+     */
+    @Override
+    public byte[] getOwned(String key, long hashKey) throws RemoteException, NotOwnerException {
+        if (!this.ownsKey(hashKey)) {
+            throw new NotOwnerException(hashKey, this.key);
+        }
+        return this.getStoreBytes(key, hashKey);
+    }
+
+    /**
+     * Gets many values this process is responsible for. Keys it is not
+     * responsible for are recorded as failed.
+     *
+     * @param keys The keys of the values.
+     * @return The values, and the keys this process does not own.
+     */
+    @Override
+    public BatchResult getOwnedBatch(Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        for (String key : keys) {
+            long hashKey = Utility.hash(key);
+            if (this.ownsKey(hashKey)) {
+                result.succeeded(key, this.getStoreBytes(key, hashKey));
+            } else {
+                result.failed(key, "Not responsible for key.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks which of many keys this process is responsible for are held,
+     * without sending their values. Keys it is not responsible for are
+     * recorded as failed.
+     *
+     * @param keys The keys to check.
+     * @return An empty value for each key held, null for each key not held,
+     * and the keys this process does not own.
+     */
+    @Override
+    public BatchResult holdsOwnedBatch(Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        for (String key : keys) {
+            long hashKey = Utility.hash(key);
+            if (this.ownsKey(hashKey)) {
+                boolean held = this.dataStore.getRange(hashKey, key, 0, 0) != null || this.replicaStore.getRange(hashKey, key, 0, 0) != null;
+                result.succeeded(key, held ? new byte[0] : null);
+            } else {
+                result.failed(key, "Not responsible for key.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores a value this process is responsible for, for clients that have
+     * routed to this node themselves.
+     *
+     * @param key The key of the value.
+     * @param value The value to store.
+     * @throws NotOwnerException If no position of this process is responsible
+     * for the key.
+     */
+    @Override
+    public void putOwned(String key, byte[] value) throws RemoteException, NotOwnerException {
+        long hashKey = Utility.hash(key);
+        ChordNode owner = this.admissionGate.await() ? this.findOwningMember(this.getRingMembers(), hashKey) : null;
+        if (owner == null) {
+            throw new NotOwnerException(hashKey, this.key);
+        }
+        this.writeOwned(owner.getReplicaTargets(), key, hashKey, value);
+    }
+
+    /**
+     * Removes a value from the node responsible for its key and from its
+     * replicas. Routed as put() is.
+     *
+     * @param key The key of the value to remove.
+     * @param hops The amount of times the request has been forwarded.
+     * @return The node that removed the value.
+     */
+    @Override
+    public IChordNode remove(String key, int hops) throws RemoteException {
+        if (!this.admissionGate.await()) { //If leaving, our successor takes the request.
+            return this.getImmediateSuccessor().getNode().remove(key, hops + 1);
+        }
+        this.valueCache.invalidate(key);
+        long hashKey = Utility.hash(key);
+        if (hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key)) {
+            this.removeOwned(key, hashKey);
+            return this;
+        }
+        return this.findSuccessor(hashKey).remove(key, hops + 1);
+    }
+
+    /**
+     * Stores or removes a value and gives back the value it replaced, in one
+     * step on the node responsible for its key, so two clients replacing the
+     * same value at once each get back a different value. Made under the
+     * lock of the stripe of its hash key, as counts are. Routed as put() is.
+     *
+     * @param key The key of the value.
+     * @param value The value, encoded by ValueCodec, or null to remove it.
+     * @param hops The amount of times the request has been forwarded.
+     * @return The value replaced, encoded by ValueCodec, or null if none was
+     * held.
+     */
+    @Override
+    public byte[] replace(String key, byte[] value, int hops) throws RemoteException {
+        if (!this.admissionGate.await()) { //If leaving, our successor takes the request.
+            return this.getImmediateSuccessor().getNode().replace(key, value, hops + 1);
+        }
+        long hashKey = Utility.hash(key);
+        if (!(hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key))) {
+            return this.findSuccessor(hashKey).replace(key, value, hops + 1);
+        }
+        this.valueCache.invalidate(key);
+        synchronized (this.countLocks[StorageEngine.stripeOf(hashKey)]) {
+            byte[] old = this.dataStore.get(hashKey, key);
+            if (value != null) {
+                this.writeOwned(this.getReplicaTargets(), key, hashKey, value);
+            } else if (old != null) {
+                this.removeOwned(key, hashKey);
+            }
+            return old;
+        }
+    }
+
+    /**
+     * Adds to the count of references to a value, kept alongside the value on
+     * the node responsible for its key. The change is made under a lock of
+     * the stripe of its hash key, so changes from many clients at once are
+     * never lost, and counters elsewhere in the ring do not wait for the
+     * replicas of this one. A count is only
+     * started for a value that is held, and once it reaches 0 the value is
+     * removed with it in the same step, so a value is never removed while
+     * counted or counted once removed. Routed as put() is.
+     *
+     * @param key The key of the value.
+     * @param delta The amount to add, negative to take away.
+     * @param hops The amount of times the request has been forwarded.
+     * @return The count after the change. 0 if the value is not held, so
+     * could not be referenced, or was removed as nothing references it.
+     * @throws RemoteException If references are taken from a value that has
+     * no count, as its count has been lost.
+     */
+    @Override
+    public long adjustCount(String key, long delta, int hops) throws RemoteException {
+        if (!this.admissionGate.await()) { //If leaving, our successor takes the request.
+            return this.getImmediateSuccessor().getNode().adjustCount(key, delta, hops + 1);
+        }
+        long hashKey = Utility.hash(key);
+        if (!(hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key))) {
+            return this.findSuccessor(hashKey).adjustCount(key, delta, hops + 1);
+        }
+        String countKey = key + COUNT_SUFFIX;
+        synchronized (this.countLocks[StorageEngine.stripeOf(hashKey)]) {
+            byte[] current = ValueCodec.decode(this.dataStore.get(hashKey, countKey));
+            if (current == null && delta < 0) {
+                throw new RemoteException("No reference count for " + key + ".");
+            }
+            if (delta > 0 && this.dataStore.getRange(hashKey, key, 0, 0) == null) {
+                return 0;
+            }
+            long count = (current == null ? 0 : ByteBuffer.wrap(current).getLong()) + delta;
+            if (count <= 0) {
+                this.removeOwned(countKey, hashKey);
+                this.removeOwned(key, hashKey);
+                return 0;
+            }
+            byte[] value = ValueCodec.encode(ByteBuffer.allocate(Long.BYTES).putLong(count).array());
+            this.writeOwned(this.getReplicaTargets(), countKey, hashKey, value);
+            return count;
+        }
+    }
+
+    private static Object[] newCountLocks() {
+        Object[] locks = new Object[1 << StorageEngine.STRIPE_BITS];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * Removes a value this node is responsible for, and the copies of its
+     * replicas.
+     *
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     */
+    private void removeOwned(String key, long hashKey) {
+        this.valueCache.invalidate(key);
+        this.dataStore.remove(hashKey, key);
+        this.host.keyFilterStale = true;
+        for (Finger replica : this.getReplicaTargets()) {
+            try {
+                replica.getNode().removeReplica(key, hashKey);
+            } catch (RemoteException e) {
+                this.failureDetector.suspect(replica);
+                log("Failed to remove copy of " + key + " from " + Long.toUnsignedString(replica.getKey()));
+            }
+        }
+        log("Removed from data with key: " + Long.toUnsignedString(hashKey));
+    }
+
+    /**
+     * Removes a copy of a value owned by a preceding node.
+     *
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     */
+    @Override
+    public void removeReplica(String key, long hashKey) throws RemoteException {
+        this.valueCache.invalidate(key);
+        this.replicaStore.remove(hashKey, key);
+        this.host.keyFilterStale = true;
+    }
+
+    /**
+     * Checks if a position of this process is responsible for the given key.
+     *
+     * @param hashKey The key to check.
+     * @return A boolean representing if this process owns the key.
+     */
+    private boolean ownsKey(long hashKey) {
+        return this.findOwningMember(this.getRingMembers(), hashKey) != null;
+    }
+
+    /**
+     * Stores copies of many values owned by a preceding node.
+     *
+     * @param values The keys and values to keep a copy of.
+     */
+    @Override
+    public void putReplicas(Map<String, byte[]> values) throws RemoteException {
+        for (Entry<String, byte[]> value : values.entrySet()) {
+            this.putReplica(value.getKey(), Utility.hash(value.getKey()), value.getValue());
+        }
+    }
+
+    /**
+     * Starts a chunked write of a value to this node. The chunks are encoded
+     * with the default codec and spilled to a file as they arrive, so the
+     * value is not held on the heap.
+     *
+     * @param key The key of the value to write.
+     * @return The id to send chunks of the value with.
+     */
+    @Override
+    public long openWrite(String key) throws RemoteException {
+        return this.openWrite(key, ValueCodec.DEFAULT);
+    }
+
+    /**
+     * Starts a chunked write of a value already encoded, such as one passed
+     * on by another node. The chunks are spilled to a file as they are.
+     *
+     * @param key The key of the value to write.
+     * @return The id to send chunks of the encoded value with.
+     */
+    @Override
+    public long openEncodedWrite(String key) throws RemoteException {
+        return this.openWrite(key, null);
+    }
+
+    /**
+     * Starts a chunked write.
+     *
+     * @param key The key of the value to write.
+     * @param codec The codec to encode chunks with, or null if they arrive
+     * encoded.
+     * @return The id of the write.
+     */
+    private long openWrite(String key, ValueCodec codec) throws RemoteException {
+        long writeId = this.nextWriteId.incrementAndGet();
+        try {
+            this.pendingWrites.put(writeId, new PendingWrite(key, codec));
+        } catch (IOException ex) {
+            throw new RemoteException("Could not start a chunked write of " + key + ".", ex);
+        }
+        return writeId;
+    }
+
+    /**
+     * Adds a chunk to the end of a chunked write.
+     *
+     * @param writeId The id of the write.
+     * @param chunk The bytes to add.
+     */
+    @Override
+    public void appendWrite(long writeId, byte[] chunk) throws RemoteException {
+        PendingWrite write = this.getPendingWrite(writeId);
+        synchronized (write) {
+            checkOpen(write, writeId);
+            if (write.received + (long) chunk.length > Integer.MAX_VALUE - ValueCodec.HEADER) {
+                throw new RemoteException("Value of " + write.key + " is too large.");
+            }
+            try {
+                write.append(chunk);
+            } catch (IOException ex) {
+                throw new RemoteException("Could not write a chunk of " + write.key + ".", ex);
+            }
+            write.lastTouched = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Finishes a chunked write, storing the value on the node responsible for
+     * it and its replicas. The value is copied from the spilled chunks to the
+     * store, and sent to the replicas, a chunk at a time.
+     *
+     * @param writeId The id of the write.
+     * @return The node that stored the value.
+     */
+    @Override
+    public IChordNode commitWrite(long writeId) throws RemoteException {
+        PendingWrite write = this.getPendingWrite(writeId);
+        this.pendingWrites.remove(writeId);
+        synchronized (write) { //Waits for a chunk still being added.
+            checkOpen(write, writeId);
+            try {
+                try {
+                    write.finish();
+                } catch (IOException ex) {
+                    throw new RemoteException("Could not encode " + write.key + ".", ex);
+                }
+                return this.putChunked(write, 0);
+            } finally {
+                write.close();
+            }
+        }
+    }
+
+    /**
+     * Stores a value written in chunks on the node responsible for its key,
+     * as put() does. A node that is not responsible for the key sends the
+     * value on as a chunked write.
+     *
+     * @param write The write holding the value.
+     * @param hops The amount of times the value has been forwarded.
+     * @return The node that kept the value.
+     */
+    private IChordNode putChunked(PendingWrite write, int hops) throws RemoteException {
+        long hashKey = Utility.hash(write.key);
+        IChordNode owner;
+        if (!this.admissionGate.await()) { //If leaving, our successor takes the value.
+            owner = this.getImmediateSuccessor().getNode();
+        } else if (hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(hashKey, this.predecessor.getKey(), this.key)
+                || (owner = this.findSuccessor(hashKey)).getKey() == this.key) {
+            ArrayList<Finger> replicas = this.getReplicaTargets();
+            try {
+                this.replicator.writeChunked(replicas, write.key, write.channel, write.length);
+            } catch (RemoteException ex) {
+                this.restoreReplicas(replicas, write.key, hashKey);
+                throw ex;
+            }
+            this.valueCache.invalidate(write.key);
+            try {
+                this.dataStore.put(hashKey, write.key, write.channel, write.length);
+            } catch (IOException ex) {
+                throw new RemoteException("Could not store " + write.key + ".", ex);
+            }
+            this.addToKeyFilter(hashKey);
+            log("Placed in data with key: " + Long.toUnsignedString(hashKey));
+            return this;
+        }
+        try {
+            return owner.commitWrite(ChunkedTransfer.send(owner, write.key, write.channel, write.length));
+        } catch (IOException ex) {
+            throw new RemoteException("Could not pass on " + write.key + ".", ex);
+        }
+    }
+
+    /**
+     * Finishes a chunked write sent by the owner of the value, storing it as
+     * a copy as putReplica() does.
+     *
+     * @param writeId The id of the write.
+     */
+    @Override
+    public void commitReplicaWrite(long writeId) throws RemoteException {
+        PendingWrite write = this.getPendingWrite(writeId);
+        this.pendingWrites.remove(writeId);
+        synchronized (write) {
+            checkOpen(write, writeId);
+            try {
+                write.finish();
+                this.valueCache.invalidate(write.key);
+                long hashKey = Utility.hash(write.key);
+                this.replicaStore.put(hashKey, write.key, write.channel, write.length);
+                this.addToKeyFilter(hashKey);
+            } catch (IOException ex) {
+                throw new RemoteException("Could not store copy of " + write.key + ".", ex);
+            } finally {
+                write.close();
+            }
+        }
+    }
+
+    /**
+     * Reads part of a value held by this node, straight from the store
+     * holding it. Of a large compressed value, only the frames the part falls
+     * in are read and decoded.
+     *
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     * @param offset The position in the value to start reading from.
+     * @param length The most bytes to read.
+     * @return The bytes read, or null if this node does not hold the value.
+     */
+    @Override
+    public byte[] getRange(String key, long hashKey, long offset, int length) throws RemoteException {
+        StorageEngine engine = this.dataStore.getRange(hashKey, key, 0, 0) != null ? this.dataStore : this.replicaStore;
+        try {
+            return ValueCodec.readRange((position, part) -> engine.getRange(hashKey, key, position, part), offset, length);
+        } catch (UncheckedIOException ex) { //Such as a value replaced while it was read.
+            throw new RemoteException("Could not read " + key + ".", ex.getCause());
+        }
+    }
+
+    /**
+     * Gets a chunked write in progress.
+     *
+     * @param writeId The id of the write.
+     * @return The write.
+     * @throws RemoteException If there is no write with the id, as it was
+     * never opened or has expired.
+     */
+    private PendingWrite getPendingWrite(long writeId) throws RemoteException {
+        PendingWrite write = this.pendingWrites.get(writeId);
+        if (write == null) {
+            throw new RemoteException("No chunked write with id " + writeId + ".");
+        }
+        return write;
+    }
+
+    /**
+     * Checks a chunked write is still open, once its monitor is held, as it
+     * may have expired or been committed since it was looked up.
+     *
+     * @param write The write.
+     * @param writeId The id of the write.
+     */
+    private static void checkOpen(PendingWrite write, long writeId) throws RemoteException {
+        if (write.closed) {
+            throw new RemoteException("No chunked write with id " + writeId + ".");
+        }
+    }
+
+    /**
+     * Drops chunked writes that have not received a chunk for WRITE_EXPIRY.
+     * Run periodically by the maintenance thread.
+     */
+    private void expireWrites() {
+        this.pendingWrites.values().removeIf(write -> {
+            synchronized (write) { //Waits for a chunk still being added, which touches the write again.
+                if (!write.closed && System.currentTimeMillis() - write.lastTouched <= WRITE_EXPIRY) {
+                    return false;
+                }
+                write.close();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stores a copy of a value owned by a preceding node. No range check is
+     * made, as the owner decides who its replicas are.
+     *
+     * @param key The key of the data to store.
+     * @param hashKey The hash of the key.
+     * @param value The value, or bytes of the data to store.
+     */
+    @Override
+    public void putReplica(String key, long hashKey, byte[] value) throws RemoteException {
+        this.valueCache.invalidate(key);
+        this.replicaStore.put(hashKey, key, value);
+        this.addToKeyFilter(hashKey);
+    }
+
+    /**
+     * Stores a copy of a whole store owned by a preceding node, replacing any
+     * copy already held.
+     *
+     * @param store The store to keep a copy of.
+     */
+    @Override
+    public void putReplicaStore(Store store) throws RemoteException {
+        this.replicaStore.putStore(store);
+        this.addToKeyFilter(store.getKey());
+    }
+
+    /**
+     * Places a whole store on the node responsible for its key. While the ring
+     * is settling nodes may disagree on who that is, so after MAX_LOOKUP_HOPS
+     * forwards the store is kept where it is, to be moved on by a later
+     * checkDataMoveDown().
+     *
+     * @param key The hash key of the store.
+     * @param store The store to move.
+     * @param hops The amount of times the store has been forwarded.
+     * @return The node that kept the store.
+     */
+    @Override
+    public IChordNode move(long key, Store store, int hops) throws RemoteException {
+        if (!this.admissionGate.await()) { //Wait until stabilized to conduct store requests. If leaving, our successor takes them.
+            return this.getImmediateSuccessor().getNode().move(key, store, hops + 1);
+        }
+        if (hops >= MAX_LOOKUP_HOPS || isInHalfOpenRangeR(key, this.predecessor.getKey(), this.key)) { //If so, add to our store.
+            this.dataStore.putStore(store);
+            this.addToKeyFilter(key);
+            log("Placed in data with key: " + Long.toUnsignedString(key));
             return this;
         } else { //If not find the node which is responsible and put it there.
             IChordNode responsibleNode = this.findSuccessor(key);
-            return responsibleNode.move(key, store);
+            return responsibleNode.move(key, store, hops + 1);
         }
     }
     
     /**
      * Runs a query to find the resource the given key references and returns
-     * that resource.
+     * that resource. Resources held by other nodes are cached, and served
+     * from the cache while fresh or while their owner says they are
+     * unchanged.
      *
      * @param key The key of the resource to return.
      * @return The resource the key references.
      */
     public byte[] get(String key) throws RemoteException {
-        int keyHash = Utility.hash(key);
+        long keyHash = Utility.hash(key);
         byte[] store = this.getStoreBytes(key, keyHash);
         if (store != null) { //If we had the resource, return it.
-            return store;
-        } else { //If not, find the node that does and return it.
-            IChordNode ownerNode = this.findSuccessor(keyHash);
-            return ownerNode.getStoreBytes(key, keyHash);
+            return ValueCodec.decode(store);
+        }
+        ValueCache.Entry cached = this.valueCache.get(key);
+        if (cached != null && cached.isFresh()) {
+            return ValueCodec.decode(cached.value);
+        }
+        IChordNode ownerNode = this.findSuccessor(keyHash); //If not, find the node that does and return the first answer from it or its replicas.
+        if (cached != null) {
+            try {
+                VersionedValue current = ownerNode.getVersioned(key, keyHash, cached.version);
+                if (current.getVersion() == cached.version) {
+                    this.valueCache.refresh(cached);
+                    return ValueCodec.decode(cached.value);
+                } else if (current.getValue() != null) {
+                    this.valueCache.put(key, current.getValue());
+                    return ValueCodec.decode(current.getValue());
+                }
+            } catch (RemoteException e) {
+                //Fall back to reading from the owner or its replicas.
+            }
+            this.valueCache.invalidate(key);
+        }
+        byte[] value = Replicator.REPLICATION_FACTOR == 1 ? ownerNode.getStoreBytes(key, keyHash)
+                : this.replicator.read(Arrays.asList(ownerNode.getReplicaSet()), key, keyHash);
+        if (value != null) {
+            this.valueCache.put(key, value);
+        }
+        return ValueCodec.decode(value);
+    }
+
+    /**
+     * Gets a value held by this node, if it has changed from the version a
+     * cache holds.
+     *
+     * @param key The key of the value.
+     * @param hashKey The hash of the key.
+     * @param version The version the cache holds.
+     * @return The current version, with the value if that is not the version
+     * given.
+     */
+    @Override
+    public VersionedValue getVersioned(String key, long hashKey, long version) throws RemoteException {
+        byte[] value = this.getStoreBytes(key, hashKey);
+        if (value == null) {
+            return new VersionedValue(null, 0);
+        }
+        long current = ValueCache.version(value);
+        return new VersionedValue(current == version ? null : value, current);
+    }
+
+    /**
+     * Gets the filter over the keys this process holds, owned or copied, so
+     * others can tell which keys it certainly does not hold.
+     *
+     * @return The key filter.
+     */
+    @Override
+    public KeyFilter getKeyFilter() throws RemoteException {
+        return this.host.keyFilter;
+    }
+
+    /**
+     * Gets the version of the filter over the keys this process holds, so
+     * others holding a copy only fetch it again once it has changed.
+     *
+     * @return The version of the key filter.
+     */
+    @Override
+    public long getKeyFilterVersion() throws RemoteException {
+        return this.host.keyFilter.version();
+    }
+
+    /**
+     * Adds a key to the filter of this process, after its store was written.
+     * A filter being built is added to first, so the key is in whichever
+     * filter is in use once the build is done.
+     *
+     * @param hashKey The hash key of the store written.
+     */
+    private void addToKeyFilter(long hashKey) {
+        KeyFilter next = this.host.nextKeyFilter;
+        if (next != null) {
+            next.add(hashKey);
         }
+        this.host.keyFilter.add(hashKey);
+    }
+
+    /**
+     * Builds a new key filter once the current one holds more keys than it was
+     * sized for, or every KEY_FILTER_ROUNDS rounds if stores have been handed
+     * away since it was built. Run by the maintenance thread of the host.
+     */
+    void maintainKeyFilter() {
+        if (this.host != this) {
+            return;
+        }
+        boolean full = this.keyFilter.isFull();
+        if (!full && !(this.keyFilterStale && ++this.keyFilterRound >= KEY_FILTER_ROUNDS)) {
+            return;
+        }
+        this.keyFilterRound = 0;
+        this.keyFilterStale = false;
+        KeyFilter next = new KeyFilter(2 * this.keyFilter.added()); //Sized before the keys are read, as it is published first.
+        this.nextKeyFilter = next; //Stores written from here on are added to it as well, so none are missed by the key snapshots.
+        for (long key : this.dataStore.keys()) {
+            next.add(key);
+        }
+        for (long key : this.replicaStore.keys()) {
+            next.add(key);
+        }
+        this.keyFilter = next;
+        this.nextKeyFilter = null;
     }
 
     /**
@@ -130,22 +1081,87 @@ class ChordNode implements Runnable, IChordNode {
      * @return The store that the key references. If it is not present, then
      * null is returned.
      */
-    @Override
-    public byte[] getStoreBytes(String key, int hashKey) throws RemoteException {
-        if (this.dataStore.containsKey(hashKey)) {
-            return this.dataStore.get(hashKey).getValue(key);
-        } else {
-            return null;
+    @Override
+    public byte[] getStoreBytes(String key, long hashKey) throws RemoteException {
+        byte[] value = this.dataStore.get(hashKey, key);
+        return value != null ? value : this.replicaStore.get(hashKey, key);
+    }
+
+    /**
+     * Gets this node along with the nodes holding copies of its data.
+     *
+     * @return This node, followed by its replicas.
+     */
+    @Override
+    public Finger[] getReplicaSet() throws RemoteException {
+        ArrayList<Finger> replicas = this.getReplicaTargets();
+        replicas.add(0, new Finger(this));
+        return replicas.toArray(new Finger[0]);
+    }
+
+    /**
+     * Picks the nodes to hold copies of this nodes data, taken in order from
+     * its successor and successor list. Nodes of this process are skipped, as
+     * they share the same store.
+     *
+     * @return Up to REPLICATION_FACTOR - 1 distinct nodes to replicate to.
+     */
+    private ArrayList<Finger> getReplicaTargets() {
+        ArrayList<Finger> targets = new ArrayList<>();
+        ArrayList<Finger> candidates = new ArrayList<>();
+        candidates.add(this.routingTable[0]);
+        candidates.addAll(Arrays.asList(this.successorList));
+        for (Finger candidate : candidates) {
+            if (targets.size() >= Replicator.REPLICATION_FACTOR - 1) {
+                break;
+            }
+            if (candidate == null || this.isLocalKey(candidate.getKey()) || !this.isAlive(candidate)) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (Finger target : targets) {
+                duplicate |= target.getKey() == candidate.getKey();
+            }
+            if (!duplicate) {
+                targets.add(candidate);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Makes this node join a Chord ring of nodes. The node joins the passed
+     * nodes ring.
+     *
+     * @param nodeToJoin The node whose ring is desired to be joined.
+     */
+    void join(IChordNode nodeToJoin) throws RemoteException {
+        this.joinRing(nodeToJoin);
+        for (ChordNode virtualNode : this.virtualNodes) {
+            virtualNode.joinRing(nodeToJoin);
+        }
+    }
+
+    /**
+     * Makes the virtual nodes of this process form a ring with this node. Used
+     * when this node is the first in a ring.
+     */
+    void createRing() throws RemoteException {
+        if (!this.virtualNodes.isEmpty()) { //Our range is only known once a virtual node becomes our predecessor.
+            this.admissionGate.joining();
+        }
+        for (ChordNode virtualNode : this.virtualNodes) {
+            virtualNode.joinRing(this);
         }
     }
 
     /**
-     * Makes this node join a Chord ring of nodes. The node joins the passed
-     * nodes ring.
+     * Makes only this ring position join the ring of the passed node.
      *
      * @param nodeToJoin The node whose ring is desired to be joined.
      */
-    void join(IChordNode nodeToJoin) throws RemoteException {
+    private void joinRing(IChordNode nodeToJoin) throws RemoteException {
+        this.admissionGate.joining(); //Store requests are parked until the first stabilise round completes.
         this.predecessor = null;    //Predecessor now unknown when entering a new ring. A node will inform us of this value.
         Finger successor = new Finger(nodeToJoin.findSuccessor(this.key));
         for (int i = 0; i < this.routingTable.length; i++) { //Assign successor to all routing table entries to avoid null
@@ -154,20 +1170,6 @@ class ChordNode implements Runnable, IChordNode {
         for (int i = 0; i < this.successorList.length; i++) {
             this.successorList[i] = successor;
         }
-        this.stableDelay();
-    }
-
-    /**
-     * A delay that takes place to ensure this node is stable.
-     */
-    private void stableDelay() {
-        this.stable = false;
-        try {
-            Thread.sleep(STABLE_DELAY);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ChordNode.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        this.stable = true;
     }
 
     /**
@@ -177,11 +1179,14 @@ class ChordNode implements Runnable, IChordNode {
      * @return The node which is responsible for storing the passed key.
      */
     @Override
-    public IChordNode findSuccessor(int key) throws RemoteException {
+    public IChordNode findSuccessor(long key) throws RemoteException {
+        if (this.lookupMode == LookupMode.ITERATIVE) {
+            return this.lookupIterative(key).getOwner().getNode();
+        }
         Finger successor = this.getImmediateSuccessor();
         if (successor != null) {
             //If key is in range exclusive left of us, then key is managed by our successor.
-            if (this.isInHalfOpenRangeR(key, this.key, successor.getKey())) {
+            if (isInHalfOpenRangeR(key, this.key, successor.getKey())) {
                 return successor.getNode();
             } else { //Otherwise forward onto closest preceding node we know to conduct a further search
                 IChordNode closestPrecedessor = successor.getNode().closestPrecedingNode(key);
@@ -194,21 +1199,131 @@ class ChordNode implements Runnable, IChordNode {
     }
 
     /**
-     * Checks if a given node is alive via its Finger entry.
+     * Finds the owner of the given key using this nodes lookup mode, recording
+     * the path taken and time spent.
      *
-     * @param node The node to ping and check if is still active.
-     * @return A boolean representing if the node is still active and reachable
-     * on the network.
+     * @param key The key to find the owner of.
+     * @return The result of the lookup, containing the owner, hops and path.
      */
     @Override
-    public boolean isAlive(Finger node) throws RemoteException {
-        boolean ping = false;
-        try { //A ping attempt will end in an exception if its unreachable.
-            ping = node.getNode().ping();
-        } catch (Exception e) {
-            log("Failed to ping node with key " + node.getKey() + ".");
+    public LookupResult lookup(long key) throws RemoteException {
+        long start = System.currentTimeMillis();
+        LookupResult result;
+        if (this.lookupMode == LookupMode.ITERATIVE) {
+            result = this.lookupIterative(key);
+        } else {
+            result = this.lookupRecursive(key, 0);
+        }
+        result.setElapsed(System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Finds the owner of the given key by walking the ring from this node.
+     * Each node on the path is only asked for its next hop, so no remote
+     * thread is held for the duration of the lookup.
+     *
+     * @param key The key to find the owner of.
+     * @return The result of the lookup, containing the owner, hops and path.
+     */
+    LookupResult lookupIterative(long key) throws RemoteException {
+        long deadline = System.currentTimeMillis() + LOOKUP_TIMEOUT;
+        LookupResult result = new LookupResult();
+        Finger current = new Finger(this);
+        result.addHop(current);
+        while (result.getHops() < MAX_LOOKUP_HOPS) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RemoteException("Lookup of key " + key + " timed out after " + result.getHops() + " hops.");
+            }
+            LookupHop hop;
+            try {
+                hop = current.getNode().nextHop(key);
+            } catch (RemoteException e) {
+                this.failureDetector.suspect(current);
+                throw e;
+            }
+            if (hop.isOwner()) {
+                result.setOwner(hop.getFinger());
+                return result;
+            }
+            current = hop.getFinger();
+            result.addHop(current);
+        }
+        throw new RemoteException("Lookup of key " + key + " exceeded " + MAX_LOOKUP_HOPS + " hops.");
+    }
+
+    /**
+     * Finds the owner of the given key by forwarding the request around the
+     * ring, the same way as findSuccessor(), recording the path taken.
+     *
+     * @param key The key to find the owner of.
+     * @param hops The amount of hops taken to reach this node.
+     * @return The result of the lookup, containing the owner, hops and path.
+     */
+    @Override
+    public LookupResult lookupRecursive(long key, int hops) throws RemoteException {
+        if (hops >= MAX_LOOKUP_HOPS) {
+            throw new RemoteException("Lookup of key " + key + " exceeded " + MAX_LOOKUP_HOPS + " hops.");
+        }
+        Finger successor = this.getImmediateSuccessor();
+        LookupResult result;
+        if (isInHalfOpenRangeR(key, this.key, successor.getKey())) {
+            result = new LookupResult();
+            result.setOwner(successor);
+        } else {
+            IChordNode closestPrecedessor = successor.getNode().closestPrecedingNode(key);
+            result = closestPrecedessor.lookupRecursive(key, hops + 1);
+        }
+        result.prependHop(new Finger(this));
+        return result;
+    }
+
+    /**
+     * Gives the next step of an iterative lookup for the given key. Either our
+     * successor, if it owns the key, or the closest preceding node we know.
+     *
+     * @param key The key being looked up.
+     * @return The next node to ask, flagged if it is the owner of the key.
+     */
+    @Override
+    public LookupHop nextHop(long key) throws RemoteException {
+        Finger successor = this.getImmediateSuccessor();
+        if (isInHalfOpenRangeR(key, this.key, successor.getKey())) {
+            return new LookupHop(successor, true);
+        }
+        Finger closest = this.closestPrecedingFinger(key);
+        if (closest == null) { //No better entry known, so carry on through our successor.
+            closest = successor;
         }
-        return ping;
+        return new LookupHop(closest, false);
+    }
+
+    /**
+     * Changes how this node resolves successors.
+     *
+     * @param lookupMode The mode to use for lookups.
+     */
+    void setLookupMode(LookupMode lookupMode) {
+        this.lookupMode = lookupMode;
+        log("Lookup mode set to " + lookupMode);
+    }
+
+    LookupMode getLookupMode() {
+        return lookupMode;
+    }
+
+    /**
+     * Checks if a given node is alive via its Finger entry. Answered from the
+     * failure detector, which pings watched nodes in the background, so this
+     * never makes a remote call.
+     *
+     * @param node The node to check if is still active.
+     * @return A boolean representing if the node is believed to be active and
+     * reachable on the network.
+     */
+    @Override
+    public boolean isAlive(Finger node) {
+        return this.failureDetector.isAlive(node);
     }
 
     /**
@@ -219,17 +1334,32 @@ class ChordNode implements Runnable, IChordNode {
      * @return The node that precedes the key value.
      */
     @Override
-    public IChordNode closestPrecedingNode(int key) throws RemoteException {
+    public IChordNode closestPrecedingNode(long key) throws RemoteException {
+        Finger closest = this.closestPrecedingFinger(key);
+        if (closest == null) {
+            return this;
+        }
+        return closest.getNode();
+    }
+
+    /**
+     * Finds the routing table entry closest preceding the given key value.
+     *
+     * @param key The key to find the closest preceeding entry of.
+     * @return The Finger that precedes the key value, or null if no entry in
+     * the routing table does.
+     */
+    private Finger closestPrecedingFinger(long key) {
         for (int i = this.routeTableLength - 1; i >= 0; i--) {
             try { //Look through routing table in order of the most far away nodes first, to achieve fastest search time.
-                if (isAlive(this.routingTable[i]) && this.isInClosedRange(this.routingTable[i].getKey(), this.key, key)) {
-                    return this.routingTable[i].getNode();
+                if (isAlive(this.routingTable[i]) && isInClosedRange(this.routingTable[i].getKey(), this.key, key)) {
+                    return this.routingTable[i];
                 }
             } catch (Exception e) {
                 log("Corrupt or empty entry in routing table position: " + i);
             }
         }
-        return this;
+        return null;
     }
 
     /**
@@ -240,11 +1370,11 @@ class ChordNode implements Runnable, IChordNode {
      * @param b The upper bound.
      * @return A Boolean if key is within the range or not.
      */
-    boolean isInOpenRange(int key, int a, int b) {
-        if (b > a) {
-            return key >= a && key <= b;
+    static boolean isInOpenRange(long key, long a, long b) {
+        if (Long.compareUnsigned(b, a) > 0) {
+            return Long.compareUnsigned(key, a) >= 0 && Long.compareUnsigned(key, b) <= 0;
         } else {
-            return key >= a || key <= b;
+            return Long.compareUnsigned(key, a) >= 0 || Long.compareUnsigned(key, b) <= 0;
         }
     }
 
@@ -256,11 +1386,11 @@ class ChordNode implements Runnable, IChordNode {
      * @param b The upper bound.
      * @return A Boolean if key is within the range or not.
      */
-    boolean isInClosedRange(int key, int a, int b) {
-        if (b > a) {
-            return key > a && key < b;
+    static boolean isInClosedRange(long key, long a, long b) {
+        if (Long.compareUnsigned(b, a) > 0) {
+            return Long.compareUnsigned(key, a) > 0 && Long.compareUnsigned(key, b) < 0;
         } else {
-            return key > a || key < b;
+            return Long.compareUnsigned(key, a) > 0 || Long.compareUnsigned(key, b) < 0;
         }
     }
 
@@ -272,11 +1402,11 @@ class ChordNode implements Runnable, IChordNode {
      * @param b The upper bound.
      * @return A Boolean if key is within the range or not.
      */
-    boolean isInHalfOpenRangeL(int key, int a, int b) {
-        if (b > a) {
-            return key >= a && key < b;
+    static boolean isInHalfOpenRangeL(long key, long a, long b) {
+        if (Long.compareUnsigned(b, a) > 0) {
+            return Long.compareUnsigned(key, a) >= 0 && Long.compareUnsigned(key, b) < 0;
         } else {
-            return key >= a || key < b;
+            return Long.compareUnsigned(key, a) >= 0 || Long.compareUnsigned(key, b) < 0;
         }
     }
 
@@ -288,11 +1418,11 @@ class ChordNode implements Runnable, IChordNode {
      * @param b The upper bound.
      * @return A Boolean if key is within the range or not.
      */
-    boolean isInHalfOpenRangeR(int key, int a, int b) {
-        if (b > a) {
-            return key > a && key <= b;
+    static boolean isInHalfOpenRangeR(long key, long a, long b) {
+        if (Long.compareUnsigned(b, a) > 0) {
+            return Long.compareUnsigned(key, a) > 0 && Long.compareUnsigned(key, b) <= 0;
         } else {
-            return key > a || key <= b;
+            return Long.compareUnsigned(key, a) > 0 || Long.compareUnsigned(key, b) <= 0;
         }
     }
 
@@ -306,7 +1436,7 @@ class ChordNode implements Runnable, IChordNode {
     public void notifyNode(IChordNode potentialPredecessor) throws RemoteException {
         //If we have no predecessor, this is our best guess for a predecessor.
         //If our potential predecessor node is between what we believe is our predecessor and us, then this node is a more accurate predecessor.
-        if (this.predecessor == null || this.isInClosedRange(potentialPredecessor.getKey(), this.predecessor.getKey(), this.key)) {
+        if (this.predecessor == null || isInClosedRange(potentialPredecessor.getKey(), this.predecessor.getKey(), this.key)) {
             this.predecessor = new Finger(potentialPredecessor);
         }
     }
@@ -319,8 +1449,8 @@ class ChordNode implements Runnable, IChordNode {
         Finger successor = this.getImmediateSuccessor();
         Finger successorsPredecessor = successor.getNode().getPredecessor();
         if (successorsPredecessor != null) {
-            int nodeKey = successorsPredecessor.getKey(); //Successors predecessor's key
-            if (this.isInClosedRange(nodeKey, this.key, successor.getKey())) {
+            long nodeKey = successorsPredecessor.getKey(); //Successors predecessor's key
+            if (isInClosedRange(nodeKey, this.key, successor.getKey())) {
                 this.routingTable[0] = successorsPredecessor; //If this nodes key is in the exclusive range, then its not our key (our successor has a new predecessor), so its our new successor.
             }
         }
@@ -330,15 +1460,96 @@ class ChordNode implements Runnable, IChordNode {
     /**
      * Maintains accuracy and correctness of the routing table. It is run
      * periodically by the maintenance thread.
+     *
+     * Any node in [key + 2^i, key + 2^(i+1)) serves as entry i, as routing only
+     * needs each entry to lie in its interval. So with proximity routing the
+     * successor of key + 2^i and the nodes following it in that interval are
+     * compared, and the one with the least round trip time is used. The first
+     * entry is always the successor itself.
      */
     void fixFingers() throws RemoteException {
         this.nextFix++; //Next entry to fix.
         if (nextFix >= this.routeTableLength) {
             this.nextFix = 0;
         }
-        int key = this.key + (int) Math.pow(2, this.nextFix);
-        IChordNode entry = this.findSuccessor(key);
-        this.routingTable[this.nextFix] = new Finger(entry);
+        long key = (this.key + (1L << this.nextFix)) & KEY_MASK;
+        Finger entry = new Finger(this.findSuccessor(key));
+        if (PROXIMITY_ROUTING && this.nextFix > 0) {
+            long end = this.nextFix + 1 >= KEY_BITS ? this.key : (this.key + (1L << (this.nextFix + 1))) & KEY_MASK;
+            entry = this.nearestInInterval(entry, key, end);
+        }
+        this.routingTable[this.nextFix] = entry;
+    }
+
+    /**
+     * Finds the node with the least round trip time out of the given node and
+     * the nodes following it, up to PROXIMITY_CANDIDATES nodes in [start,
+     * end). Nodes not yet measured are pinged once, after which the failure
+     * detector keeps measuring them.
+     *
+     * @param first The successor of start.
+     * @param start The inclusive start of the interval.
+     * @param end The exclusive end of the interval.
+     * @return The nearest node, or first if no other node is in the interval.
+     */
+    private Finger nearestInInterval(Finger first, long start, long end) {
+        if (!isInHalfOpenRangeL(first.getKey(), start, end)) {
+            return first; //No node in the interval, so the entry is the next node after it.
+        }
+        ArrayList<Finger> candidates = new ArrayList<>();
+        candidates.add(first);
+        try {
+            for (Finger next : first.getNode().getSuccessorList()) {
+                if (candidates.size() >= PROXIMITY_CANDIDATES || next == null || !isInHalfOpenRangeL(next.getKey(), start, end)) {
+                    break;
+                }
+                candidates.add(next);
+            }
+        } catch (RemoteException e) {
+            return first;
+        }
+        Finger nearest = first;
+        double nearestRtt = Double.MAX_VALUE;
+        for (Finger candidate : candidates) {
+            double rtt = this.failureDetector.rtt(candidate.getKey());
+            if (rtt < 0) {
+                long sent = System.nanoTime();
+                try {
+                    candidate.getNode().ping();
+                } catch (RemoteException e) {
+                    continue;
+                }
+                this.failureDetector.recordRtt(candidate, System.nanoTime() - sent);
+                rtt = this.failureDetector.rtt(candidate.getKey());
+            }
+            if (rtt < nearestRtt && this.isAlive(candidate)) {
+                nearest = candidate;
+                nearestRtt = rtt;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Describes each distinct entry of the routing table along with the round
+     * trip times measured to it.
+     *
+     * @return One line per run of entries holding the same node.
+     */
+    String fingerStats() {
+        StringBuilder stats = new StringBuilder();
+        int first = 0;
+        for (int i = 1; i <= this.routeTableLength; i++) {
+            Finger finger = this.routingTable[first];
+            if (i < this.routeTableLength && this.routingTable[i].getKey() == finger.getKey()) {
+                continue;
+            }
+            stats.append(first == i - 1 ? "finger " + first : "fingers " + first + "-" + (i - 1))
+                    .append(": ").append(Long.toUnsignedString(finger.getKey()))
+                    .append(", ").append(this.failureDetector.describeRtt(finger.getKey())).append('\n');
+            first = i;
+        }
+        return stats.toString();
     }
 
     /**
@@ -362,42 +1573,330 @@ class ChordNode implements Runnable, IChordNode {
 
     /**
      * Check if data needs to moved to our current predecessor, if so, move it.
-     * Procedure run periodically by the maintenance thread.
+     * Procedure run periodically by the maintenance thread of the host, on
+     * behalf of all ring positions sharing its data store. The data to move
+     * for a position is the range between the previous position of this
+     * process and the predecessor of the position.
      */
     void checkDataMoveDown() throws RemoteException {
-        if (this.predecessor != null && this.predecessor.getKey() != this.key) { //If there is a predecessor to move to and it's not the same node as the one running this function.
-            SortedMap<Integer, Store> toMove;
-            Iterator<Entry<Integer, Store>> iter; //Used for removing values safetly from underlying collection.
-            synchronized (this.dataStore) {
-                if (this.predecessor.getKey() > this.key) { //Handles wrap around range.
-                    toMove = this.dataStore.subMap(key, false, this.predecessor.getKey(), true); //Range from exclusive key, to inclusive predecessor key.
-                } else {
-                    toMove = this.dataStore.tailMap(key, false); //Greater than exclusive to key.
-                    SortedMap<Integer, Store> lessThan = this.dataStore.headMap(this.predecessor.getKey(), true); //Less than inclusive to predecessor key.
-                    iter = lessThan.entrySet().iterator();
-                    moveData(iter, this.predecessor); //Move less than data before exit due to SortedMap contiguous key range restrictions.
+        if (this.host != this) {
+            return; //The host moves data for its virtual nodes, as they share its store.
+        }
+        ArrayList<ChordNode> members = this.getRingMembers();
+        for (int i = 0; i < members.size(); i++) {
+            ChordNode member = members.get(i);
+            ChordNode previous = members.get((i + members.size() - 1) % members.size()); //The node itself, if it has no virtual nodes.
+            Finger memberPredecessor = member.predecessor;
+            //If there is a predecessor to move to and it's not a position of this process.
+            if (memberPredecessor != null && !this.isLocalKey(memberPredecessor.getKey())) {
+                this.moveRange(previous.key, memberPredecessor);
+            }
+        }
+    }
+
+    /**
+     * Takes over copies of data that this process is now responsible for, as
+     * their owner has failed, and periodically pushes owned data to the
+     * current replicas. Run by the maintenance thread of the host.
+     */
+    void maintainReplicas() throws RemoteException {
+        if (this.host != this) {
+            return;
+        }
+        ArrayList<ChordNode> members = this.getRingMembers();
+        for (long replicaKey : this.replicaStore.keys()) { //Promote copies in our range to owned data.
+            if (this.findOwningMember(members, replicaKey) != null) {
+                Store replica = this.replicaStore.getStore(replicaKey);
+                if (replica != null) {
+                    this.dataStore.mergeStore(replica);
+                }
+                this.replicaStore.removeStore(replicaKey);
+                log("Took over replica with ID " + Long.toUnsignedString(replicaKey));
+            }
+        }
+        if (++this.replicaRound < REPLICA_REFRESH_ROUNDS) {
+            return;
+        }
+        this.replicaRound = 0;
+        boolean repairedAll = true;
+        for (ChordNode member : members) { //Repair the replicas of the range of each position.
+            Finger memberPredecessor = member.predecessor;
+            if (memberPredecessor == null) {
+                repairedAll = false;
+                continue;
+            }
+            MerkleTree tree = new MerkleTree(this.dataStore, memberPredecessor.getKey(), member.key);
+            for (Finger replica : member.getReplicaTargets()) {
+                try {
+                    this.repairReplica(tree, memberPredecessor.getKey(), member.key, replica, this.startedEmpty);
+                } catch (RemoteException e) {
+                    this.failureDetector.suspect(replica);
+                    repairedAll = false;
+                }
+            }
+        }
+        if (repairedAll) {
+            this.startedEmpty = false;
+        }
+    }
+
+    /**
+     * Compares owned data in a range with the copies a replica holds, and
+     * exchanges only the parts of the range that differ. The replica takes
+     * our stores and drops the ones we do not have, as we removed them. Only
+     * if this process started without data do we take back the values the
+     * replica has that we do not, as nothing records which of them we lost
+     * and which we removed.
+     *
+     * @param tree The hash tree over our data in the range.
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range.
+     * @param replica The replica to repair.
+     * @param recover If values only the replica has are taken back.
+     */
+    private void repairReplica(MerkleTree tree, long from, long to, Finger replica, boolean recover) throws RemoteException {
+        List<Integer> differing;
+        try {
+            differing = tree.diff(nodes -> replica.getNode().getReplicaDigests(from, to, nodes));
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemoteException("Could not compare replicas.", e);
+        }
+        int repaired = 0;
+        for (int i = 0; i < differing.size(); i++) {
+            int first = differing.get(i);
+            while (i + 1 < differing.size() && differing.get(i + 1) == differing.get(i) + 1) { //Join neighbouring leaves into one exchange.
+                i++;
+            }
+            long[] part = tree.leafRange(first, differing.get(i));
+            Handoff ours = new Handoff();
+            for (long key : this.dataStore.keysInRange(part[0], part[1])) {
+                Store store = this.dataStore.getStore(key);
+                if (store != null) {
+                    ours.add(store);
+                }
+            }
+            repaired += ours.getStores().size();
+            try {
+                for (Store theirs : Handoff.unpack(replica.getNode().syncReplicaRange(part[0], part[1], ours.toBytes(), recover))) {
+                    this.dataStore.mergeStore(theirs);
+                    this.addToKeyFilter(theirs.getKey());
                 }
-                iter = toMove.entrySet().iterator();
-                moveData(iter, this.predecessor);
-                //Remove from our store, as data has been moved.
+            } catch (IOException ex) {
+                throw new RemoteException("Could not read replica stores.", ex);
+            }
+        }
+        if (!differing.isEmpty()) {
+            log("Repaired " + differing.size() + " of " + MerkleTree.LEAVES + " parts of range on " + Long.toUnsignedString(replica.getKey()) + ", sending " + repaired + " stores.");
+        }
+    }
+
+    /**
+     * Gets digests of nodes of a hash tree over the copies this process holds
+     * in a range, for the owner of the range to compare with its own.
+     *
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range, the key of its owner.
+     * @param nodes The heap numbers of the nodes of the tree.
+     * @return The digest of each node, in the same order.
+     */
+    @Override
+    public long[] getReplicaDigests(long from, long to, int[] nodes) throws RemoteException {
+        MerkleTree tree = this.host.replicaTrees.get(to);
+        if (tree == null || !tree.covers(from, to) || System.currentTimeMillis() - tree.getBuiltAt() > TREE_EXPIRY) {
+            tree = new MerkleTree(this.replicaStore, from, to);
+            this.host.replicaTrees.put(to, tree);
+        }
+        return tree.getDigests(nodes);
+    }
+
+    /**
+     * Replaces the copies held in part of a range with the owners stores,
+     * dropping the copies of stores the owner no longer has.
+     *
+     * @param from The exclusive start of the part.
+     * @param to The inclusive end of the part.
+     * @param batch The stores of the owner in the part, made by Handoff.
+     * @param recover If the owner started without data, so wants back the
+     * copies that differ from its stores rather than them being dropped.
+     * @return The copies held that differed from the owners stores, made by
+     * Handoff, if recover is set, otherwise an empty Handoff.
+     */
+    @Override
+    public byte[] syncReplicaRange(long from, long to, byte[] batch, boolean recover) throws RemoteException {
+        HashMap<Long, Store> owners = new HashMap<>();
+        try {
+            for (Store store : Handoff.unpack(batch)) {
+                owners.put(store.getKey(), store);
+            }
+        } catch (IOException ex) {
+            throw new RemoteException("Could not read owner stores.", ex);
+        }
+        Handoff differing = new Handoff();
+        for (long key : this.replicaStore.keysInRange(from, to)) {
+            Store held = this.replicaStore.getStore(key);
+            if (held == null || held.sameValues(owners.get(key))) {
+                continue;
+            }
+            if (recover) {
+                differing.add(held);
+            } else if (!owners.containsKey(key)) { //Left alone if a copy was put since it was read, as the owner may not have stored it yet.
+                this.replicaStore.removeStoreIfSame(held);
+                this.host.keyFilterStale = true;
+            }
+        }
+        for (Store store : owners.values()) {
+            this.replicaStore.putStore(store);
+            this.addToKeyFilter(store.getKey());
+        }
+        this.host.replicaTrees.clear();
+        return differing.toBytes();
+    }
+
+    /**
+     * Finds the ring position of this process responsible for the given key.
+     *
+     * @param members The ring positions of this process.
+     * @param hashKey The key to find the owner of.
+     * @return The position owning the key, or null if none of them do.
+     */
+    private ChordNode findOwningMember(ArrayList<ChordNode> members, long hashKey) {
+        for (ChordNode member : members) {
+            Finger memberPredecessor = member.predecessor;
+            if (memberPredecessor != null && isInHalfOpenRangeR(hashKey, memberPredecessor.getKey(), member.key)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the data in the range (from, predecessor] to the given predecessor.
+     *
+     * @param from The exclusive lower bound of the range to move.
+     * @param predecessor The node to move the data to, whose key is the
+     * inclusive upper bound of the range.
+     */
+    private void moveRange(long from, Finger predecessor) throws RemoteException {
+        moveData(this.dataStore.keysInRange(from, predecessor.getKey()), predecessor); //Range from exclusive key, to inclusive predecessor key.
+    }
+
+    /**
+     * Gets all ring positions held by this process, in ring order.
+     *
+     * @return This node and its virtual nodes, sorted by key.
+     */
+    private ArrayList<ChordNode> getRingMembers() {
+        ArrayList<ChordNode> members = new ArrayList<>(this.host.virtualNodes);
+        members.add(this.host);
+        members.sort((a, b) -> Long.compareUnsigned(a.key, b.key));
+        return members;
+    }
+
+    /**
+     * Checks if the given key belongs to a ring position held by this process.
+     *
+     * @param nodeKey The key of a node.
+     * @return A boolean representing if the key is this node, or one of its
+     * virtual nodes.
+     */
+    private boolean isLocalKey(long nodeKey) {
+        for (ChordNode member : this.getRingMembers()) {
+            if (member.key == nodeKey) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the stores with the given keys to the passed node, in compressed
+     * batches of Handoff.BATCH_BYTES. No lock is held while sending, so puts
+     * and gets carry on as the data moves.
+     *
+     * @param keys The hash keys of the stores to move.
+     * @param moveToNode The node to move the data to.
+     */
+    private void moveData(List<Long> keys, Finger moveToNode) throws RemoteException {
+        Handoff batch = new Handoff();
+        for (long moveKey : keys) { //Steps through the data and batches it.
+            Store moveStore = this.dataStore.getStore(moveKey);
+            if (moveStore == null) {
+                continue;
+            }
+            batch.add(moveStore);
+            if (batch.isFull()) {
+                this.sendBatch(batch, moveToNode);
+                batch = new Handoff();
             }
         }
+        if (!batch.isEmpty()) {
+            this.sendBatch(batch, moveToNode);
+        }
     }
 
     /**
-     * Moves data in the given iterator to the passed node.
+     * Sends a batch of stores to a node and removes them from our store once
+     * it confirms it holds them. Stores the node is not responsible for are
+     * routed on one by one. A store changed while being sent is kept, to be
+     * moved again on a later round.
      *
-     * @param iter The iterator containing the data to move.
+     * @param batch The stores to send.
      * @param moveToNode The node to move the data to.
      */
-    private void moveData(Iterator<Entry<Integer, Store>> iter, Finger moveToNode) throws RemoteException {
-        while (iter.hasNext()) { //Steps through the data and moves it.
-            Entry moveEntry = iter.next();
-            Store moveStore = (Store) moveEntry.getValue();
-            moveToNode.getNode().move(moveStore.getKey(), moveStore); //Put key and value into necessary node
-            log("Moved data with ID " + moveEntry.getKey() + " to " + moveToNode.getKey());
-            iter.remove();
+    private void sendBatch(Handoff batch, Finger moveToNode) throws RemoteException {
+        List<Store> stores = batch.getStores();
+        HashSet<Long> rejected = new HashSet<>(moveToNode.getNode().takeStores(batch.toBytes()));
+        int moved = 0;
+        for (Store sent : stores) {
+            if (rejected.contains(sent.getKey())) {
+                IChordNode keptBy = moveToNode.getNode().move(sent.getKey(), sent, 0); //Put key and value into necessary node
+                if (this.isLocalKey(keptBy.getKey())) { //Routed back to a position of this process, so it stays in our store.
+                    continue;
+                }
+            }
+            if (this.dataStore.removeStoreIfSame(sent)) { //Remove from our store, as data has been moved, unless it changed since it was sent.
+                this.host.keyFilterStale = true;
+                moved++;
+            }
+        }
+        log("Moved " + moved + " of " + stores.size() + " stores to " + Long.toUnsignedString(moveToNode.getKey()));
+    }
+
+    /**
+     * Takes a batch of stores handed over by another node. Values replace any
+     * held under the same key, as the sender held them while it owned them.
+     *
+     * @param batch The compressed batch, made by Handoff.
+     * @return The hash keys of the stores in the batch that no position of
+     * this process is responsible for, which were not kept.
+     */
+    @Override
+    public List<Long> takeStores(byte[] batch) throws RemoteException {
+        if (!this.admissionGate.await()) { //If leaving, our successor takes them.
+            return this.getImmediateSuccessor().getNode().takeStores(batch);
+        }
+        List<Store> stores;
+        try {
+            stores = Handoff.unpack(batch);
+        } catch (IOException ex) {
+            throw new RemoteException("Could not read handoff batch.", ex);
+        }
+        ArrayList<ChordNode> members = this.getRingMembers();
+        ArrayList<Long> rejected = new ArrayList<>();
+        for (Store store : stores) {
+            if (this.findOwningMember(members, store.getKey()) == null) {
+                rejected.add(store.getKey());
+                continue;
+            }
+            for (Entry<String, byte[]> value : store.getValues().entrySet()) {
+                this.dataStore.put(store.getKey(), value.getKey(), value.getValue());
+            }
+            this.addToKeyFilter(store.getKey());
         }
+        log("Took " + (stores.size() - rejected.size()) + " stores handed over.");
+        return rejected;
     }
 
     /**
@@ -407,11 +1906,11 @@ class ChordNode implements Runnable, IChordNode {
         this.nextSuccessCheck++;    //The entry to check on this excution of the function.
         if (this.nextSuccessCheck >= this.successorList.length) {
             this.nextSuccessCheck = 0;
-            int key = this.routingTable[this.nextSuccessCheck].getKey(); //Immediate successor's key for this node
-            this.successorList[this.nextSuccessCheck] = new Finger(this.findSuccessor(key + 1)); //Finds the successor, of our successor
+            long key = this.routingTable[this.nextSuccessCheck].getKey(); //Immediate successor's key for this node
+            this.successorList[this.nextSuccessCheck] = new Finger(this.findSuccessor((key + 1) & KEY_MASK)); //Finds the successor, of our successor
         } else {
-            int key = this.successorList[this.nextSuccessCheck - 1].getKey(); //Key of successor to check
-            IChordNode nextSuccessor = this.findSuccessor(key + 1);
+            long key = this.successorList[this.nextSuccessCheck - 1].getKey(); //Key of successor to check
+            IChordNode nextSuccessor = this.findSuccessor((key + 1) & KEY_MASK);
             this.successorList[this.nextSuccessCheck] = new Finger(nextSuccessor);
         }
     }
@@ -462,6 +1961,9 @@ class ChordNode implements Runnable, IChordNode {
 
                 try {
                     stabilise();
+                    if (this.predecessor != null) { //Stable once our successor knows us and our predecessor has found us.
+                        this.admissionGate.ready();
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -495,6 +1997,15 @@ class ChordNode implements Runnable, IChordNode {
                 } catch (Exception e) {
                     log("Error moving data down.");
                 }
+
+                try {
+                    maintainReplicas();
+                } catch (Exception e) {
+                    log("Error maintaining replicas.");
+                }
+
+                maintainKeyFilter();
+                expireWrites();
             }
         }
     }
@@ -505,7 +2016,7 @@ class ChordNode implements Runnable, IChordNode {
      * @return The key for this node.
      */
     @Override
-    public int getKey() {
+    public long getKey() {
         return key;
     }
 
@@ -525,29 +2036,125 @@ class ChordNode implements Runnable, IChordNode {
      * @param msg The message to print in the terminal.
      */
     public void log(String msg) {
-        System.out.println(Thread.currentThread().getName() + "[" + this.key + "]: " + msg);
+        System.out.println(Thread.currentThread().getName() + "[" + Long.toUnsignedString(this.key) + "]: " + msg);
     }
 
     /**
-     * Triggers a node to safely leave the Chord ring it is within.
+     * Triggers a node to safely leave the Chord ring it is within. Virtual
+     * nodes leave first, then the data is handed to the successor, which
+     * forwards anything it is not responsible for.
      */
     public void leave() {
         try {
-            stable = false; //Stops all incoming put requests
-            Finger successor = this.getImmediateSuccessor();
-            //Change successor and predecessor values such that they think this node does not exist.
-            successor.getNode().setPredecessor(predecessor);
-            this.predecessor.getNode().setSuccessor(successor);
+            for (ChordNode virtualNode : this.virtualNodes) {
+                virtualNode.unlink();
+            }
+            Finger successor = this.unlink();
             log("Left Chord Ring. Preceeding to move data.");
 
-            Iterator data = this.dataStore.entrySet().iterator();
-            moveData(data, successor);
+            moveData(this.dataStore.keys(), successor);
             log("Successfully left Chord Ring and moved data.");
         } catch (Exception e) {
             log("Failed to leave the Chord Ring and/or move data.");
         }
     }
 
+    /**
+     * Removes only this ring position from the ring, by pointing its successor
+     * and predecessor at each other.
+     *
+     * @return The successor of this position.
+     */
+    private Finger unlink() throws RemoteException {
+        this.admissionGate.leaving(); //Stops all incoming put requests, sending them to our successor.
+        Finger successor = this.getImmediateSuccessor();
+        //Change successor and predecessor values such that they think this node does not exist.
+        successor.getNode().setPredecessor(predecessor);
+        this.predecessor.getNode().setSuccessor(successor);
+        return successor;
+    }
+
+    /**
+     * Walks the whole ring and works out the share of the key space each
+     * process is responsible for. Virtual nodes count towards the process
+     * that holds them.
+     *
+     * @return The fraction of the key space each process owns, by host name.
+     */
+    TreeMap<String, Double> keySpaceShares() throws RemoteException {
+        TreeMap<String, Double> shares = new TreeMap<>();
+        double ringSize = Math.pow(2, KEY_BITS);
+        IChordNode current = this;
+        long previousKey = this.predecessor == null ? this.key : this.predecessor.getKey();
+        for (int i = 0; i < MAX_RING_WALK; i++) {
+            long currentKey = current.getKey();
+            long arc = (currentKey - previousKey) & KEY_MASK;
+            double share = (arc == 0 ? ringSize : unsignedToDouble(arc)) / ringSize; //A lone node owns the whole ring.
+            shares.merge(current.getHostName(), share, Double::sum);
+            previousKey = currentKey;
+            current = current.findSuccessor((currentKey + 1) & KEY_MASK);
+            if (current.getKey() == this.key) {
+                return shares;
+            }
+        }
+        log("Ring walk stopped after " + MAX_RING_WALK + " nodes.");
+        return shares;
+    }
+
+    /**
+     * Converts a key to a double, treating it as unsigned.
+     *
+     * @param value The key to convert.
+     * @return The unsigned value of the key.
+     */
+    private static double unsignedToDouble(long value) {
+        double result = (double) (value >>> 1) * 2;
+        return result + (value & 1);
+    }
+
+    /**
+     * Gets the name of the process holding this node. The same for a node and
+     * all of its virtual nodes.
+     *
+     * @return The name of the host node.
+     */
+    @Override
+    public String getHostName() {
+        return this.host.name;
+    }
+
+    /**
+     * Gets the address the binary transport of this process listens on.
+     *
+     * @return The address as host:port, or null if this process serves RMI
+     * only.
+     */
+    @Override
+    public String getTransportAddress() throws RemoteException {
+        NioServer server = this.host.transportServer;
+        if (server == null) {
+            return null;
+        }
+        String hostName = System.getProperty("java.rmi.server.hostname");
+        try {
+            if (hostName == null) {
+                hostName = InetAddress.getLocalHost().getHostAddress();
+            }
+        } catch (UnknownHostException ex) {
+            hostName = "localhost";
+        }
+        return hostName + ":" + server.getPort();
+    }
+
+    /**
+     * Gets the virtual nodes held by this node.
+     *
+     * @return The list of extra ring positions of this node.
+     */
+    ArrayList<ChordNode> getVirtualNodes() {
+        return virtualNodes;
+    }
+
     /**
      * Changes the successor of this node to given the successor.
      *
@@ -586,4 +2193,75 @@ class ChordNode implements Runnable, IChordNode {
         return successorList;
     }
 
+    /**
+     * The bytes received so far of a chunked write, spilled to a file that is
+     * deleted once the write is closed. Chunks of a value are encoded as they
+     * arrive, so the file holds the value as it is stored and replicated.
+     */
+    private static class PendingWrite {
+
+        String key;                                             //The key of the value being written.
+        FileChannel channel;                                    //The file the chunks are spilled to.
+        ValueCodec.Writer encoder;                              //Encodes chunks into the file, or null if they arrive encoded.
+        boolean closed;                                         //If the write was committed or expired. Guarded by the write.
+        long received;                                          //Bytes of chunks received so far.
+        int length;                                             //Bytes of the encoded value in the file, once finished.
+        volatile long lastTouched = System.currentTimeMillis(); //Time the last chunk was received.
+
+        PendingWrite(String key, ValueCodec codec) throws IOException {
+            this.key = key;
+            Path file = Files.createTempFile(Paths.get(System.getProperty("chorddht.storageDir", System.getProperty("java.io.tmpdir"))), "chorddht-write-", ".part");
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            if (codec != null) {
+                this.encoder = new ValueCodec.Writer(codec, this.channel);
+            }
+        }
+
+        /**
+         * Adds a chunk to the end of the file, encoding it if needed.
+         *
+         * @param chunk The bytes received.
+         */
+        void append(byte[] chunk) throws IOException {
+            if (this.encoder != null) {
+                this.encoder.write(chunk);
+            } else {
+                ByteBuffer bytes = ByteBuffer.wrap(chunk);
+                while (bytes.hasRemaining()) {
+                    this.channel.write(bytes, this.received + bytes.position());
+                }
+            }
+            this.received += chunk.length;
+        }
+
+        /**
+         * Writes the end of the encoded value, once every chunk is received.
+         */
+        void finish() throws IOException {
+            if (this.encoder != null) {
+                this.encoder.finish();
+            }
+            long encoded = this.encoder == null ? this.received : this.encoder.length();
+            if (encoded > Integer.MAX_VALUE) {
+                throw new IOException("Value of " + this.key + " is too large once encoded.");
+            }
+            this.length = (int) encoded;
+        }
+
+        /**
+         * Deletes the spilled chunks.
+         */
+        void close() {
+            this.closed = true;
+            if (this.encoder != null) {
+                this.encoder.end();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                //Already closed.
+            }
+        }
+    }
+
 }
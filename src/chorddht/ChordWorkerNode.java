@@ -1,16 +1,24 @@
 package chorddht;
 
-import java.rmi.RemoteException;
+import java.lang.reflect.Method;
 
 /**
  * A Chord node that processes tasks, instead of just simply storing data.
  *
+ * The worker runs in SLOTS threads, so a node takes and processes as many
+ * tasks at once. Slots spend most of their time blocked taking tasks and
+ * moving bytes, so with chorddht.workerVirtualThreads they run on virtual
+ * threads where the JVM has them, and more slots than processors are used.
+ *
  * @author Dominic
  */
 public class ChordWorkerNode extends ChordNode implements Runnable {
-    
+
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("chorddht.workerVirtualThreads"); //If slots run on virtual threads.
+    static final int SLOTS = Math.max(1, Integer.getInteger("chorddht.workerSlots", VIRTUAL_THREADS ? 4 * Worker.PROCESSORS : Worker.PROCESSORS)); //Tasks taken at once.
+
     private Worker worker;                      //The worker object that processes the requests.
-    private Thread workerThread;                //The thread object the worker runs on.
+    private Thread[] workerThreads;             //The threads the worker runs on, one for each slot.
 
     /**
      * A Chord node that has the capacity to process requests it gets in its
@@ -21,8 +29,45 @@ public class ChordWorkerNode extends ChordNode implements Runnable {
     public ChordWorkerNode(String myKeyString) {
         super(myKeyString);
         this.worker = new Worker(this);
-        this.workerThread = new Thread(this.worker);
-        this.workerThread.start();
+        this.workerThreads = new Thread[SLOTS];
+        Method startVirtual = VIRTUAL_THREADS ? this.virtualThreadStarter() : null;
+        for (int i = 0; i < SLOTS; i++) {
+            this.workerThreads[i] = this.startWorkerThread(startVirtual, myKeyString + "-worker-" + i);
+        }
+    }
+
+    /**
+     * Starts a thread running the worker.
+     *
+     * @param startVirtual The method starting a virtual thread, or null to use a platform thread.
+     * @param name The name of a platform thread.
+     * @return The thread started.
+     */
+    private Thread startWorkerThread(Method startVirtual, String name) {
+        if (startVirtual != null) {
+            try {
+                return (Thread) startVirtual.invoke(null, this.worker);
+            } catch (ReflectiveOperationException ex) {
+                log("Unable to start virtual thread, using a platform thread.");
+            }
+        }
+        Thread thread = new Thread(this.worker, name);
+        thread.start();
+        return thread;
     }
-    
+
+    /**
+     * Finds Thread.startVirtualThread, which only JVMs from Java 21 have.
+     *
+     * @return The method, or null if the JVM has no virtual threads.
+     */
+    private Method virtualThreadStarter() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException ex) {
+            log("Virtual threads are not available, using platform threads.");
+            return null;
+        }
+    }
+
 }
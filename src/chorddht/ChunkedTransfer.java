@@ -0,0 +1,160 @@
+package chorddht;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+
+/**
+ * A chunked write of a single value, sent straight to the node responsible
+ * for its key. Along with the static read helpers, this keeps the memory
+ * used by a client per transfer bounded by the chunk size, rather than the
+ * size of the value.
+ *
+ * @author Dominic
+ */
+public class ChunkedTransfer {
+
+    static final int CHUNK_SIZE = Integer.getInteger("chorddht.chunkSize", 1024 * 1024); //In bytes. Most data sent in one call.
+
+    private IChordNode owner;   //The node the value is being written to.
+    private long writeId;      //The id the owner gave this write.
+    private String key;         //The key of the value being written.
+
+    private ChunkedTransfer(IChordNode owner, long writeId, String key) {
+        this.owner = owner;
+        this.writeId = writeId;
+        this.key = key;
+    }
+
+    /**
+     * Starts a chunked write of a value to the node responsible for its key.
+     *
+     * @param gateway Any node in the ring.
+     * @param key The key of the value to write.
+     * @return The write, to append chunks to.
+     */
+    public static ChunkedTransfer open(IChordNode gateway, String key) throws RemoteException {
+        IChordNode owner = gateway.findSuccessor(Utility.hash(key));
+        return new ChunkedTransfer(owner, owner.openWrite(key), key);
+    }
+
+    /**
+     * Sends the next chunk of the value.
+     *
+     * @param chunk The bytes to add to the end of the value.
+     */
+    public void append(byte[] chunk) throws RemoteException {
+        this.owner.appendWrite(this.writeId, chunk);
+    }
+
+    /**
+     * Finishes the write, storing the value on the owner and its replicas.
+     */
+    public void commit() throws RemoteException {
+        this.owner.commitWrite(this.writeId);
+    }
+
+    /**
+     * Writes the contents of a stream to the given key, a chunk at a time.
+     *
+     * @param gateway Any node in the ring.
+     * @param key The key of the value to write.
+     * @param in The stream holding the value.
+     */
+    public static void upload(IChordNode gateway, String key, InputStream in) throws IOException {
+        ChunkedTransfer transfer = open(gateway, key);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = readChunk(in, buffer)) > 0) {
+            transfer.append(read == buffer.length ? buffer : Arrays.copyOf(buffer, read));
+        }
+        transfer.commit();
+    }
+
+    /**
+     * Sends an encoded value held in a file to a node as a chunked write, a
+     * chunk at a time, leaving the write open for the caller to commit. The
+     * node stores the value as it is sent, without encoding it again.
+     *
+     * @param node The node to write to.
+     * @param key The key of the value to write.
+     * @param source The file holding the encoded value from its start.
+     * @param length The length of the encoded value.
+     * @return The id of the write on the node.
+     */
+    static long send(IChordNode node, String key, FileChannel source, long length) throws IOException {
+        long writeId = node.openEncodedWrite(key);
+        for (long position = 0; position < length; ) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, length - position));
+            while (chunk.hasRemaining()) {
+                if (source.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("File ended before the value did.");
+                }
+            }
+            node.appendWrite(writeId, chunk.array());
+            position += chunk.capacity();
+        }
+        return writeId;
+    }
+
+    /**
+     * Reads part of the value at the given key from the node responsible for
+     * it.
+     *
+     * @param gateway Any node in the ring.
+     * @param key The key of the value to read.
+     * @param offset The position in the value to start reading from.
+     * @param length The most bytes to read.
+     * @return The bytes read, fewer than asked for at the end of the value, or
+     * null if there is no value at the key.
+     */
+    public static byte[] readRange(IChordNode gateway, String key, long offset, int length) throws RemoteException {
+        long hashKey = Utility.hash(key);
+        return gateway.findSuccessor(hashKey).getRange(key, hashKey, offset, length);
+    }
+
+    /**
+     * Copies the value at the given key to a stream, a chunk at a time.
+     *
+     * @param gateway Any node in the ring.
+     * @param key The key of the value to read.
+     * @param out The stream to write the value to.
+     * @return false if there is no value at the key.
+     * @throws IOException If the value is removed or moved part way through.
+     */
+    public static boolean download(IChordNode gateway, String key, OutputStream out) throws IOException {
+        long hashKey = Utility.hash(key);
+        IChordNode owner = gateway.findSuccessor(hashKey);
+        long offset = 0;
+        byte[] chunk;
+        do {
+            chunk = owner.getRange(key, hashKey, offset, CHUNK_SIZE);
+            if (chunk == null && offset > 0) { //Removed or moved part way, so what was written is not the whole value.
+                throw new IOException("Value at " + key + " went away after " + offset + " bytes were read.");
+            } else if (chunk == null) {
+                return false;
+            }
+            out.write(chunk);
+            offset += chunk.length;
+        } while (chunk.length == CHUNK_SIZE);
+        return true;
+    }
+
+    /**
+     * Fills the buffer from the stream, unless the stream ends first.
+     *
+     * @return The amount of bytes read.
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) > -1) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,362 @@
+package chorddht;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Stores values once under the digest of their contents, with the names they
+ * were stored under holding only a small reference to that digest. Uploading
+ * the same file under many names then keeps one copy of it in the ring.
+ *
+ * Each content value has a count of the names referencing it, kept with the
+ * content on its owner and changed there in one step, so changes from every
+ * client are counted. The owner removes the content once nothing references
+ * it. Results are remembered by the digest of
+ * the request and the task type, so a task whose request has been processed
+ * before can reuse the results.
+ *
+ * @author Dominic
+ */
+class ContentStore {
+
+    static final byte[] REFERENCE = "\0ContentRef:".getBytes(StandardCharsets.UTF_8); //Start of a value that references content.
+    static final int STORE_ATTEMPTS = 5;        //Times content is stored before giving up, if each time it is removed by its last reference going before it is referenced.
+
+    private RoutingCache routes;                //Used to reach the ring.
+
+    /**
+     * Creates a content store over the given routing cache.
+     *
+     * @param routes Used to reach the ring.
+     */
+    ContentStore(RoutingCache routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Stores a value under a name, storing its contents only if they are not
+     * held already.
+     *
+     * @param name The name of the value.
+     * @param value The value.
+     * @return The digest of the value.
+     */
+    String put(String name, byte[] value) throws RemoteException {
+        String digest = digest(value);
+        this.link(name, digest, () -> this.routes.put(contentKey(digest), value));
+        return digest;
+    }
+
+    /**
+     * Stores a value held in a file under a name, as put() does. The file is
+     * sent in chunks, and only if its contents are not held already.
+     *
+     * @param name The name of the value.
+     * @param file The file holding the value.
+     * @param digest The digest of the file, made by toHex() of a digest from
+     * newDigest().
+     */
+    void putFile(String name, Path file, String digest) throws RemoteException {
+        this.link(name, digest, () -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                ChunkedTransfer.upload(this.routes.findSuccessor(Utility.hash(contentKey(digest))), contentKey(digest), in);
+            } catch (RemoteException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                throw new RemoteException("Could not read " + file + ".", ex);
+            }
+        });
+    }
+
+    /**
+     * Points a name at content already held, counting the reference. A name
+     * already pointing elsewhere gives up its old reference.
+     *
+     * @param name The name.
+     * @param digest The digest of the content.
+     * @return A boolean representing if the content was held, so the name now
+     * points at it.
+     */
+    boolean link(String name, String digest) throws RemoteException {
+        return this.link(name, digest, null);
+    }
+
+    /**
+     * Points a name at content, counting the reference, and storing the
+     * content first if it is not held. The name is swapped on its owner in
+     * one step, so only the reference it actually replaced is given up, even
+     * if the name is linked by many clients at once.
+     *
+     * @param name The name.
+     * @param digest The digest of the content.
+     * @param store Stores the content, or null if it is not to be stored.
+     * @return A boolean representing if the name now points at the content.
+     */
+    private boolean link(String name, String digest, ContentWriter store) throws RemoteException {
+        if (digest.equals(this.digestOf(name))) {
+            return true;
+        }
+        if (!this.addReference(digest, store)) {
+            return false;
+        }
+        String old = referencedDigest(this.routes.replace(name, reference(digest)));
+        if (old != null) {
+            this.unreference(old);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a reference to content. The owner only counts content it holds,
+     * so content that is not held is stored and counted again. It may be
+     * removed in between, by its last other reference going, so this is
+     * tried STORE_ATTEMPTS times.
+     *
+     * @param digest The digest of the content.
+     * @param store Stores the content, or null if it is not to be stored.
+     * @return A boolean representing if the reference was counted.
+     */
+    private boolean addReference(String digest, ContentWriter store) throws RemoteException {
+        for (int attempt = 0; attempt < STORE_ATTEMPTS; attempt++) {
+            if (this.routes.adjustCount(contentKey(digest), 1) > 0) {
+                return true;
+            }
+            if (store == null) {
+                return false;
+            }
+            store.write();
+        }
+        throw new RemoteException("Content " + digest + " was removed each time it was stored.");
+    }
+
+    /**
+     * Gets the value stored under a name. Names stored without this class
+     * give their value as it is.
+     *
+     * @param name The name of the value.
+     * @return The value, or null if nothing is stored under the name.
+     */
+    byte[] get(String name) throws RemoteException {
+        byte[] value = this.getName(name);
+        String digest = referencedDigest(value);
+        return digest == null ? value : this.routes.get(contentKey(digest));
+    }
+
+    /**
+     * Gets the value stored under a name as get() does, but reads the name and
+     * its content from what a node of this process holds first, as owner or
+     * replica, and only asks their owners for what it does not hold.
+     *
+     * @param name The name of the value.
+     * @param local A node of this process.
+     * @return The value, or null if nothing is stored under the name.
+     */
+    byte[] getNear(String name, IChordNode local) throws RemoteException {
+        byte[] value = ValueCodec.decode(local.getStoreBytes(name, Utility.hash(name)));
+        if (value == null) {
+            return this.get(name);
+        }
+        String digest = referencedDigest(value);
+        if (digest == null) {
+            return value;
+        }
+        byte[] content = ValueCodec.decode(local.getStoreBytes(contentKey(digest), Utility.hash(contentKey(digest))));
+        return content != null ? content : this.routes.get(contentKey(digest));
+    }
+
+    /**
+     * Gets the key a name is read from. The content key for a name that
+     * references content, or the name itself. Reading a value in parts from
+     * the key found once, rather than the name, keeps every part from the
+     * same value, even if the name is pointed elsewhere meanwhile.
+     *
+     * @param name The name of the value.
+     * @return The key holding the value, or null if nothing is stored under
+     * the name.
+     */
+    String resolve(String name) throws RemoteException {
+        byte[] value = this.getName(name);
+        String digest = referencedDigest(value);
+        if (value == null) {
+            return null;
+        }
+        return digest == null ? name : contentKey(digest);
+    }
+
+    /**
+     * Reads what is stored under a name itself, a value or a reference, with
+     * a batched get. If the routing cache holds key filters, a name the
+     * filter of its owner does not hold is then taken as missing without
+     * asking the owner, as names such as the results of unfinished tasks are
+     * often asked for before they are stored.
+     *
+     * @param name The name.
+     * @return What is stored under the name, or null if nothing is.
+     */
+    private byte[] getName(String name) throws RemoteException {
+        BatchResult found = this.routes.multiGet(Collections.singletonList(name));
+        String error = found.getErrors().get(name);
+        if (error != null) {
+            throw new RemoteException("Could not read " + name + ": " + error);
+        }
+        return found.getValues().get(name);
+    }
+
+    /**
+     * Gets the digest of the content a name references.
+     *
+     * @param name The name of the value.
+     * @return The digest, or null if the name does not reference content.
+     */
+    String digestOf(String name) throws RemoteException {
+        return referencedDigest(this.routes.get(name));
+    }
+
+    /**
+     * Removes a name, and the content it referenced if nothing else does.
+     *
+     * @param name The name to remove.
+     */
+    void release(String name) throws RemoteException {
+        String digest = referencedDigest(this.routes.replace(name, null));
+        if (digest != null) {
+            this.unreference(digest);
+        }
+    }
+
+    /**
+     * Gets the content of results already made for the same request.
+     *
+     * @param requestDigest The digest of the request.
+     * @param type The type of task run on the request.
+     * @return The digest of the results, or null if none are known.
+     */
+    String cachedResult(String requestDigest, TaskType type) throws RemoteException {
+        if (!type.isReusable()) {
+            return null;
+        }
+        byte[] result = this.routes.get(resultKey(requestDigest, type));
+        return result == null ? null : new String(result, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Remembers the results made for a request, if results of the type can
+     * be reused. The results are referenced for as long as the request
+     * content is held.
+     *
+     * @param requestDigest The digest of the request.
+     * @param type The type of task run on the request.
+     * @param resultDigest The digest of the results.
+     */
+    void cacheResult(String requestDigest, TaskType type, String resultDigest) throws RemoteException {
+        if (!type.isReusable() || resultDigest.equals(this.cachedResult(requestDigest, type)) || !this.addReference(resultDigest, null)) {
+            return;
+        }
+        this.routes.put(resultKey(requestDigest, type), resultDigest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Takes away a reference to content. Once nothing references it, its
+     * owner removes it, and the results remembered for it are removed here.
+     *
+     * @param digest The digest of the content.
+     * @throws RemoteException If the content has no count of references, as
+     * it has been lost.
+     */
+    private void unreference(String digest) throws RemoteException {
+        if (this.routes.adjustCount(contentKey(digest), -1) > 0) {
+            return;
+        }
+        for (TaskType type : TaskType.values()) {
+            String result = this.cachedResult(digest, type);
+            if (result != null) {
+                this.routes.remove(resultKey(digest, type));
+                this.unreference(result);
+            }
+        }
+    }
+
+    /**
+     * Makes the digest of a value.
+     *
+     * @param value The value.
+     * @return The SHA-256 digest of the value, in hex.
+     */
+    static String digest(byte[] value) {
+        MessageDigest digest = newDigest();
+        digest.update(value);
+        return toHex(digest);
+    }
+
+    /**
+     * Starts a digest of a value given in parts.
+     *
+     * @return A SHA-256 digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+    }
+
+    /**
+     * Finishes a digest.
+     *
+     * @param digest The digest, given every part of the value.
+     * @return The digest, in hex.
+     */
+    static String toHex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    static String contentKey(String digest) {
+        return "Content" + digest;
+    }
+
+    static String resultKey(String digest, TaskType type) {
+        return "ContentResults" + digest + type;
+    }
+
+    private static byte[] reference(String digest) {
+        byte[] name = digest.getBytes(StandardCharsets.UTF_8);
+        byte[] reference = Arrays.copyOf(REFERENCE, REFERENCE.length + name.length);
+        System.arraycopy(name, 0, reference, REFERENCE.length, name.length);
+        return reference;
+    }
+
+    /**
+     * Reads the digest out of a reference.
+     *
+     * @param value A value, which may be a reference.
+     * @return The digest referenced, or null if the value is not a reference.
+     */
+    private static String referencedDigest(byte[] value) {
+        if (value == null || value.length <= REFERENCE.length || !Arrays.equals(value, 0, REFERENCE.length, REFERENCE, 0, REFERENCE.length)) {
+            return null;
+        }
+        return new String(value, REFERENCE.length, value.length - REFERENCE.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores content that is not held.
+     */
+    @FunctionalInterface
+    private interface ContentWriter {
+
+        void write() throws RemoteException;
+    }
+}
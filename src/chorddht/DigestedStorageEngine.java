@@ -0,0 +1,218 @@
+package chorddht;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A storage engine that keeps a digest of every store held by another engine
+ * up to date as it changes, so hash trees over a range are built from the
+ * digests alone, without reading any values. Each value is hashed once as it
+ * is written, and the digest of a store is the sum of the hashes of its
+ * values, so a change to one value only changes the digest by the difference.
+ *
+ * Changes are made under a lock of the stripe of their hash key, so the
+ * digests and the engine see them in the same order.
+ *
+ * @author Dominic
+ */
+class DigestedStorageEngine implements StorageEngine {
+
+    private StorageEngine engine;                   //The engine holding the data.
+    private ConcurrentSkipListMap<Long, Digest> digests = new ConcurrentSkipListMap<>(Long::compareUnsigned); //Digest of each store, by hash key, in ring order.
+    private Object[] stripes = new Object[1 << STRIPE_BITS]; //Held while a change to the hash keys of each stripe is made to the engine and the digests.
+
+    /**
+     * Keeps digests of the stores of an engine. Data loaded from a data log
+     * is loaded through this engine, so its digests are made as it loads.
+     *
+     * @param engine The empty engine to hold the data.
+     */
+    DigestedStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public void put(long hashKey, String key, byte[] value) {
+        synchronized (this.stripe(hashKey)) {
+            this.engine.put(hashKey, key, value);
+            this.digests.computeIfAbsent(hashKey, Digest::new).put(key, MerkleTree.digest(key, value));
+        }
+    }
+
+    @Override
+    public void remove(long hashKey, String key) {
+        synchronized (this.stripe(hashKey)) {
+            this.engine.remove(hashKey, key);
+            Digest digest = this.digests.get(hashKey);
+            if (digest != null && digest.remove(key)) {
+                this.digests.remove(hashKey);
+            }
+        }
+    }
+
+    @Override
+    public byte[] get(long hashKey, String key) {
+        return this.engine.get(hashKey, key);
+    }
+
+    @Override
+    public byte[] getRange(long hashKey, String key, long offset, int length) {
+        return this.engine.getRange(hashKey, key, offset, length);
+    }
+
+    /**
+     * Adds a value read from a file. The file is hashed a part at a time
+     * before it is handed on, so the value is never held whole on the heap.
+     */
+    @Override
+    public void put(long hashKey, String key, FileChannel source, int length) throws IOException {
+        long hash = MerkleTree.keyDigest(key);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (long position = 0; position < length; position += buffer.position()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File ended before the value did.");
+                }
+            }
+            hash = MerkleTree.fnv(buffer.array(), buffer.position(), hash);
+        }
+        synchronized (this.stripe(hashKey)) {
+            this.engine.put(hashKey, key, source, length);
+            this.digests.computeIfAbsent(hashKey, Digest::new).put(key, MerkleTree.valueDigest(hash));
+        }
+    }
+
+    @Override
+    public Store getStore(long hashKey) {
+        return this.engine.getStore(hashKey);
+    }
+
+    @Override
+    public void putStore(Store store) {
+        synchronized (this.stripe(store.getKey())) {
+            this.engine.putStore(store);
+            this.digests.remove(store.getKey());
+            this.add(store, false);
+        }
+    }
+
+    @Override
+    public void mergeStore(Store store) {
+        synchronized (this.stripe(store.getKey())) {
+            this.engine.mergeStore(store);
+            this.add(store, true);
+        }
+    }
+
+    @Override
+    public void removeStore(long hashKey) {
+        synchronized (this.stripe(hashKey)) {
+            this.engine.removeStore(hashKey);
+            this.digests.remove(hashKey);
+        }
+    }
+
+    @Override
+    public boolean removeStoreIfSame(Store store) {
+        synchronized (this.stripe(store.getKey())) {
+            if (!this.engine.removeStoreIfSame(store)) {
+                return false;
+            }
+            this.digests.remove(store.getKey());
+            return true;
+        }
+    }
+
+    @Override
+    public List<Long> keysInRange(long from, long to) {
+        return this.engine.keysInRange(from, to);
+    }
+
+    @Override
+    public List<Long> keys() {
+        return this.engine.keys();
+    }
+
+    @Override
+    public Map<Long, Long> digestsInRange(long from, long to) {
+        TreeMap<Long, Long> found = new TreeMap<>(Long::compareUnsigned);
+        Map<Long, Digest> range;
+        if (Long.compareUnsigned(to, from) > 0) {
+            range = this.digests.subMap(from, false, to, true);
+        } else { //Handles wrap around range, including the whole ring.
+            range = new TreeMap<>(this.digests.tailMap(from, false));
+            range.putAll(this.digests.headMap(to, true));
+        }
+        for (Entry<Long, Digest> digest : range.entrySet()) {
+            found.put(digest.getKey(), digest.getValue().value);
+        }
+        return found;
+    }
+
+    private Object stripe(long hashKey) {
+        return this.stripes[StorageEngine.stripeOf(hashKey)];
+    }
+
+    /**
+     * Adds the hashes of the values of a store to its digest. Called holding
+     * the lock of its stripe.
+     *
+     * @param store The store.
+     * @param absentOnly If only values not already held are added, as in
+     * mergeStore().
+     */
+    private void add(Store store, boolean absentOnly) {
+        if (store.getValues().isEmpty()) {
+            return; //Nothing is held for an empty store.
+        }
+        Digest digest = this.digests.computeIfAbsent(store.getKey(), Digest::new);
+        for (Entry<String, byte[]> value : store.getValues().entrySet()) {
+            if (!absentOnly || !digest.hashes.containsKey(value.getKey())) {
+                digest.put(value.getKey(), MerkleTree.digest(value.getKey(), value.getValue()));
+            }
+        }
+    }
+
+    /**
+     * The digest of one store, and the hash of each of its values it is made
+     * from. Changed only under the lock of the stripe of the store, but its
+     * value may be read at any time.
+     */
+    private static class Digest {
+
+        HashMap<String, Long> hashes = new HashMap<>(); //Hash of each value, by key.
+        volatile long value;                            //Digest of the store.
+
+        Digest(long hashKey) {
+            this.value = MerkleTree.storeDigest(hashKey);
+        }
+
+        void put(String key, long hash) {
+            Long old = this.hashes.put(key, hash);
+            this.value += hash - (old == null ? 0 : old);
+        }
+
+        /**
+         * @return A boolean representing if no values are left.
+         */
+        boolean remove(String key) {
+            Long old = this.hashes.remove(key);
+            if (old != null) {
+                this.value -= old;
+            }
+            return this.hashes.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package chorddht;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A phi accrual failure detector. Keeps liveness state for every node a Chord
+ * node routes through and refreshes it with heartbeats on a background thread,
+ * so routing never has to ping a node synchronously. Heartbeats are timed, so
+ * the detector also knows the round trip time to each node it watches.
+ *
+ * Every node is pinged on its own pool thread, so a node that hangs only
+ * delays its own heartbeats. A ping still outstanding after PING_TIMEOUT
+ * counts as a missed heartbeat each round until it returns.
+ *
+ * @author Dominic
+ */
+class FailureDetector implements Runnable {
+
+    static final int HEARTBEAT_INTERVAL = 500;      //In milliseconds. Delay between heartbeat rounds.
+    static final double PHI_THRESHOLD = 3.0;        //Suspicion level at which a node is considered failed.
+    static final int MAX_MISSED_HEARTBEATS = 2;     //Failed heartbeats in a row at which a node is considered failed.
+    static final int WATCH_EXPIRY = 30 * 1000;      //In milliseconds. Time a node is watched for after it was last asked about.
+    static final int PING_TIMEOUT = Integer.getInteger("chorddht.pingTimeout", 2 * HEARTBEAT_INTERVAL); //In milliseconds. Time a ping may take before it counts as missed.
+
+    private ChordNode owner;                                            //The node this detector works for.
+    private ConcurrentHashMap<Long, Heartbeat> watched = new ConcurrentHashMap<>(); //Liveness state of each watched node, by key.
+    private ExecutorService pings = Executors.newCachedThreadPool(runnable -> {   //Runs the pings, at most one for each watched node at a time.
+        Thread thread = new Thread(runnable, "heartbeat-ping");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a failure detector for the given node.
+     *
+     * @param owner The node this detector works for.
+     */
+    FailureDetector(ChordNode owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Starts the heartbeat thread of this detector.
+     *
+     * @param name The name of the thread.
+     */
+    void start(String name) {
+        Thread thread = new Thread(this, name + "-heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks if the node in the given Finger is believed to be alive. Nodes not
+     * yet watched are assumed alive until the first heartbeat says otherwise.
+     *
+     * @param finger The node to check the liveness of.
+     * @return A boolean representing if the node is believed to be alive.
+     */
+    boolean isAlive(Finger finger) {
+        if (finger == null || finger.getNode() == null) {
+            return false;
+        }
+        if (finger.getKey() == this.owner.getKey()) {
+            return true;
+        }
+        Heartbeat heartbeat = this.watched.computeIfAbsent(finger.getKey(), k -> new Heartbeat(finger));
+        heartbeat.node = finger;
+        heartbeat.lastAsked = System.currentTimeMillis();
+        return heartbeat.isAlive();
+    }
+
+    /**
+     * Marks the node in the given Finger as failed straight away. Used when a
+     * remote call to the node fails, rather than waiting for the next
+     * heartbeat.
+     *
+     * @param finger The node that failed to respond.
+     */
+    void suspect(Finger finger) {
+        if (finger == null || finger.getKey() == this.owner.getKey()) {
+            return;
+        }
+        Heartbeat heartbeat = this.watched.computeIfAbsent(finger.getKey(), k -> new Heartbeat(finger));
+        heartbeat.missed = MAX_MISSED_HEARTBEATS;
+    }
+
+    /**
+     * Adds a round trip time measured to a node outside of heartbeats, and
+     * starts watching it.
+     *
+     * @param finger The node measured.
+     * @param nanos The round trip time, in nanoseconds.
+     */
+    void recordRtt(Finger finger, long nanos) {
+        Heartbeat heartbeat = this.watched.computeIfAbsent(finger.getKey(), k -> new Heartbeat(finger));
+        heartbeat.lastAsked = System.currentTimeMillis();
+        heartbeat.sampleRtt(nanos);
+    }
+
+    /**
+     * Gets the average round trip time to the node with the given key.
+     *
+     * @param key The key of the node.
+     * @return The average in milliseconds, or -1 if it has not been measured.
+     */
+    double rtt(long key) {
+        if (key == this.owner.getKey()) {
+            return 0;
+        }
+        Heartbeat heartbeat = this.watched.get(key);
+        return heartbeat == null || heartbeat.rttSamples == 0 ? -1 : heartbeat.meanRtt / 1e6;
+    }
+
+    /**
+     * Describes the round trip times measured to the node with the given key.
+     *
+     * @param key The key of the node.
+     * @return The average and least round trip time and the amount of samples
+     * they were taken from.
+     */
+    String describeRtt(long key) {
+        Heartbeat heartbeat = this.watched.get(key);
+        if (key == this.owner.getKey()) {
+            return "local";
+        } else if (heartbeat == null || heartbeat.rttSamples == 0) {
+            return "not measured";
+        }
+        return String.format("avg %.3fms, min %.3fms, %d samples", heartbeat.meanRtt / 1e6, heartbeat.minRtt / 1e6, heartbeat.rttSamples);
+    }
+
+    /**
+     * Gets the suspicion level of the node with the given key.
+     *
+     * @param key The key of the node.
+     * @return The phi value of the node, or 0 if the node is not watched.
+     */
+    double phi(long key) {
+        Heartbeat heartbeat = this.watched.get(key);
+        return heartbeat == null ? 0 : heartbeat.phi(System.currentTimeMillis());
+    }
+
+    /**
+     * The heartbeat thread. Starts a ping of every watched node, counts pings
+     * that have taken too long as missed, and drops nodes nobody has asked
+     * about for a while.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Iterator<Entry<Long, Heartbeat>> iter = this.watched.entrySet().iterator();
+            while (iter.hasNext()) {
+                Heartbeat heartbeat = iter.next().getValue();
+                if (now - heartbeat.lastAsked > WATCH_EXPIRY) {
+                    iter.remove();
+                } else if (heartbeat.pingStarted == 0) {
+                    heartbeat.pingStarted = now;
+                    this.pings.execute(heartbeat::beat);
+                } else if (now - heartbeat.pingStarted > PING_TIMEOUT) {
+                    heartbeat.missed++; //Still waiting on the last ping.
+                }
+            }
+        }
+    }
+
+    /**
+     * The liveness state of a single watched node.
+     */
+    private static class Heartbeat {
+
+        volatile Finger node;               //The node being watched.
+        volatile long lastHeard;            //Time of the last successful heartbeat.
+        volatile double meanInterval = HEARTBEAT_INTERVAL; //Moving average of time between successful heartbeats.
+        volatile int missed;                //Failed heartbeats in a row.
+        volatile long lastAsked;            //Time the node was last asked about.
+        volatile double meanRtt;            //Moving average of round trip time, in nanoseconds.
+        volatile long minRtt = Long.MAX_VALUE; //Least round trip time seen, in nanoseconds.
+        volatile int rttSamples;            //Round trip times measured.
+        volatile long pingStarted;          //When the outstanding ping was started, or 0 if none is.
+
+        Heartbeat(Finger node) {
+            this.node = node;
+            this.lastHeard = System.currentTimeMillis();
+            this.lastAsked = this.lastHeard;
+        }
+
+        /**
+         * Pings the node and updates its state with the outcome. Runs on a
+         * pool thread.
+         */
+        void beat() {
+            boolean ping = false;
+            long start = System.nanoTime();
+            try {
+                ping = this.node.getNode().ping();
+            } catch (Exception e) {
+                //Unreachable, counted as a missed heartbeat.
+            }
+            long now = System.currentTimeMillis();
+            if (ping) {
+                this.sampleRtt(System.nanoTime() - start);
+                this.meanInterval = 0.9 * this.meanInterval + 0.1 * (now - this.lastHeard);
+                this.lastHeard = now;
+                this.missed = 0;
+            } else {
+                this.missed++;
+            }
+            this.pingStarted = 0;
+        }
+
+        /**
+         * Adds a round trip time to the moving average.
+         *
+         * @param nanos The round trip time, in nanoseconds.
+         */
+        void sampleRtt(long nanos) {
+            this.meanRtt = this.rttSamples == 0 ? nanos : 0.8 * this.meanRtt + 0.2 * nanos;
+            this.minRtt = Math.min(this.minRtt, nanos);
+            this.rttSamples++;
+        }
+
+        /**
+         * Phi of the time since the last heartbeat, assuming exponentially
+         * distributed heartbeat intervals.
+         */
+        double phi(long now) {
+            return ((now - this.lastHeard) / this.meanInterval) * Math.log10(Math.E);
+        }
+
+        boolean isAlive() {
+            return this.missed < MAX_MISSED_HEARTBEATS && this.phi(System.currentTimeMillis()) < PHI_THRESHOLD;
+        }
+    }
+}
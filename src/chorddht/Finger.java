@@ -13,7 +13,7 @@ import java.util.logging.Logger;
  */
 public class Finger implements Serializable {
 
-    private int key;            //The key of the node stored in this Finger.
+    private long key;           //The key of the node stored in this Finger.
     private IChordNode node;    //A remote reference to the node.
 
     /**
@@ -35,7 +35,7 @@ public class Finger implements Serializable {
      *
      * @return The key of the node stored by this Finger.
      */
-    public int getKey() {
+    public long getKey() {
         return key;
     }
 
@@ -0,0 +1,111 @@
+package chorddht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compressed batch of stores handed from one node to another, when the
+ * range of keys they belong to changes owner. Sending many stores in one call
+ * lets a range move at the speed of the network rather than one round trip
+ * per store.
+ *
+ * @author Dominic
+ */
+class Handoff {
+
+    static final int BATCH_BYTES = Integer.getInteger("chorddht.handoffBatch", 4 * 1024 * 1024); //Uncompressed bytes at which a batch is sent.
+
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();     //The compressed batch.
+    private DataOutputStream out;                                           //Writer compressing into the batch.
+    private ArrayList<Store> stores = new ArrayList<>();                    //The stores in the batch.
+    private long size;                                                      //Uncompressed bytes in the batch.
+
+    /**
+     * Creates an empty batch.
+     */
+    Handoff() {
+        this.out = new DataOutputStream(new DeflaterOutputStream(this.bytes, new Deflater(Deflater.BEST_SPEED)));
+    }
+
+    /**
+     * Adds a store to the batch.
+     *
+     * @param store The store to add.
+     */
+    void add(Store store) {
+        byte[] record = store.encode();
+        try {
+            this.out.writeInt(record.length);
+            this.out.write(record);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); //Cannot happen writing to memory.
+        }
+        this.stores.add(store);
+        this.size += record.length;
+    }
+
+    /**
+     * Checks if the batch is large enough to be sent.
+     *
+     * @return A boolean representing if the batch holds BATCH_BYTES or more.
+     */
+    boolean isFull() {
+        return this.size >= BATCH_BYTES;
+    }
+
+    boolean isEmpty() {
+        return this.stores.isEmpty();
+    }
+
+    /**
+     * Gets the stores in the batch, as they were added.
+     *
+     * @return The stores in the batch.
+     */
+    List<Store> getStores() {
+        return this.stores;
+    }
+
+    /**
+     * Finishes the batch. No more stores may be added after.
+     *
+     * @return The compressed bytes of the batch.
+     */
+    byte[] toBytes() {
+        try {
+            this.out.writeInt(-1); //Marks the end of the batch.
+            this.out.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return this.bytes.toByteArray();
+    }
+
+    /**
+     * Reads the stores of a batch made by toBytes().
+     *
+     * @param batch The compressed bytes of the batch.
+     * @return The stores in the batch.
+     */
+    static List<Store> unpack(byte[] batch) throws IOException {
+        ArrayList<Store> stores = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(batch)))) {
+            for (int length = in.readInt(); length != -1; length = in.readInt()) {
+                byte[] record = new byte[length];
+                in.readFully(record);
+                stores.add(Store.decode(ByteBuffer.wrap(record)));
+            }
+        }
+        return stores;
+    }
+}
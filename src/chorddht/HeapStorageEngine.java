@@ -0,0 +1,109 @@
+package chorddht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A storage engine keeping every value on the Java heap, in stores held in a
+ * concurrent skip list ordered around the ring. Stores in the list are never
+ * changed, only replaced by an updated copy, so reads take no locks and
+ * writes only contend when they are to the same hash key.
+ *
+ * @author Dominic
+ */
+class HeapStorageEngine implements StorageEngine {
+
+    private ConcurrentSkipListMap<Long, Store> stores = new ConcurrentSkipListMap<>(Long::compareUnsigned); //Stores all DHT byte array data, in ring order.
+
+    @Override
+    public void put(long hashKey, String key, byte[] value) {
+        this.stores.compute(hashKey, (k, held) -> {
+            Store updated = copy(hashKey, held);
+            updated.put(key, value);
+            return updated;
+        });
+    }
+
+    @Override
+    public void remove(long hashKey, String key) {
+        this.stores.computeIfPresent(hashKey, (k, held) -> {
+            if (held.getValue(key) == null) {
+                return held;
+            }
+            Store updated = copy(hashKey, held);
+            updated.getValues().remove(key);
+            return updated.getValues().isEmpty() ? null : updated;
+        });
+    }
+
+    @Override
+    public byte[] get(long hashKey, String key) {
+        Store store = this.stores.get(hashKey);
+        return store == null ? null : store.getValue(key);
+    }
+
+    @Override
+    public Store getStore(long hashKey) {
+        Store store = this.stores.get(hashKey);
+        return store == null ? null : copy(hashKey, store);
+    }
+
+    @Override
+    public void putStore(Store store) {
+        this.stores.put(store.getKey(), copy(store.getKey(), store));
+    }
+
+    @Override
+    public void mergeStore(Store store) {
+        this.stores.compute(store.getKey(), (k, held) -> {
+            Store updated = copy(store.getKey(), held);
+            updated.putAbsent(store);
+            return updated;
+        });
+    }
+
+    @Override
+    public void removeStore(long hashKey) {
+        this.stores.remove(hashKey);
+    }
+
+    @Override
+    public boolean removeStoreIfSame(Store store) {
+        Store held = this.stores.get(store.getKey());
+        return held != null && held.sameValues(store) && this.stores.remove(store.getKey(), held); //Fails if the store was replaced since it was compared.
+    }
+
+    @Override
+    public List<Long> keysInRange(long from, long to) {
+        ArrayList<Long> keys = new ArrayList<>();
+        if (Long.compareUnsigned(to, from) > 0) {
+            keys.addAll(this.stores.subMap(from, false, to, true).keySet()); //Range from exclusive from, to inclusive to.
+        } else { //Handles wrap around range.
+            keys.addAll(this.stores.tailMap(from, false).keySet());
+            keys.addAll(this.stores.headMap(to, true).keySet());
+        }
+        return keys;
+    }
+
+    @Override
+    public List<Long> keys() {
+        return new ArrayList<>(this.stores.keySet());
+    }
+
+    /**
+     * Copies a store, so the copy can be changed without affecting readers
+     * of the original.
+     *
+     * @param hashKey The hash key of the store.
+     * @param store The store to copy, or null for an empty store.
+     * @return The copy.
+     */
+    private static Store copy(long hashKey, Store store) {
+        Store copy = new Store(hashKey);
+        if (store != null) {
+            copy.putAbsent(store);
+        }
+        return copy;
+    }
+}
@@ -2,6 +2,9 @@ package chorddht;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * An interface used to allow remote access to ChordNode objects over RMI.
@@ -10,19 +13,83 @@ import java.rmi.RemoteException;
  */
 public interface IChordNode extends Remote {
 
-    public IChordNode findSuccessor(int key) throws RemoteException;
+    public IChordNode findSuccessor(long key) throws RemoteException;
+
+    public LookupResult lookup(long key) throws RemoteException;
+
+    public LookupResult lookupRecursive(long key, int hops) throws RemoteException;
+
+    public LookupHop nextHop(long key) throws RemoteException;
 
     public byte[] get(String key) throws RemoteException;
 
     public IChordNode put(String key, byte[] value) throws RemoteException;
+
+    public IChordNode put(String key, byte[] value, int hops) throws RemoteException;
     
-    public IChordNode move(int key, Store store) throws RemoteException;
+    public IChordNode move(long key, Store store, int hops) throws RemoteException;
+
+    public IChordNode remove(String key, int hops) throws RemoteException;
+
+    public long adjustCount(String key, long delta, int hops) throws RemoteException;
+
+    public byte[] replace(String key, byte[] value, int hops) throws RemoteException;
+
+    public List<Long> takeStores(byte[] batch) throws RemoteException;
+
+    public byte[] getStoreBytes(String key, long hashKey) throws RemoteException;
+
+    public VersionedValue getVersioned(String key, long hashKey, long version) throws RemoteException;
+
+    public KeyFilter getKeyFilter() throws RemoteException;
+
+    public long getKeyFilterVersion() throws RemoteException;
+
+    public void putReplica(String key, long hashKey, byte[] value) throws RemoteException;
+
+    public void putReplicaStore(Store store) throws RemoteException;
+
+    public void removeReplica(String key, long hashKey) throws RemoteException;
+
+    public Finger[] getReplicaSet() throws RemoteException;
+
+    public BatchResult multiGet(Collection<String> keys) throws RemoteException;
 
-    public byte[] getStoreBytes(String key, int hashKey) throws RemoteException;
+    public BatchResult multiPut(Map<String, byte[]> values) throws RemoteException;
 
-    public int getKey() throws RemoteException;
+    public BatchResult getStoreBytesBatch(Collection<String> keys) throws RemoteException;
 
-    public IChordNode closestPrecedingNode(int key) throws RemoteException;
+    public BatchResult putOwned(Map<String, byte[]> values) throws RemoteException;
+
+    public byte[] getOwned(String key, long hashKey) throws RemoteException, NotOwnerException;
+
+    public BatchResult getOwnedBatch(Collection<String> keys) throws RemoteException;
+
+    public BatchResult holdsOwnedBatch(Collection<String> keys) throws RemoteException;
+
+    public void putOwned(String key, byte[] value) throws RemoteException, NotOwnerException;
+
+    public void putReplicas(Map<String, byte[]> values) throws RemoteException;
+
+    public long[] getReplicaDigests(long from, long to, int[] nodes) throws RemoteException;
+
+    public byte[] syncReplicaRange(long from, long to, byte[] batch, boolean recover) throws RemoteException;
+
+    public long openWrite(String key) throws RemoteException;
+
+    public long openEncodedWrite(String key) throws RemoteException;
+
+    public void appendWrite(long writeId, byte[] chunk) throws RemoteException;
+
+    public IChordNode commitWrite(long writeId) throws RemoteException;
+
+    public void commitReplicaWrite(long writeId) throws RemoteException;
+
+    public byte[] getRange(String key, long hashKey, long offset, int length) throws RemoteException;
+
+    public long getKey() throws RemoteException;
+
+    public IChordNode closestPrecedingNode(long key) throws RemoteException;
 
     public void notifyNode(IChordNode potentialPredecessor) throws RemoteException;
 
@@ -37,4 +104,8 @@ public interface IChordNode extends Remote {
     public void setSuccessor(Finger successor) throws RemoteException;
     
     public Finger[] getSuccessorList() throws RemoteException;
+
+    public String getHostName() throws RemoteException;
+
+    public String getTransportAddress() throws RemoteException;
 }
@@ -0,0 +1,192 @@
+package chorddht;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over the hash keys of the stores a process holds. A key the
+ * filter does not contain is certainly not held, so a client holding the
+ * filter of an owner can leave missing keys out of the batched gets it sends
+ * the owner. The management server reads the results of tasks this way, as
+ * they are asked for again and again until the task is done. Other single
+ * gets and existence checks do not use the filters, as their answer from the
+ * owner costs less than fetching its filter. Keys are added as they are
+ * stored. Keys cannot be taken out, so
+ * once stores have been handed away the owner builds a new filter.
+ *
+ * @author Dominic
+ */
+public class KeyFilter implements Serializable {
+
+    static final int BITS_PER_KEY = 10;         //Bits used for each key, giving about 1% false positives.
+    static final int HASHES = 7;                //Bits set for each key.
+    static final int MIN_KEYS = 1024;           //Fewest keys a filter is sized for.
+
+    private AtomicLongArray bits;               //The bits of the filter.
+    private int mask;                           //Amount of bits less one.
+    private int capacity;                       //Keys the filter was sized for.
+    private AtomicInteger added = new AtomicInteger(); //Keys added, counting keys added more than once.
+    private long id = new Random().nextLong();  //Tells this filter apart from ones built before or after it.
+    private AtomicLong changes = new AtomicLong(); //Words of the filter changed by adding keys.
+
+    /**
+     * Creates an empty filter for the given amount of keys.
+     *
+     * @param keys The amount of keys expected.
+     */
+    KeyFilter(int keys) {
+        this.capacity = Math.max(MIN_KEYS, keys);
+        long wanted = (long) this.capacity * BITS_PER_KEY;
+        int size = (int) Math.min(1 << 30, Long.highestOneBit(wanted - 1) << 1);
+        this.bits = new AtomicLongArray(Math.max(1, size / Long.SIZE));
+        this.mask = this.bits.length() * Long.SIZE - 1;
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param hashKey The hash key of the store.
+     */
+    void add(long hashKey) {
+        long second = secondHash(hashKey);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (int) (hashKey + i * second) & this.mask;
+            long word = 1L << bit;
+            if ((this.bits.get(bit >>> 6) & word) == 0 && (this.bits.getAndAccumulate(bit >>> 6, word, (a, b) -> a | b) & word) == 0) {
+                this.changes.incrementAndGet();
+            }
+        }
+        this.added.incrementAndGet();
+    }
+
+    /**
+     * Checks if a key may be in the filter.
+     *
+     * @param hashKey The hash key of the store.
+     * @return False if the store is certainly not held, true if it may be.
+     */
+    boolean mightContain(long hashKey) {
+        long second = secondHash(hashKey);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (int) (hashKey + i * second) & this.mask;
+            if ((this.bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the version of the filter, which changes whenever a key adds a bit
+     * to it, and differs between filters. Keys already in the filter do not
+     * change it.
+     *
+     * @return The version.
+     */
+    long version() {
+        return this.id + this.changes.get();
+    }
+
+    /**
+     * Checks if more keys have been added than the filter was sized for, so
+     * it gives more false positives than it should.
+     *
+     * @return A boolean representing if the filter should be rebuilt larger.
+     */
+    boolean isFull() {
+        return this.added.get() > this.capacity;
+    }
+
+    /**
+     * Gets the amount of keys added, counting keys added more than once, so
+     * at least the amount of keys held.
+     *
+     * @return The amount of keys added.
+     */
+    int added() {
+        return this.added.get();
+    }
+
+    private static long secondHash(long hashKey) {
+        long z = (hashKey ^ (hashKey >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (z ^ (z >>> 33)) | 1;
+    }
+
+    /**
+     * Holds the filters of other nodes, so that gets for missing keys can be
+     * answered without asking their owner. Once a filter is older than TTL,
+     * its version is checked with the owner and the filter only fetched again
+     * if it has changed, which bounds how long a key stored by someone else
+     * can be wrongly taken as missing.
+     */
+    static class Cache {
+
+        static final int TTL = Integer.getInteger("chorddht.keyFilterTtl", 1000); //In milliseconds. Time a fetched filter is used for.
+
+        private ConcurrentHashMap<IChordNode, Fetched> filters = new ConcurrentHashMap<>(); //Filters fetched, by the node they came from.
+
+        /**
+         * Checks if a node may hold a store, fetching its filter if the one
+         * held is too old and has changed since. Nodes that cannot give a
+         * filter are taken to hold every key.
+         *
+         * @param node The node to check.
+         * @param hashKey The hash key of the store.
+         * @return False if the node certainly does not hold the store.
+         */
+        boolean mightHold(IChordNode node, long hashKey) {
+            Fetched fetched = this.filters.get(node);
+            if (fetched == null || System.currentTimeMillis() - fetched.at >= TTL) {
+                try {
+                    long version = node.getKeyFilterVersion(); //Taken before the filter, so a change made while it is sent is fetched next time.
+                    fetched = fetched != null && fetched.version == version ? new Fetched(fetched.filter, version) : new Fetched(node.getKeyFilter(), version);
+                } catch (RemoteException e) {
+                    this.filters.remove(node);
+                    return true;
+                }
+                this.filters.put(node, fetched);
+                if (this.filters.size() > RoutingCache.MAX_RANGES) {
+                    this.filters.clear();
+                }
+            }
+            return fetched.filter == null || fetched.filter.mightContain(hashKey);
+        }
+
+        /**
+         * Adds a key to the held filter of a node, after a store was placed
+         * on it, so the store is not taken as missing before the filter is
+         * fetched again.
+         *
+         * @param node The node the store was placed on.
+         * @param hashKey The hash key of the store.
+         */
+        void added(IChordNode node, long hashKey) {
+            Fetched fetched = this.filters.get(node);
+            if (fetched != null && fetched.filter != null) {
+                fetched.filter.add(hashKey);
+            }
+        }
+
+        /**
+         * A filter, its version when fetched, and when it was last known to
+         * be current.
+         */
+        private static class Fetched {
+
+            final KeyFilter filter;                         //The filter, or null if the node has none.
+            final long version;                             //Version of the filter on the node when fetched. Keys added here do not change it.
+            final long at = System.currentTimeMillis();     //When the version was checked.
+
+            Fetched(KeyFilter filter, long version) {
+                this.filter = filter;
+                this.version = version;
+            }
+        }
+    }
+}
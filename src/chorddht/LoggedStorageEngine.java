@@ -0,0 +1,549 @@
+package chorddht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A storage engine that records every change to another engine in an append
+ * only log on disk, so a restarted node comes back holding its data. The log
+ * is compacted in the background into a snapshot of the whole engine. On
+ * start the snapshot is memory mapped and loaded, then the log written since
+ * it was taken is replayed.
+ *
+ * Changes are logged and made under a lock of the stripe of their hash key,
+ * so changes to different parts of the ring run at the same time, and the
+ * records of changes made at once are written to the log together.
+ *
+ * @author Dominic
+ */
+class LoggedStorageEngine implements StorageEngine, Runnable {
+
+    static final long SNAPSHOT_MAGIC = 0x43484f5244534e50L;     //Marks the start of a snapshot file.
+    static final long COMPACT_BYTES = Long.getLong("chorddht.logCompactBytes", 64L * 1024 * 1024); //Log written at which a snapshot is taken.
+    static final int SNAPSHOT_INTERVAL = Integer.getInteger("chorddht.snapshotInterval", 600) * 1000; //In milliseconds. Longest time changes stay only in the log.
+    static final boolean SYNC = Boolean.getBoolean("chorddht.logSync"); //If every change is forced to disk before it is acknowledged.
+    static final int CHECK_INTERVAL = 1000;         //In milliseconds. Delay between checks for whether a snapshot is due.
+    static final int MAP_WINDOW = 1 << 30;          //Largest part of a snapshot mapped at once.
+
+    static final byte PUT = 1;                      //Log record for put().
+    static final byte PUT_STORE = 2;                //Log record for putStore().
+    static final byte MERGE_STORE = 3;              //Log record for mergeStore().
+    static final byte REMOVE_STORE = 4;             //Log record for removeStore().
+    static final byte REMOVE = 5;                   //Log record for remove(), holding the key with an empty value.
+
+    private StorageEngine engine;                   //The engine holding the data.
+    private File directory;                         //Where the snapshot and logs are kept.
+    private String name;                            //Name of the node, used to name files.
+    private long generation;                        //Number of the log being written to.
+    private FileOutputStream logFile;               //The log being written to.
+    private DataOutputStream log;                   //Buffered writer of the log.
+    private long logged;                            //Bytes logged since the last snapshot was started.
+    private long lastSnapshot = System.currentTimeMillis(); //Time the last snapshot was started.
+    private Object[] stripes = new Object[1 << STRIPE_BITS]; //Held while a change to the hash keys of each stripe is logged and made, so the log and engine see them in the same order.
+    private ReentrantReadWriteLock changing = new ReentrantReadWriteLock(); //Read locked while a change is logged and made, write locked while the log is switched for a snapshot.
+    private Object logLock = new Object();          //Held while the log is written to or switched.
+    private ArrayDeque<Record> queue = new ArrayDeque<>(); //Records waiting to be written, oldest first. Guards itself and writing.
+    private boolean writing;                        //If a thread is writing the queued records.
+
+    /**
+     * Opens the log of the given node, loading any data it held into the
+     * given engine, and starts background compaction.
+     *
+     * @param engine The empty engine to hold the data.
+     * @param directory Where the snapshot and logs are kept.
+     * @param name The name of the node the engine is for.
+     */
+    LoggedStorageEngine(StorageEngine engine, File directory, String name) {
+        this.engine = engine;
+        this.directory = directory;
+        this.name = name.replaceAll("[^A-Za-z0-9]", "_");
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Object();
+        }
+        try {
+            directory.mkdirs();
+            long start = System.currentTimeMillis();
+            this.recover();
+            Utility.log("Recovered " + this.engine.keys().size() + " stores of " + name + " in " + (System.currentTimeMillis() - start) + "ms.");
+            this.openLog(this.generation);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not open the data log in " + directory, ex);
+        }
+        Thread thread = new Thread(this, name + "-compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void put(long hashKey, String key, byte[] value) {
+        this.change(PUT, new Store(hashKey, key, value), () -> this.engine.put(hashKey, key, value));
+    }
+
+    @Override
+    public void remove(long hashKey, String key) {
+        this.change(REMOVE, new Store(hashKey, key, new byte[0]), () -> this.engine.remove(hashKey, key));
+    }
+
+    @Override
+    public byte[] get(long hashKey, String key) {
+        return this.engine.get(hashKey, key);
+    }
+
+    @Override
+    public byte[] getRange(long hashKey, String key, long offset, int length) {
+        return this.engine.getRange(hashKey, key, offset, length);
+    }
+
+    /**
+     * Adds a value read from a file, logging it as a put() of the same value
+     * would be. The file is read twice, once for the checksum and once to
+     * write the record, so the value is never held whole on the heap.
+     */
+    @Override
+    public void put(long hashKey, String key, FileChannel source, int length) throws IOException {
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = ByteBuffer.allocate(Long.BYTES + 3 * Integer.BYTES + name.length) //The start of the record of a store holding only this value.
+                .putLong(hashKey).putInt(1).putInt(name.length).put(name).putInt(length).array();
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (long position = 0; position < length; position += buffer.limit()) {
+            readAt(source, buffer, position, length);
+            crc.update(buffer);
+        }
+        synchronized (this.stripes[StorageEngine.stripeOf(hashKey)]) {
+            this.changing.readLock().lock();
+            try {
+                synchronized (this.logLock) { //Written straight to the log, rather than queued, so the record is never held whole.
+                    this.log.writeByte(PUT);
+                    this.log.writeInt(header.length + length);
+                    this.log.writeLong(crc.getValue());
+                    this.log.write(header);
+                    for (long position = 0; position < length; position += buffer.limit()) {
+                        readAt(source, buffer, position, length);
+                        this.log.write(buffer.array(), 0, buffer.limit());
+                    }
+                    this.log.flush();
+                    if (SYNC) {
+                        this.logFile.getFD().sync();
+                    }
+                    this.logged += header.length + length;
+                }
+                this.engine.put(hashKey, key, source, length);
+            } finally {
+                this.changing.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Fills a buffer from a file, stopping at the end of the value.
+     *
+     * @param source The file.
+     * @param buffer The buffer, left ready to be read from.
+     * @param position Where in the file to read from.
+     * @param length The length of the value in the file.
+     */
+    private static void readAt(FileChannel source, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), length - position));
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended before the value did.");
+            }
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public Store getStore(long hashKey) {
+        return this.engine.getStore(hashKey);
+    }
+
+    @Override
+    public void putStore(Store store) {
+        this.change(PUT_STORE, store, () -> this.engine.putStore(store));
+    }
+
+    @Override
+    public void mergeStore(Store store) {
+        this.change(MERGE_STORE, store, () -> this.engine.mergeStore(store));
+    }
+
+    @Override
+    public void removeStore(long hashKey) {
+        this.change(REMOVE_STORE, new Store(hashKey), () -> this.engine.removeStore(hashKey));
+    }
+
+    @Override
+    public boolean removeStoreIfSame(Store store) {
+        synchronized (this.stripes[StorageEngine.stripeOf(store.getKey())]) { //Holds off other changes to the hash key between the check and the removal.
+            if (!store.sameValues(this.engine.getStore(store.getKey()))) {
+                return false;
+            }
+            this.removeStore(store.getKey());
+            return true;
+        }
+    }
+
+    @Override
+    public List<Long> keysInRange(long from, long to) {
+        return this.engine.keysInRange(from, to);
+    }
+
+    @Override
+    public List<Long> keys() {
+        return this.engine.keys();
+    }
+
+    @Override
+    public Map<Long, Long> digestsInRange(long from, long to) {
+        return this.engine.digestsInRange(from, to);
+    }
+
+    /**
+     * The compaction thread. Takes a snapshot once enough has been logged, or
+     * changes have waited long enough.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean due;
+            synchronized (this.logLock) {
+                due = this.logged >= COMPACT_BYTES || (this.logged > 0 && System.currentTimeMillis() - this.lastSnapshot >= SNAPSHOT_INTERVAL);
+            }
+            if (due) {
+                try {
+                    this.snapshot();
+                } catch (IOException ex) {
+                    Utility.log("Could not snapshot the data of " + this.name + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every store to a new snapshot, then deletes the logs it replaces.
+     * Changes are written to a new log while the snapshot is taken. Replaying
+     * that log over a snapshot that already holds some of its changes gives
+     * the same data, as every record says what a store holds afterwards.
+     */
+    void snapshot() throws IOException {
+        long snapshotGeneration;
+        List<Long> keys;
+        this.changing.writeLock().lock(); //Waits for changes logged to the old log to be made to the engine.
+        try {
+            synchronized (this.logLock) {
+                this.log.close();
+                this.openLog(this.generation + 1);
+                this.logged = 0;
+                this.lastSnapshot = System.currentTimeMillis();
+                snapshotGeneration = this.generation;
+                keys = this.engine.keys();
+            }
+        } finally {
+            this.changing.writeLock().unlock();
+        }
+        File temp = new File(this.directory, this.name + ".snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeLong(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            for (long key : keys) {
+                Store store = this.engine.getStore(key);
+                if (store != null) {
+                    byte[] record = store.encode();
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), this.snapshotFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Entry<Long, File> log : this.logFiles().headMap(snapshotGeneration).entrySet()) {
+            log.getValue().delete();
+        }
+    }
+
+    /**
+     * Loads the last snapshot, then replays the logs written since it was
+     * taken. A record cut short by a crash ends the replay of its log. Later
+     * logs were written after a restart, so are still replayed.
+     */
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        File snapshot = this.snapshotFile();
+        if (snapshot.exists()) {
+            snapshotGeneration = this.loadSnapshot(snapshot);
+        }
+        this.generation = snapshotGeneration;
+        for (Entry<Long, File> log : this.logFiles().tailMap(snapshotGeneration).entrySet()) {
+            this.generation = log.getKey() + 1; //Never append to a log that may end in a partial record.
+            if (!this.replay(log.getValue())) {
+                Utility.log("Log " + log.getValue().getName() + " ends in a partial record, which was dropped.");
+            }
+        }
+    }
+
+    /**
+     * Loads a snapshot into the engine by memory mapping it.
+     *
+     * @param snapshot The snapshot file.
+     * @return The generation of the first log not included in the snapshot.
+     */
+    private long loadSnapshot(File snapshot) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW));
+            if (window.getLong() != SNAPSHOT_MAGIC) {
+                throw new IOException(snapshot + " is not a snapshot.");
+            }
+            long snapshotGeneration = window.getLong();
+            long windowStart = 0;
+            while (windowStart + window.position() < size) {
+                if (window.remaining() < Integer.BYTES || window.remaining() < Integer.BYTES + window.getInt(window.position())) { //Map the next part of the file.
+                    windowStart += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, MAP_WINDOW));
+                }
+                int length = window.getInt();
+                ByteBuffer record = window.slice();
+                record.limit(length);
+                window.position(window.position() + length);
+                this.engine.putStore(Store.decode(record));
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Applies the records of a log to the engine.
+     *
+     * @param log The log file.
+     * @return A boolean representing if the log was read to its end without
+     * finding a partial or damaged record.
+     */
+    private boolean replay(File log) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    return true;
+                }
+                byte[] record;
+                long checksum;
+                try {
+                    record = new byte[in.readInt()];
+                    checksum = in.readLong();
+                    in.readFully(record);
+                } catch (EOFException | NegativeArraySizeException | OutOfMemoryError e) {
+                    return false;
+                }
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    return false;
+                }
+                this.apply((byte) op, Store.decode(ByteBuffer.wrap(record)));
+            }
+        }
+    }
+
+    private void apply(byte op, Store store) {
+        switch (op) {
+            case PUT:
+                for (Entry<String, byte[]> value : store.getValues().entrySet()) {
+                    this.engine.put(store.getKey(), value.getKey(), value.getValue());
+                }
+                break;
+            case MERGE_STORE:
+                this.engine.mergeStore(store);
+                break;
+            case PUT_STORE:
+                this.engine.putStore(store);
+                break;
+            case REMOVE_STORE:
+                this.engine.removeStore(store.getKey());
+                break;
+            case REMOVE:
+                for (String key : store.getValues().keySet()) {
+                    this.engine.remove(store.getKey(), key);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record " + op);
+        }
+    }
+
+    /**
+     * Logs a change, then makes it to the engine. Changes to the same stripe
+     * are made one at a time, so they are made in the order they are logged.
+     *
+     * @param op The kind of change.
+     * @param store The store the change is made with.
+     * @param apply Makes the change to the engine.
+     */
+    private void change(byte op, Store store, Runnable apply) {
+        Record record = new Record(op, store.encode());
+        synchronized (this.stripes[StorageEngine.stripeOf(store.getKey())]) {
+            this.changing.readLock().lock();
+            try {
+                this.append(record);
+                apply.run();
+            } finally {
+                this.changing.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes a record to the log, returning once it is written. Changes that
+     * cannot be logged are refused, so nothing is acknowledged that would be
+     * lost on restart.
+     *
+     * Records are group committed: the first thread to queue a record while
+     * none is writing writes every record queued, with one flush, and one
+     * sync if chorddht.logSync is set, while the others wait.
+     *
+     * @param record The record.
+     */
+    private void append(Record record) {
+        ArrayList<Record> batch;
+        boolean interrupted = false;
+        synchronized (this.queue) {
+            this.queue.add(record);
+            while (this.writing && !record.written) {
+                try {
+                    this.queue.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; //Still waits, as the record may yet be written.
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (record.written) {
+                record.check(this.name);
+                return;
+            }
+            this.writing = true;
+            batch = new ArrayList<>(this.queue);
+            this.queue.clear();
+        }
+        IOException error = null;
+        synchronized (this.logLock) {
+            try {
+                for (Record queued : batch) {
+                    this.log.write(queued.bytes);
+                    this.logged += queued.bytes.length;
+                }
+                this.log.flush();
+                if (SYNC) {
+                    this.logFile.getFD().sync();
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        synchronized (this.queue) {
+            for (Record queued : batch) {
+                queued.error = error;
+                queued.written = true;
+            }
+            this.writing = false;
+            this.queue.notifyAll();
+        }
+        record.check(this.name);
+    }
+
+    private void openLog(long generation) throws IOException {
+        this.generation = generation;
+        this.logFile = new FileOutputStream(new File(this.directory, this.name + "-" + generation + ".log"), true);
+        this.log = new DataOutputStream(new BufferedOutputStream(this.logFile, 1 << 16));
+    }
+
+    private File snapshotFile() {
+        return new File(this.directory, this.name + ".snapshot");
+    }
+
+    /**
+     * Gets the logs of this node, by generation.
+     *
+     * @return The log files in generation order.
+     */
+    private TreeMap<Long, File> logFiles() {
+        TreeMap<Long, File> logs = new TreeMap<>();
+        String prefix = this.name + "-";
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(prefix) && fileName.endsWith(".log")) {
+                    try {
+                        logs.put(Long.parseLong(fileName.substring(prefix.length(), fileName.length() - 4)), file);
+                    } catch (NumberFormatException e) {
+                        //Not one of our logs, such as the log of a node whose name has ours as a prefix.
+                    }
+                }
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * A change framed as it is written to the log: the kind of change, the
+     * length and checksum of the store, then the store.
+     */
+    private static class Record {
+
+        byte[] bytes;           //The framed record.
+        boolean written;        //If a writer has tried to write it. Guarded by the queue.
+        IOException error;      //Why it could not be written, if it could not.
+
+        Record(byte op, byte[] store) {
+            CRC32 crc = new CRC32();
+            crc.update(store);
+            this.bytes = ByteBuffer.allocate(1 + Integer.BYTES + Long.BYTES + store.length)
+                    .put(op).putInt(store.length).putLong(crc.getValue()).put(store).array();
+        }
+
+        /**
+         * Refuses the change if its record could not be written.
+         *
+         * @param name Name of the node, for the message.
+         */
+        void check(String name) {
+            if (this.error != null) {
+                throw new UncheckedIOException("Could not write to the data log of " + name, this.error);
+            }
+        }
+    }
+}
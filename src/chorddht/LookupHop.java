@@ -0,0 +1,44 @@
+package chorddht;
+
+import java.io.Serializable;
+
+/**
+ * A single step of an iterative lookup. Holds the next node to ask and
+ * whether that node is already known to be the owner of the key.
+ *
+ * @author Dominic
+ */
+public class LookupHop implements Serializable {
+
+    private Finger finger;      //The next node in the lookup, or the owner.
+    private boolean owner;      //If the finger is the node responsible for the key.
+
+    /**
+     * Creates a lookup step.
+     *
+     * @param finger The next node to ask, or the owner of the key.
+     * @param owner If the given finger is the owner of the key.
+     */
+    public LookupHop(Finger finger, boolean owner) {
+        this.finger = finger;
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the node this step points to.
+     *
+     * @return The Finger of the next node, or of the owner.
+     */
+    public Finger getFinger() {
+        return finger;
+    }
+
+    /**
+     * Checks if this step resolved the owner of the key.
+     *
+     * @return true if the finger is the owner of the key.
+     */
+    public boolean isOwner() {
+        return owner;
+    }
+}
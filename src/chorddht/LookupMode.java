@@ -0,0 +1,26 @@
+package chorddht;
+
+/**
+ * Defines how a node resolves the successor of a key. Recursive lookups forward
+ * the request from node to node, iterative lookups are driven entirely by the
+ * node that started the lookup.
+ *
+ * @author Dominic
+ */
+public enum LookupMode {
+    RECURSIVE, ITERATIVE;
+
+    /**
+     * Converts a given string to a LookupMode. Unknown strings fall back to
+     * the recursive mode.
+     *
+     * @param mode The string to convert to a mode.
+     * @return The LookupMode that the string associates with.
+     */
+    public static LookupMode stringToMode(String mode) {
+        if (mode != null && mode.trim().equalsIgnoreCase("iterative")) {
+            return ITERATIVE;
+        }
+        return RECURSIVE;
+    }
+}
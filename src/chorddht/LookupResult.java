@@ -0,0 +1,89 @@
+package chorddht;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a lookup in the Chord ring. Contains the owner of the key
+ * along with the nodes visited and the time taken to find it.
+ *
+ * @author Dominic
+ */
+public class LookupResult implements Serializable {
+
+    private Finger owner;                               //The node responsible for the key.
+    private ArrayList<Finger> path = new ArrayList<>(); //Nodes visited to find the owner, in order.
+    private long elapsed;                               //Time taken for the lookup, in milliseconds.
+
+    /**
+     * Adds a node to the path of this lookup.
+     *
+     * @param hop The node that was visited.
+     */
+    void addHop(Finger hop) {
+        this.path.add(hop);
+    }
+
+    /**
+     * Adds a node to the start of the path of this lookup. Used by recursive
+     * lookups, where the path is built as the call returns.
+     *
+     * @param hop The node that was visited.
+     */
+    void prependHop(Finger hop) {
+        this.path.add(0, hop);
+    }
+
+    /**
+     * Gets the owner of the key that was looked up.
+     *
+     * @return The Finger of the node responsible for the key.
+     */
+    public Finger getOwner() {
+        return owner;
+    }
+
+    void setOwner(Finger owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the amount of hops taken to find the owner. The node that started
+     * the lookup is not counted.
+     *
+     * @return The amount of hops taken.
+     */
+    public int getHops() {
+        return Math.max(0, this.path.size() - 1);
+    }
+
+    /**
+     * Gets the nodes visited during the lookup, starting with the node that
+     * started it.
+     *
+     * @return The list of nodes visited.
+     */
+    public List<Finger> getPath() {
+        return path;
+    }
+
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    void setElapsed(long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder route = new StringBuilder();
+        for (Finger f : this.path) {
+            route.append(Long.toUnsignedString(f.getKey())).append(" -> ");
+        }
+        String ownerKey = this.owner == null ? "unknown" : Long.toUnsignedString(this.owner.getKey());
+        route.append(ownerKey);
+        return "Owner " + ownerKey + " in " + this.getHops() + " hops (" + this.elapsed + "ms): " + route;
+    }
+}
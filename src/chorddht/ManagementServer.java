@@ -9,18 +9,25 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tasksubmissionsystem.RESTInterface;
@@ -34,8 +41,13 @@ public class ManagementServer implements RESTInterface, Runnable{
     
     private HashMap<Task,Boolean> files;            //Holds a object describing a task to be carried out and a corressponding Boolean indicating if processing is finished.
     private IChordNode node;                        //The node used to interact with the DHT back end.
+    private RoutingCache routes = new RoutingCache(null, new ValueCache(), new KeyFilter.Cache()); //Owners of keys seen before, so they can be reached without routing through the node, with copies of popular results and the key filters of owners.
+    private AsyncChordClient client = new AsyncChordClient(this.routes); //Makes DHT requests in parallel for the maintenance thread.
+    private ContentStore content = new ContentStore(this.routes); //Stores resources and results once by their contents, and remembers results already made.
     private Finger[] successorList;                 //The successor list of the node used as a gateway into DHT. Used incase the node itself fails.
-    private BlockingQueue taskQueue;                //The list of tasks to process.
+    private TaskDispatcher taskQueue;               //The list of tasks to process, handed to workers holding their resource.
+    private ConcurrentHashMap<Long, Upload> uploads = new ConcurrentHashMap<>();                  //Tasks being uploaded in chunks, by upload id.
+    private AtomicLong nextUploadId = new AtomicLong();                                           //Id given to the next chunked upload.
     boolean fileStoreChange = false;                //Indicates if there was a change in the file store.
     //Various constants used for formatting and generation of responses for the REST requests.
     public static String PREFIX_DOMAIN = "http://localhost:8080/myapp/rest/";
@@ -47,6 +59,7 @@ public class ManagementServer implements RESTInterface, Runnable{
     private static int TASK_CAPACITY = 255;                     //Max amount of requests that this node can hold.
     private static int MISSING_TIME_LIMIT = 60 * 1000;          //In milliseconds. Time for task to determined not in the DHT ring anymore.
     private static int LOOP_INTERVAL = 1000;                    //In milliseconds. Delay between loops in maintenance thread.
+    private static int UPLOAD_EXPIRY = 5 * 60 * 1000;           //In milliseconds. Time an upload may go without a chunk before it is dropped.
 
 
     /**
@@ -54,8 +67,25 @@ public class ManagementServer implements RESTInterface, Runnable{
      */
     public ManagementServer() {
         this.files = new HashMap<>();
-        this.taskQueue = new ArrayBlockingQueue<>(TASK_CAPACITY);
+        this.taskQueue = new TaskDispatcher(TASK_CAPACITY);
         this.loadFileList();
+        this.requeueUnfinished();
+    }
+
+    /**
+     * Queues the unfinished tasks of a loaded file list, as the leases they were held under were lost with the
+     * previous run. Tasks of failed workers are otherwise handed out again when their lease runs out.
+     */
+    private void requeueUnfinished() {
+        for (Entry<Task, Boolean> entry : this.files.entrySet()) {
+            if (!entry.getValue() && entry.getKey().getType() != TaskType.UNDEFINED) {
+                try {
+                    this.taskQueue.add(entry.getKey());
+                } catch (IllegalStateException ex) {
+                    log("Task queue full, unable to queue " + entry.getKey().getFileName() + " with task " + entry.getKey().getType());
+                }
+            }
+        }
     }
     
     public static void main(String[] args){
@@ -100,6 +130,9 @@ public class ManagementServer implements RESTInterface, Runnable{
                 case "list":
                     server.showList();
                     break;
+                case "dispatch":
+                    System.out.println(server.getTaskQueue().describe());
+                    break;
             }
         }
     }
@@ -155,6 +188,7 @@ public class ManagementServer implements RESTInterface, Runnable{
     public void connectToNode(String nodeName){
         try {
             this.node = (IChordNode) Naming.lookup(RMI_SERVER_NAME + nodeName);
+            this.routes.setGateway(this.node);
             this.successorList = this.node.getSuccessorList();
             log("Connected to node " + nodeName);
         } catch (NotBoundException | MalformedURLException | RemoteException ex) {
@@ -184,16 +218,179 @@ public class ManagementServer implements RESTInterface, Runnable{
         TaskType taskType = TaskType.stringToType(typeString);
         Task task = new Task(fileName, taskType);
         if (this.submitTask(task.requestName(), bytes)) { //If putting task in DHT is successful
+            String digest = ContentStore.digest(bytes);
+            if (!this.reuseResults(task, digest)) {
+                this.queueTask(task, ContentStore.contentKey(digest));
+            }
+        }
+    }
+
+    /**
+     * Marks a task done straight away if the same resource has been processed with the same task type before.
+     * @param task The task to check.
+     * @param digest The digest of the resource of the task.
+     * @return A boolean representing if the results of an earlier task were reused.
+     */
+    private boolean reuseResults(Task task, String digest) {
+        try {
+            String result = this.content.cachedResult(digest, task.getType());
+            if (result == null) {
+                return false;
+            }
+            if (!this.content.link(task.resultName(), result)) {
+                return false; //The results have since been removed.
+            }
+        } catch (RemoteException ex) {
+            return false; //Processed again instead.
+        }
+        synchronized (this.files) {
+            this.files.put(task, true);
+        }
+        log("Reused results for task " + task.getFileName() + " with type " + task.getType());
+        this.fileStoreChange = true;
+        return true;
+    }
+
+    /**
+     * Records a task whose resource is in the DHT and queues it for processing, by the workers holding the resource
+     * if there are any.
+     * @param task The task to queue.
+     * @param inputKey The DHT key the resource is read from.
+     */
+    private void queueTask(Task task, String inputKey) {
+        List<String> hosts = this.inputHosts(inputKey);
+        synchronized (this.files) {
             this.files.put(task, false); //Puts into local file directory log
-            this.taskQueue.add(task);
-            log("Put task " + fileName + " with type " + typeString);
-            this.fileStoreChange = true;
+        }
+        try {
+            this.taskQueue.add(task, hosts);
+        } catch (IllegalStateException ex) { //Queue full, so the task is not listed with nothing left to queue it, and its resource is given up.
+            synchronized (this.files) {
+                this.files.remove(task);
+            }
+            try {
+                this.content.release(task.requestName());
+            } catch (RemoteException releaseEx) {
+                log("Unable to release " + task.getFileName() + " with task " + task.getType());
+            }
+            throw ex;
+        }
+        log("Put task " + task.getFileName() + " with type " + task.getType());
+        this.fileStoreChange = true;
+    }
+
+    /**
+     * Finds the hosts holding a key: the host of its owner and the hosts of the owner's replicas.
+     * @param key The DHT key.
+     * @return The names of the hosts, or none if the owner could not be reached.
+     */
+    private List<String> inputHosts(String key) {
+        ArrayList<String> hosts = new ArrayList<>();
+        try {
+            for (Finger holder : this.routes.findSuccessor(Utility.hash(key)).getReplicaSet()) {
+                hosts.add(holder.getNode().getHostName());
+            }
+        } catch (RemoteException | RuntimeException ex) {
+            log("Unable to find the holders of " + key + ", any worker may process it.");
+        }
+        return hosts;
+    }
+
+    /**
+     * Used by the REST interface to start putting a task within the DHT in chunks. The chunks are spooled to a file
+     * here, and the digest of the resource made as they arrive, so the resource is never held whole here and is only
+     * sent on to the DHT if its contents are not held there already.
+     * @param fileName The name of the resource uploaded to the DHT.
+     * @param typeString The type of requests to conduct on the resource.
+     * @return The id to send the chunks of the resource with.
+     */
+    @Override
+    public long openTask(String fileName, String typeString) throws RemoteException {
+        Task task = new Task(fileName, TaskType.stringToType(typeString));
+        long uploadId = this.nextUploadId.incrementAndGet();
+        try {
+            this.uploads.put(uploadId, new Upload(task));
+        } catch (IOException ex) {
+            throw new RemoteException("Unable to start upload of " + fileName + ".", ex);
+        }
+        return uploadId;
+    }
+
+    /**
+     * Adds the next chunk of a task being uploaded.
+     * @param uploadId The id of the upload.
+     * @param chunk The next bytes of the resource.
+     */
+    @Override
+    public void appendTask(long uploadId, byte[] chunk) throws RemoteException {
+        Upload upload = this.getUpload(uploadId);
+        synchronized (upload) {
+            checkOpen(upload, uploadId);
+            try {
+                upload.out.write(chunk);
+            } catch (IOException ex) {
+                throw new RemoteException("Unable to spool chunk of " + upload.task.getFileName() + ".", ex);
+            }
+            upload.digest.update(chunk);
+            upload.lastTouched = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Finishes a chunked task upload, storing the resource by its contents, and queues the task for processing unless
+     * the same resource has been processed with the same task type before.
+     * @param uploadId The id of the upload.
+     */
+    @Override
+    public void commitTask(long uploadId) throws RemoteException {
+        Upload upload = this.getUpload(uploadId);
+        this.uploads.remove(uploadId);
+        String digest;
+        synchronized (upload) { //Waits for a chunk still being added.
+            checkOpen(upload, uploadId);
+            try {
+                upload.out.close();
+                digest = ContentStore.toHex(upload.digest);
+                this.content.putFile(upload.task.requestName(), upload.file, digest);
+            } catch (IOException ex) {
+                throw new RemoteException("Unable to store " + upload.task.getFileName() + ".", ex);
+            } finally {
+                upload.delete();
+            }
+        }
+        if (!this.reuseResults(upload.task, digest)) {
+            this.queueTask(upload.task, ContentStore.contentKey(digest));
+        }
+    }
+
+    /**
+     * Gets a chunked task upload in progress.
+     * @param uploadId The id of the upload.
+     * @return The upload.
+     */
+    private Upload getUpload(long uploadId) throws RemoteException {
+        Upload upload = this.uploads.get(uploadId);
+        if (upload == null) {
+            throw new RemoteException("No task upload with id " + uploadId + ".");
+        }
+        return upload;
+    }
+
+    /**
+     * Checks a chunked task upload is still open, once its monitor is held, as it may have expired or been committed
+     * since it was looked up.
+     * @param upload The upload.
+     * @param uploadId The id of the upload.
+     */
+    private static void checkOpen(Upload upload, long uploadId) throws RemoteException {
+        if (upload.deleted) {
+            throw new RemoteException("No task upload with id " + uploadId + ".");
         }
     }
     
     public boolean submitTask(String key, byte[] value){
         try{
-            this.node.put(key, value);
+            this.content.put(key, value);
             return true;
         } catch (RemoteException ex) {
             log("Unable to put task.");
@@ -283,7 +480,31 @@ public class ManagementServer implements RESTInterface, Runnable{
      */
     @Override
     public byte[] getResults(String fileName, String taskType) throws RemoteException {
-        return this.node.get(fileName + "Results" + taskType);
+        return this.content.get(fileName + "Results" + taskType);
+    }
+
+    /**
+     * Finds the DHT key the results of a specified Task are read from, once per download, so every chunk of it comes
+     * from the same results even if the task is processed again meanwhile.
+     * @param fileName The name of the resource to find results for.
+     * @param taskType The type of task that was conducted on the resource.
+     * @return The key to read the results from with getResultsRange, or null if there are no results.
+     */
+    @Override
+    public String resolveResults(String fileName, String taskType) throws RemoteException {
+        return this.content.resolve(fileName + "Results" + taskType);
+    }
+
+    /**
+     * Gets part of the results of a specified Task, so large results can be sent on in chunks.
+     * @param resultsKey The key the results are read from, given by resolveResults.
+     * @param offset The position in the results to start reading from.
+     * @param length The most bytes to read.
+     * @return The bytes read, fewer than asked for at the end of the results, or null if there are no results.
+     */
+    @Override
+    public byte[] getResultsRange(String resultsKey, long offset, int length) throws RemoteException {
+        return ChunkedTransfer.readRange(this.node, resultsKey, offset, length);
     }
     
     /**
@@ -328,6 +549,7 @@ public class ManagementServer implements RESTInterface, Runnable{
                 nodeAlive = false;
             }
 
+            this.expireUploads();
             if (nodeAlive) {
                 this.maintainFiles();
                 if(this.fileStoreChange || elapsed % (LOOP_INTERVAL * 30) == 0){ //Ensures not saving pointlessly every cycle.
@@ -364,6 +586,7 @@ public class ManagementServer implements RESTInterface, Runnable{
             try { //Look for next alive node to use to interact with DHT
                 if(f.getNode().ping()){
                     this.node = (IChordNode) f.getNode();
+                    this.routes.setGateway(this.node);
                     return;
                 }
             } catch (RemoteException ex) {
@@ -373,17 +596,83 @@ public class ManagementServer implements RESTInterface, Runnable{
         }
     }
 
+    /**
+     * Drops uploads that have not received a chunk for UPLOAD_EXPIRY, as their client has given up on them, deleting the
+     * chunks spooled.
+     */
+    private void expireUploads() {
+        this.uploads.values().removeIf(upload -> {
+            synchronized (upload) { //Waits for a chunk still being added, which touches the upload again.
+                long idle = System.currentTimeMillis() - upload.lastTouched;
+                if (upload.deleted) {
+                    return true;
+                } else if (idle <= UPLOAD_EXPIRY) {
+                    return false;
+                }
+                upload.delete();
+                log("Dropped upload of " + upload.task.getFileName() + " with task " + upload.task.getType() + ", no chunk received for " + idle + "ms");
+                return true;
+            }
+        });
+    }
+
     /**
      * Check if files in the file list are still accessible on the DHT. If they're not, they're removed from the list.
+     * All keys are checked in one batch, which sends a single request to each node holding some of them, to all nodes at
+     * once. Only whether each key is held is sent back, not its value. The file list is not locked while checking, so tasks
+     * can be submitted meanwhile.
      */
     private void maintainFiles() {
+        ArrayList<String> keys;
+        synchronized(this.files){
+            keys = this.checkedKeys();
+        }
+        BatchResult found;
+        try {
+            found = this.client.multiHoldsAsync(keys, LOOP_INTERVAL * 5).join();
+        } catch (CompletionException ex) {
+            found = new BatchResult(); //Nothing could be checked, so every task counts as missing this round.
+        }
+        ArrayList<Task> removed = new ArrayList<>();
         synchronized(this.files){
             Iterator iter = this.files.entrySet().iterator();
             while(iter.hasNext()){
                 Entry<Task,Boolean> entry = (Entry)iter.next();
-                this.checkFile(entry.getKey(), entry.getValue(), iter);
+                if (this.checkFile(entry.getKey(), entry.getValue(), iter, found)) {
+                    removed.add(entry.getKey());
+                }
             }
         }
+        for (Task task : removed) {
+            this.releaseTask(task);
+        }
+    }
+
+    /**
+     * Removes what is left in the DHT of a task taken off the file list, so content nothing else references is freed.
+     * @param task The task removed.
+     */
+    private void releaseTask(Task task) {
+        try {
+            this.content.release(task.requestName());
+            this.content.release(task.resultName());
+        } catch (RemoteException ex) {
+            log("Unable to release " + task.getFileName() + " with task " + task.getType());
+        }
+    }
+
+    /**
+     * Gets the DHT key that has to exist for each task in the file list. The request while processing, the results after.
+     * @return The keys to check.
+     */
+    private ArrayList<String> checkedKeys() {
+        ArrayList<String> keys = new ArrayList<>();
+        for (Entry<Task, Boolean> entry : this.files.entrySet()) {
+            if (!entry.getKey().getType().equals(TaskType.UNDEFINED)) {
+                keys.add(entry.getValue() ? entry.getKey().resultName() : entry.getKey().requestName());
+            }
+        }
+        return keys;
     }
 
     /**
@@ -394,17 +683,15 @@ public class ManagementServer implements RESTInterface, Runnable{
      * @param finishedProcessing Boolean to if the resource is done being
      * processed.
      * @param iter The iterator used to remove the object, after the check.
+     * @param found The batch of keys checked in the DHT for this round of checks.
+     * @return A boolean representing if the task was removed.
      */
-    private void checkFile(Task key, boolean finishedProcessing, Iterator iter) {
+    private boolean checkFile(Task key, boolean finishedProcessing, Iterator iter, BatchResult found) {
         try {
             if (!key.getType().equals(TaskType.UNDEFINED)) {
-                if (finishedProcessing) {
-                    this.node.get(key.resultName());
-                } else {
-                    this.node.get(key.requestName());
-                    if (!this.taskQueue.contains(key)) { //If task not queue & not done processing, add it in. Maybe a node failed processing it?
-                        this.taskQueue.add(key);
-                    }
+                String checkedKey = finishedProcessing ? key.resultName() : key.requestName();
+                if (found.getValues().get(checkedKey) == null) {
+                    throw new RemoteException("Missing " + checkedKey + ": " + found.getErrors().get(checkedKey));
                 }
             }
             key.resetMissingTime();
@@ -416,14 +703,45 @@ public class ManagementServer implements RESTInterface, Runnable{
                 iter.remove();
                 log("Removed " + key.getFileName() + " with task " + key.getType());
                 this.fileStoreChange = true;
+                return true;
             }
         }
+        return false;
     }
 
-    public BlockingQueue getTaskQueue() {
+    public TaskDispatcher getTaskQueue() {
         return taskQueue;
     }
 
-    
-    
+    /**
+     * A task being uploaded in chunks, spooled to a file.
+     */
+    private static class Upload {
+
+        Task task;                                              //The task the upload is for.
+        Path file;                                              //The file the chunks are spooled to.
+        OutputStream out;                                       //Writes to the file.
+        boolean deleted;                                        //If the upload was committed or expired. Guarded by the upload.
+        MessageDigest digest = ContentStore.newDigest();        //Digest of the chunks received so far.
+        volatile long lastTouched = System.currentTimeMillis(); //Time the last chunk was received.
+
+        Upload(Task task) throws IOException {
+            this.task = task;
+            this.file = Files.createTempFile("chorddht-upload-", ".part");
+            this.out = Files.newOutputStream(this.file);
+        }
+
+        /**
+         * Deletes the chunks spooled.
+         */
+        void delete() {
+            this.deleted = true;
+            try {
+                this.out.close();
+                Files.deleteIfExists(this.file);
+            } catch (IOException ex) {
+                log("Unable to delete upload spool " + this.file);
+            }
+        }
+    }
 }
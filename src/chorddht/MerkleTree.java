@@ -0,0 +1,197 @@
+package chorddht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A hash tree over the stores in a range of the ring. The range is split into
+ * LEAVES equal parts, each leaf holding a digest of the stores in its part,
+ * and each node above a digest of its two children. Two nodes holding the
+ * same range compare roots, then only the children of nodes that differ, to
+ * find the parts of the range they disagree on in a few small exchanges.
+ *
+ * Nodes are numbered as in a binary heap. The root is 1, the children of n
+ * are 2n and 2n + 1, and the leaves are LEAVES to 2 * LEAVES - 1.
+ *
+ * @author Dominic
+ */
+class MerkleTree {
+
+    static final int DEPTH = 10;                    //Levels below the root.
+    static final int LEAVES = 1 << DEPTH;           //Parts the range is split into.
+
+    private long from;                              //The exclusive start of the range.
+    private long to;                                //The inclusive end of the range.
+    private long leafWidth;                         //Keys in the range covered by each leaf, rounded up.
+    private long[] nodes = new long[2 * LEAVES];    //Digest of every node, by heap number.
+    private long builtAt = System.currentTimeMillis(); //When the tree was built.
+
+    /**
+     * Builds the tree over the stores in the range (from, to] of an engine,
+     * from the digests the engine holds of them.
+     *
+     * @param engine The engine holding the stores.
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range. The whole ring if equal to
+     * from.
+     */
+    MerkleTree(StorageEngine engine, long from, long to) {
+        this.from = from;
+        this.to = to;
+        long width = (to - from - 1) & ChordNode.KEY_MASK; //One less than the keys in the range, so the whole ring fits.
+        this.leafWidth = Long.divideUnsigned(width, LEAVES) + 1;
+        for (Entry<Long, Long> digest : engine.digestsInRange(from, to).entrySet()) {
+            this.nodes[LEAVES + this.leafOf(digest.getKey())] += digest.getValue(); //Summed, so the order stores are added in does not matter.
+        }
+        for (int node = LEAVES - 1; node >= 1; node--) {
+            this.nodes[node] = mix(this.nodes[2 * node] * 31 + this.nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Gets the digests of the given nodes.
+     *
+     * @param nodes The heap numbers of the nodes.
+     * @return The digest of each node, in the same order.
+     */
+    long[] getDigests(int[] nodes) {
+        long[] digests = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            digests[i] = this.nodes[nodes[i]];
+        }
+        return digests;
+    }
+
+    long getBuiltAt() {
+        return this.builtAt;
+    }
+
+    /**
+     * Checks if this tree covers the given range.
+     *
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range.
+     * @return A boolean representing if the tree is over exactly that range.
+     */
+    boolean covers(long from, long to) {
+        return this.from == from && this.to == to;
+    }
+
+    /**
+     * Gets the part of the range covered by consecutive leaves.
+     *
+     * @param first The number of the first leaf, from 0.
+     * @param last The number of the last leaf, from 0.
+     * @return The exclusive start and inclusive end of the part.
+     */
+    long[] leafRange(int first, int last) {
+        long start = (this.from + first * this.leafWidth) & ChordNode.KEY_MASK;
+        long end = last == LEAVES - 1 ? this.to : (this.from + (last + 1) * this.leafWidth) & ChordNode.KEY_MASK;
+        return new long[]{start, end};
+    }
+
+    /**
+     * Finds the leaves where this tree differs from another over the same
+     * range, asking for the other trees digests one level at a time.
+     *
+     * @param other Gives the digests of the given nodes of the other tree.
+     * @return The numbers of the differing leaves, from 0, in ring order.
+     */
+    List<Integer> diff(DigestSource other) throws Exception {
+        ArrayList<Integer> differing = new ArrayList<>();
+        int[] level = {1};
+        while (level.length > 0) {
+            long[] theirs = other.getDigests(level);
+            ArrayList<Integer> next = new ArrayList<>();
+            for (int i = 0; i < level.length; i++) {
+                if (theirs[i] == this.nodes[level[i]]) {
+                    continue;
+                }
+                if (level[i] >= LEAVES) {
+                    differing.add(level[i] - LEAVES);
+                } else {
+                    next.add(2 * level[i]);
+                    next.add(2 * level[i] + 1);
+                }
+            }
+            level = next.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return differing;
+    }
+
+    private int leafOf(long key) {
+        long offset = (key - this.from - 1) & ChordNode.KEY_MASK;
+        return (int) Long.divideUnsigned(offset, this.leafWidth);
+    }
+
+    /**
+     * Makes a digest of a store that does not depend on the order its values
+     * are held in.
+     *
+     * @param store The store.
+     * @return The digest.
+     */
+    static long digest(Store store) {
+        long digest = storeDigest(store.getKey());
+        for (Entry<String, byte[]> value : store.getValues().entrySet()) {
+            digest += digest(value.getKey(), value.getValue());
+        }
+        return digest;
+    }
+
+    /**
+     * Makes the part of the digest of a store given by one of its values. A
+     * store digest is storeDigest() of its hash key plus this for each value.
+     *
+     * @param key The key of the value.
+     * @param value The bytes of the value.
+     * @return The digest.
+     */
+    static long digest(String key, byte[] value) {
+        return valueDigest(fnv(value, value.length, keyDigest(key)));
+    }
+
+    static long storeDigest(long hashKey) {
+        return mix(hashKey);
+    }
+
+    /**
+     * Starts the hash of a value, for values hashed a part at a time with
+     * fnv() and finished with valueDigest().
+     *
+     * @param key The key of the value.
+     * @return The hash of the key.
+     */
+    static long keyDigest(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return fnv(bytes, bytes.length, 0xcbf29ce484222325L);
+    }
+
+    static long valueDigest(long hash) {
+        return mix(hash);
+    }
+
+    static long fnv(byte[] bytes, int length, long hash) {
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Gives the digests of nodes of a tree held elsewhere.
+     */
+    @FunctionalInterface
+    interface DigestSource {
+
+        long[] getDigests(int[] nodes) throws Exception;
+    }
+}
@@ -0,0 +1,164 @@
+package chorddht;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * One end of a connection of the binary transport. Frames are an int length,
+ * then that many bytes. Frames are read into a direct buffer and handed on as
+ * they complete, and frames to send are queued and written as the channel
+ * accepts them, so many requests can be in flight on one connection at once.
+ *
+ * @author Dominic
+ */
+class NioConnection {
+
+    static final int BUFFER_SIZE = 64 * 1024;   //Usual size of the read buffer. Grows to fit a larger frame until it is read.
+    static final int MAX_FRAME = Integer.getInteger("chorddht.maxFrame", 64 * 1024 * 1024); //In bytes. Largest frame sent or read. A peer advertising a larger one is disconnected.
+
+    private SocketChannel channel;                                              //The channel of the connection.
+    private volatile SelectionKey key;                                          //The registration of the channel with a selector.
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);    //Bytes read, not yet part of a complete frame.
+    private ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>(); //Frames waiting to be written.
+    private volatile boolean closed;                                            //If the connection has been closed.
+
+    /**
+     * Creates a connection over the given non blocking channel.
+     *
+     * @param channel The channel of the connection.
+     */
+    NioConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (!this.writeQueue.isEmpty()) { //Frames sent before the channel was registered.
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Queues a frame to be written by the selector thread.
+     *
+     * @param frame The whole frame, including its length.
+     */
+    void send(ByteBuffer frame) throws IOException {
+        if (this.closed) {
+            throw new IOException("Connection closed.");
+        } else if (frame.remaining() - Integer.BYTES > MAX_FRAME) { //Refused here, as the peer would drop the connection and every request on it.
+            throw new IOException("Frame of " + (frame.remaining() - Integer.BYTES) + " bytes is larger than " + MAX_FRAME + ".");
+        }
+        this.writeQueue.add(frame);
+        SelectionKey selectionKey = this.key;
+        if (selectionKey != null && selectionKey.isValid()) {
+            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            selectionKey.selector().wakeup();
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the channel is full.
+     * Called by the selector thread when the channel is writable.
+     */
+    void write() throws IOException {
+        ByteBuffer frame;
+        while ((frame = this.writeQueue.peek()) != null) {
+            this.channel.write(frame);
+            if (frame.hasRemaining()) {
+                return; //Channel is full, carry on when it is writable again.
+            }
+            this.writeQueue.poll();
+        }
+        this.key.interestOps(SelectionKey.OP_READ);
+        if (!this.writeQueue.isEmpty()) { //A frame was queued after the queue was found empty.
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Reads what the channel has and hands on every complete frame, without
+     * its length. Called by the selector thread when the channel is readable.
+     *
+     * @param frames What to hand complete frames to.
+     * @return A boolean representing if the connection is still open.
+     * @throws IOException If the channel fails, or the peer sends a frame
+     * length outside 0 to MAX_FRAME, so the connection is to be closed.
+     */
+    boolean read(Consumer<ByteBuffer> frames) throws IOException {
+        if (this.channel.read(this.readBuffer) == -1) {
+            return false;
+        }
+        this.readBuffer.flip();
+        while (this.readBuffer.remaining() >= Integer.BYTES) {
+            int length = checkLength(this.readBuffer.getInt(this.readBuffer.position()));
+            if (this.readBuffer.remaining() < Integer.BYTES + length) {
+                break;
+            }
+            this.readBuffer.getInt();
+            ByteBuffer frame = ByteBuffer.allocate(length); //Copied out, as the read buffer is reused.
+            ByteBuffer body = this.readBuffer.slice();
+            body.limit(length);
+            frame.put(body).flip();
+            this.readBuffer.position(this.readBuffer.position() + length);
+            frames.accept(frame);
+        }
+        int needed = Integer.BYTES; //Space the next frame needs, as far as is known.
+        if (this.readBuffer.remaining() >= Integer.BYTES) {
+            needed += checkLength(this.readBuffer.getInt(this.readBuffer.position()));
+        }
+        if (needed > this.readBuffer.capacity()) { //Grow the buffer if the next frame cannot fit.
+            ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+            larger.put(this.readBuffer);
+            this.readBuffer = larger;
+        } else if (this.readBuffer.capacity() > BUFFER_SIZE && needed <= BUFFER_SIZE) { //Large frame read, so stop holding its space.
+            ByteBuffer usual = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            usual.put(this.readBuffer);
+            this.readBuffer = usual;
+        } else {
+            this.readBuffer.compact();
+        }
+        return true;
+    }
+
+    /**
+     * Checks the length a peer gave a frame before any space is taken for it,
+     * as a damaged or hostile header could otherwise ask for any amount.
+     *
+     * @param length The length read.
+     * @return The length.
+     */
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Frame length " + length + " is outside 0 to " + MAX_FRAME + ".");
+        }
+        return length;
+    }
+
+    /**
+     * Closes the connection. Queued frames are dropped.
+     */
+    void close() {
+        this.closed = true;
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            //Already closed.
+        }
+    }
+}
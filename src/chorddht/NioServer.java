@@ -0,0 +1,164 @@
+package chorddht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the data requests of the binary transport for the nodes of a
+ * process. One selector thread reads and writes every connection, and
+ * requests are handled on a pool of threads, so answers go back in whatever
+ * order they finish and a slow request does not hold up those behind it.
+ *
+ * @author Dominic
+ */
+class NioServer implements Runnable {
+
+    static final int PORT = Integer.getInteger("chorddht.transportPort", 0); //Port to listen on. 0 picks any free port.
+    static final int HANDLER_THREADS = Runtime.getRuntime().availableProcessors() * 2; //Threads handling requests.
+
+    private ChordNode node;                     //The host node requests are made of.
+    private ServerSocketChannel server;         //The channel accepting connections.
+    private Selector selector;                  //Watches every connection.
+    private ExecutorService handlers = Executors.newFixedThreadPool(HANDLER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "transport-handler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts serving requests for the given node.
+     *
+     * @param node The host node of this process.
+     */
+    NioServer(ChordNode node) throws IOException {
+        this.node = node;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(PORT));
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        Thread thread = new Thread(this, node.getName() + "-transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the port this server listens on.
+     *
+     * @return The port.
+     */
+    int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    /**
+     * The selector thread.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isReadable() && !connection.read(frame -> this.handlers.execute(() -> this.handle(connection, frame)))) {
+                            connection.close();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                Utility.log("Transport server stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioConnection connection = new NioConnection(channel);
+        connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+    }
+
+    /**
+     * Answers a request. Every request gets an answer with its id, holding
+     * either the result or why it failed.
+     *
+     * @param connection The connection the request came on.
+     * @param frame The request, as its id, operation and arguments.
+     */
+    private void handle(NioConnection connection, ByteBuffer frame) {
+        long id = frame.getLong();
+        byte op = frame.get();
+        ByteBuffer answer;
+        try {
+            answer = this.answer(id, op, frame);
+        } catch (NotOwnerException e) {
+            answer = NioTransport.frame(id, NioTransport.NOT_OWNER);
+        } catch (Exception e) {
+            answer = NioTransport.frame(id, NioTransport.ERROR, String.valueOf(e.getMessage()));
+        }
+        if (answer.remaining() - Integer.BYTES > NioConnection.MAX_FRAME) { //The connection would refuse to send it, leaving the caller to time out.
+            answer = NioTransport.frame(id, NioTransport.ERROR, "Answer is larger than " + NioConnection.MAX_FRAME + " bytes.");
+        }
+        try {
+            connection.send(answer);
+        } catch (IOException e) {
+            //The client has gone, so nobody is waiting for the answer.
+        }
+    }
+
+    private ByteBuffer answer(long id, byte op, ByteBuffer args) throws Exception {
+        switch (op) {
+            case NioTransport.GET_OWNED: {
+                String key = NioTransport.readString(args);
+                return NioTransport.frame(id, NioTransport.OK, this.node.getOwned(key, args.getLong()));
+            }
+            case NioTransport.PUT_OWNED: {
+                String key = NioTransport.readString(args);
+                this.node.putOwned(key, NioTransport.readBytes(args));
+                return NioTransport.frame(id, NioTransport.OK);
+            }
+            case NioTransport.PUT_REPLICA: {
+                String key = NioTransport.readString(args);
+                long hashKey = args.getLong();
+                this.node.putReplica(key, hashKey, NioTransport.readBytes(args));
+                return NioTransport.frame(id, NioTransport.OK);
+            }
+            case NioTransport.GET_STORE_BYTES: {
+                String key = NioTransport.readString(args);
+                return NioTransport.frame(id, NioTransport.OK, this.node.getStoreBytes(key, args.getLong()));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package chorddht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends data requests over a compact binary protocol on non blocking
+ * channels. Each process keeps one connection per remote process, and every
+ * request carries an id that its answer is matched by, so any amount of
+ * requests from any amount of threads share a connection at once.
+ *
+ * A request frame is its length, an id, an operation and its arguments. An
+ * answer frame is its length, the id of the request, a status and the result.
+ * Strings and byte arrays are written as their length then their bytes, with
+ * a length of -1 for null.
+ *
+ * @author Dominic
+ */
+class NioTransport implements Transport, Runnable {
+
+    static final byte GET_OWNED = 1;            //Operation for IChordNode.getOwned().
+    static final byte PUT_OWNED = 2;            //Operation for IChordNode.putOwned().
+    static final byte PUT_REPLICA = 3;          //Operation for IChordNode.putReplica().
+    static final byte GET_STORE_BYTES = 4;      //Operation for IChordNode.getStoreBytes().
+
+    static final byte OK = 0;                   //Status of a request that succeeded.
+    static final byte NOT_OWNER = 1;            //Status of a request for a key the node is not responsible for.
+    static final byte ERROR = 2;                //Status of a request that failed, followed by the reason.
+
+    static final int CALL_TIMEOUT = Integer.getInteger("chorddht.transportTimeout", 5000); //In milliseconds. Time to wait for an answer.
+
+    private RmiTransport rmi = new RmiTransport();                                           //Used for nodes that do not serve this transport.
+    private ConcurrentHashMap<Long, String> addresses = new ConcurrentHashMap<>();           //Transport address of nodes by key. Empty for RMI only nodes.
+    private ConcurrentHashMap<String, NioConnection> connections = new ConcurrentHashMap<>(); //Open connections by address.
+    private ConcurrentHashMap<Long, Call> calls = new ConcurrentHashMap<>();                 //Requests waiting for an answer, by id.
+    private ConcurrentLinkedQueue<NioConnection> toRegister = new ConcurrentLinkedQueue<>(); //New connections for the selector thread to watch.
+    private AtomicLong nextId = new AtomicLong();                                            //Id given to the next request.
+    private Selector selector;                                                               //Watches every connection.
+
+    /**
+     * Creates the transport and starts its selector thread.
+     */
+    NioTransport() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not open selector for the binary transport.", ex);
+        }
+        Thread thread = new Thread(this, "transport-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public byte[] getOwned(Finger owner, String key, long hashKey) throws RemoteException, NotOwnerException {
+        NioConnection connection = this.connection(owner);
+        if (connection == null) {
+            return this.rmi.getOwned(owner, key, hashKey);
+        }
+        return readBytes(this.call(connection, owner, hashKey, GET_OWNED, key, hashKey));
+    }
+
+    @Override
+    public void putOwned(Finger owner, String key, byte[] value) throws RemoteException, NotOwnerException {
+        NioConnection connection = this.connection(owner);
+        if (connection == null) {
+            this.rmi.putOwned(owner, key, value);
+            return;
+        }
+        this.call(connection, owner, Utility.hash(key), PUT_OWNED, key, value);
+    }
+
+    @Override
+    public void putReplica(Finger replica, String key, long hashKey, byte[] value) throws RemoteException {
+        NioConnection connection = this.connection(replica);
+        if (connection == null) {
+            this.rmi.putReplica(replica, key, hashKey, value);
+            return;
+        }
+        try {
+            this.call(connection, replica, hashKey, PUT_REPLICA, key, hashKey, value);
+        } catch (NotOwnerException e) {
+            throw new RemoteException(e.getMessage()); //Replicas are not range checked, so cannot happen.
+        }
+    }
+
+    @Override
+    public byte[] getStoreBytes(Finger node, String key, long hashKey) throws RemoteException {
+        NioConnection connection = this.connection(node);
+        if (connection == null) {
+            return this.rmi.getStoreBytes(node, key, hashKey);
+        }
+        try {
+            return readBytes(this.call(connection, node, hashKey, GET_STORE_BYTES, key, hashKey));
+        } catch (NotOwnerException e) {
+            throw new RemoteException(e.getMessage()); //Not range checked, so cannot happen.
+        }
+    }
+
+    /**
+     * Sends a request and waits for its answer.
+     *
+     * @param connection The connection to send on.
+     * @param node The node the request is for.
+     * @param hashKey The key the request is about.
+     * @param op The operation.
+     * @param args The arguments of the operation.
+     * @return The result in the answer.
+     */
+    private ByteBuffer call(NioConnection connection, Finger node, long hashKey, byte op, Object... args) throws RemoteException, NotOwnerException {
+        long id = this.nextId.incrementAndGet();
+        Call call = new Call(connection);
+        this.calls.put(id, call);
+        ByteBuffer answer;
+        try {
+            connection.send(frame(id, op, args));
+            answer = call.answer.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException | ExecutionException e) {
+            throw new ConnectException("Transport connection to " + Long.toUnsignedString(node.getKey()) + " failed.", e instanceof ExecutionException ? (Exception) e.getCause() : e);
+        } catch (TimeoutException | InterruptedException e) {
+            throw new RemoteException("No answer from " + Long.toUnsignedString(node.getKey()) + " in time.");
+        } finally {
+            this.calls.remove(id);
+        }
+        byte status = answer.get();
+        if (status == NOT_OWNER) {
+            throw new NotOwnerException(hashKey, node.getKey());
+        } else if (status == ERROR) {
+            throw new RemoteException(readString(answer));
+        }
+        return answer;
+    }
+
+    /**
+     * Gets the connection to a node, opening it if there is none.
+     *
+     * @param node The node to connect to.
+     * @return The connection, or null if the node does not serve this
+     * transport.
+     */
+    private NioConnection connection(Finger node) throws RemoteException {
+        String address = this.addresses.get(node.getKey());
+        if (address == null) {
+            address = node.getNode().getTransportAddress();
+            address = address == null ? "" : address;
+            this.addresses.put(node.getKey(), address);
+        }
+        if (address.isEmpty()) {
+            return null;
+        }
+        NioConnection connection = this.connections.get(address);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        synchronized (this) {
+            connection = this.connections.get(address);
+            if (connection != null && !connection.isClosed()) {
+                return connection;
+            }
+            try {
+                int split = address.lastIndexOf(':');
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split + 1))));
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connection = new NioConnection(channel);
+            } catch (IOException ex) {
+                this.addresses.remove(node.getKey()); //The node may have restarted on another port.
+                throw new ConnectException("Could not connect to " + address + ".", ex);
+            }
+            this.connections.put(address, connection);
+            this.toRegister.add(connection);
+            this.selector.wakeup();
+            return connection;
+        }
+    }
+
+    /**
+     * The selector thread. Reads answers and hands them to the requests
+     * waiting for them, and writes queued requests.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+                NioConnection added;
+                while ((added = this.toRegister.poll()) != null) {
+                    added.setKey(added.getChannel().register(this.selector, SelectionKey.OP_READ, added));
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable() && !connection.read(this::answered)) {
+                            this.closed(connection);
+                        }
+                    } catch (IOException e) {
+                        this.closed(connection);
+                    }
+                }
+            } catch (IOException e) {
+                Utility.log("Transport client stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void answered(ByteBuffer frame) {
+        Call call = this.calls.remove(frame.getLong());
+        if (call != null) { //Otherwise the request has already timed out.
+            call.answer.complete(frame);
+        }
+    }
+
+    /**
+     * Closes a connection and fails every request waiting on it.
+     *
+     * @param connection The connection that has closed.
+     */
+    private void closed(NioConnection connection) {
+        connection.close();
+        this.connections.values().remove(connection);
+        for (Entry<Long, Call> call : this.calls.entrySet()) {
+            if (call.getValue().connection == connection) {
+                call.getValue().answer.completeExceptionally(new IOException("Connection closed."));
+            }
+        }
+    }
+
+    /**
+     * Builds a frame.
+     *
+     * @param id The id of the request.
+     * @param code The operation of a request, or status of an answer.
+     * @param fields The arguments or result. Strings, byte arrays and longs.
+     * @return The frame, ready to write.
+     */
+    static ByteBuffer frame(long id, byte code, Object... fields) {
+        int length = Long.BYTES + 1;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] instanceof String) {
+                fields[i] = ((String) fields[i]).getBytes(StandardCharsets.UTF_8);
+            }
+            if (fields[i] instanceof Long) {
+                length += Long.BYTES;
+            } else {
+                length += Integer.BYTES + (fields[i] == null ? 0 : ((byte[]) fields[i]).length);
+            }
+        }
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+        frame.putInt(length).putLong(id).put(code);
+        for (Object field : fields) {
+            if (field instanceof Long) {
+                frame.putLong((Long) field);
+            } else if (field == null) {
+                frame.putInt(-1);
+            } else {
+                frame.putInt(((byte[]) field).length).put((byte[]) field);
+            }
+        }
+        frame.flip();
+        return frame;
+    }
+
+    static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A request waiting for its answer.
+     */
+    private static class Call {
+
+        NioConnection connection;                                       //The connection the request was sent on.
+        CompletableFuture<ByteBuffer> answer = new CompletableFuture<>(); //Completed with the answer, after the id.
+
+        Call(NioConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
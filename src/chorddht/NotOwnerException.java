@@ -0,0 +1,20 @@
+package chorddht;
+
+/**
+ * Thrown by a node asked for a key it is not responsible for, so a client that
+ * went to it directly knows its idea of who owns the key is out of date.
+ *
+ * @author Dominic
+ */
+public class NotOwnerException extends Exception {
+
+    /**
+     * Creates the exception for the given key.
+     *
+     * @param hashKey The hash of the key the node does not own.
+     * @param nodeKey The key of the node that was asked.
+     */
+    NotOwnerException(long hashKey, long nodeKey) {
+        super("Node " + Long.toUnsignedString(nodeKey) + " is not responsible for " + Long.toUnsignedString(hashKey) + ".");
+    }
+}
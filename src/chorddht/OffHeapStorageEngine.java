@@ -0,0 +1,480 @@
+package chorddht;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage engine keeping values outside the Java heap, appended to memory
+ * mapped segment files. Only a compact index of where each value lives is
+ * kept on the heap, so a node can hold far more data than its heap without
+ * adding to garbage collection pauses.
+ *
+ * The index is locked in stripes, by the range of the ring a hash key is in,
+ * so writes to different parts of the ring run at the same time. A value is
+ * copied into space taken for it in a segment before its slot is added to
+ * the index, so only taking the space is done under the one allocation lock.
+ *
+ * @author Dominic
+ */
+class OffHeapStorageEngine implements StorageEngine {
+
+    static final int SEGMENT_SIZE = Integer.getInteger("chorddht.segmentSize", 64 * 1024 * 1024); //In bytes. Size of each segment file.
+    static final double COMPACT_THRESHOLD = 0.25;   //Fraction of a segment still in use below which its values are copied out and it is freed.
+
+    private File directory = new File(System.getProperty("chorddht.storageDir", System.getProperty("java.io.tmpdir"))); //Where segment files are made.
+    private String name;                                                        //Name of the node, used to name segment files.
+    private ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>(); //All segments not yet freed, by id.
+    private int nextSegment;                                                    //Id of the next segment made.
+    private Segment active;                                                     //The segment new values are appended to.
+    private ArrayDeque<Segment> retired = new ArrayDeque<>();                   //Segments taken over from as active, left mostly unused, waiting to be compacted.
+    private ConcurrentSkipListMap<Long, HashMap<String, Slot>> index = new ConcurrentSkipListMap<>(Long::compareUnsigned); //Where each value lives, by hash key then key, in ring order.
+    private ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[1 << STRIPE_BITS]; //Guard the slots of the hash keys in each stripe.
+    private Object allocation = new Object();                                   //Held while space in the segments is taken or given back.
+
+    /**
+     * Creates an empty off heap storage engine.
+     *
+     * @param name The name of the node the engine is for.
+     */
+    OffHeapStorageEngine(String name) {
+        this.name = name.replaceAll("[^A-Za-z0-9]", "_");
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    @Override
+    public void put(long hashKey, String key, byte[] value) {
+        this.publish(hashKey, key, this.append(value));
+    }
+
+    @Override
+    public void remove(long hashKey, String key) {
+        Slot old;
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.writeLock().lock();
+        try {
+            HashMap<String, Slot> slots = this.index.get(hashKey);
+            old = slots == null ? null : slots.remove(key);
+            if (slots != null && slots.isEmpty()) {
+                this.index.remove(hashKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        this.release(old);
+    }
+
+    @Override
+    public byte[] get(long hashKey, String key) {
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.readLock().lock();
+        try {
+            HashMap<String, Slot> slots = this.index.get(hashKey);
+            Slot slot = slots == null ? null : slots.get(key);
+            return slot == null ? null : this.read(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getRange(long hashKey, String key, long offset, int length) {
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.readLock().lock();
+        try {
+            HashMap<String, Slot> slots = this.index.get(hashKey);
+            Slot slot = slots == null ? null : slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            int start = (int) Math.min(offset, slot.length);
+            byte[] part = new byte[Math.min(slot.length - start, length)];
+            ByteBuffer view = this.segments.get(slot.segment).buffer.duplicate();
+            view.position(slot.offset + start);
+            view.get(part);
+            return part;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(long hashKey, String key, FileChannel source, int length) throws IOException {
+        Slot slot = this.reserve(length);
+        ByteBuffer view = this.segments.get(slot.segment).buffer.duplicate();
+        view.position(slot.offset).limit(slot.offset + length);
+        while (view.hasRemaining()) {
+            if (source.read(view, view.position() - slot.offset) < 0) {
+                this.release(slot);
+                throw new IOException("File ended before the value did.");
+            }
+        }
+        this.publish(hashKey, key, slot);
+    }
+
+    @Override
+    public Store getStore(long hashKey) {
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.readLock().lock();
+        try {
+            HashMap<String, Slot> slots = this.index.get(hashKey);
+            if (slots == null) {
+                return null;
+            }
+            Store store = new Store(hashKey);
+            for (Entry<String, Slot> slot : slots.entrySet()) {
+                store.put(slot.getKey(), this.read(slot.getValue()));
+            }
+            return store;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putStore(Store store) {
+        HashMap<String, Slot> written = this.appendAll(store, null);
+        HashMap<String, Slot> old;
+        ReentrantReadWriteLock lock = this.stripe(store.getKey());
+        lock.writeLock().lock();
+        try {
+            old = written.isEmpty() ? this.index.remove(store.getKey()) : this.index.put(store.getKey(), written);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (old != null) {
+            for (Slot slot : old.values()) {
+                this.release(slot);
+            }
+        }
+        this.compactRetired();
+    }
+
+    @Override
+    public void mergeStore(Store store) {
+        ReentrantReadWriteLock lock = this.stripe(store.getKey());
+        lock.writeLock().lock();
+        try { //Held while writing, so the values found absent are still absent once added.
+            HashMap<String, Slot> slots = this.index.get(store.getKey());
+            HashMap<String, Slot> written = this.appendAll(store, slots);
+            if (!written.isEmpty()) {
+                this.index.computeIfAbsent(store.getKey(), k -> new HashMap<>()).putAll(written);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        this.compactRetired();
+    }
+
+    @Override
+    public void removeStore(long hashKey) {
+        HashMap<String, Slot> slots;
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.writeLock().lock();
+        try {
+            slots = this.index.remove(hashKey);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (slots != null) {
+            for (Slot slot : slots.values()) {
+                this.release(slot);
+            }
+        }
+    }
+
+    @Override
+    public boolean removeStoreIfSame(Store store) {
+        HashMap<String, Slot> slots;
+        ReentrantReadWriteLock lock = this.stripe(store.getKey());
+        lock.writeLock().lock();
+        try {
+            if (!store.sameValues(this.getStore(store.getKey()))) {
+                return false;
+            }
+            slots = this.index.remove(store.getKey());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Slot slot : slots.values()) {
+            this.release(slot);
+        }
+        return true;
+    }
+
+    @Override
+    public List<Long> keysInRange(long from, long to) {
+        ArrayList<Long> keys = new ArrayList<>();
+        if (Long.compareUnsigned(to, from) > 0) {
+            keys.addAll(this.index.subMap(from, false, to, true).keySet()); //Range from exclusive from, to inclusive to.
+        } else { //Handles wrap around range.
+            keys.addAll(this.index.tailMap(from, false).keySet());
+            keys.addAll(this.index.headMap(to, true).keySet());
+        }
+        return keys;
+    }
+
+    @Override
+    public List<Long> keys() {
+        return new ArrayList<>(this.index.keySet());
+    }
+
+    private ReentrantReadWriteLock stripe(long hashKey) {
+        return this.stripes[StorageEngine.stripeOf(hashKey)];
+    }
+
+    /**
+     * Adds a value already written to a segment to the index, making it
+     * visible to readers, and gives back the space of the value it replaces.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     * @param slot Where the value was written.
+     */
+    private void publish(long hashKey, String key, Slot slot) {
+        Slot old;
+        ReentrantReadWriteLock lock = this.stripe(hashKey);
+        lock.writeLock().lock();
+        try {
+            old = this.index.computeIfAbsent(hashKey, k -> new HashMap<>()).put(key, slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        this.release(old);
+    }
+
+    /**
+     * Writes the values of a store to the segments.
+     *
+     * @param store The store.
+     * @param held The values already held under its hash key, which are not
+     * written, or null.
+     * @return Where each value was written.
+     */
+    private HashMap<String, Slot> appendAll(Store store, HashMap<String, Slot> held) {
+        HashMap<String, Slot> written = new HashMap<>();
+        for (Entry<String, byte[]> value : store.getValues().entrySet()) {
+            if (held == null || !held.containsKey(value.getKey())) {
+                written.put(value.getKey(), this.append(value.getValue()));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes a value to space taken for it at the end of the active segment.
+     *
+     * @param value The bytes to write.
+     * @return Where the value was written.
+     */
+    private Slot append(byte[] value) {
+        Slot slot = this.reserve(value.length);
+        ByteBuffer view = this.segments.get(slot.segment).buffer.duplicate();
+        view.position(slot.offset);
+        view.put(value);
+        return slot;
+    }
+
+    /**
+     * Takes space for a value at the end of the active segment, starting a
+     * new segment if it does not fit. Values larger than a segment get a
+     * segment of their own. The segment taken over from is checked as a
+     * released value's would be, as values in it may have been replaced or
+     * removed while it was active.
+     *
+     * @param length The length of the value.
+     * @return Where the value is to be written.
+     */
+    private Slot reserve(int length) {
+        synchronized (this.allocation) {
+            Segment segment = this.active;
+            if (segment == null || segment.remaining() < length) {
+                segment = this.newSegment(Math.max(SEGMENT_SIZE, length));
+                if (length < SEGMENT_SIZE || this.active == null) {
+                    Segment previous = this.active;
+                    this.active = segment;
+                    if (previous != null) {
+                        this.retire(previous);
+                    }
+                } //Oversized values do not take over from the active segment.
+            }
+            Slot slot = new Slot(segment.id, segment.position, length);
+            segment.position += length;
+            segment.live += length;
+            return slot;
+        }
+    }
+
+    private byte[] read(Slot slot) {
+        byte[] value = new byte[slot.length];
+        ByteBuffer view = this.segments.get(slot.segment).buffer.duplicate();
+        view.position(slot.offset);
+        view.get(value);
+        return value;
+    }
+
+    /**
+     * Marks the space of a value as no longer used. Segments left mostly
+     * unused have their remaining values copied to the active segment, and
+     * empty segments are freed. Never called holding a stripe lock, as
+     * copying values out takes them.
+     *
+     * @param slot Where the value lives, or null.
+     */
+    private void release(Slot slot) {
+        if (slot != null) {
+            synchronized (this.allocation) {
+                Segment segment = this.segments.get(slot.segment);
+                segment.live -= slot.length;
+                if (segment != this.active) {
+                    this.retire(segment);
+                }
+            }
+        }
+        this.compactRetired();
+    }
+
+    /**
+     * Frees a segment no longer appended to if it is empty, or queues it to be
+     * compacted if it is mostly unused. Called holding the allocation lock.
+     *
+     * @param segment The segment to check.
+     */
+    private void retire(Segment segment) {
+        if (segment.compacting) { //A segment being compacted is freed once that is done.
+            return;
+        }
+        if (segment.live == 0) {
+            this.free(segment);
+        } else if (segment.live < segment.buffer.capacity() * COMPACT_THRESHOLD) {
+            segment.compacting = true;
+            this.retired.add(segment);
+        }
+    }
+
+    /**
+     * Compacts every segment queued to be. Space is taken while stripe locks
+     * are held, so segments are queued then and compacted here, by the caller
+     * once it holds none.
+     */
+    private void compactRetired() {
+        Segment segment;
+        while ((segment = this.nextRetired()) != null) {
+            this.compact(segment);
+        }
+    }
+
+    private Segment nextRetired() {
+        synchronized (this.allocation) {
+            return this.retired.poll();
+        }
+    }
+
+    /**
+     * Copies every value still in the given segment to the active segment,
+     * taking the stripe lock of each hash key in turn, then frees the segment
+     * if nothing is left in it.
+     *
+     * @param segment The segment to empty.
+     */
+    private void compact(Segment segment) {
+        for (Entry<Long, HashMap<String, Slot>> store : this.index.entrySet()) {
+            ReentrantReadWriteLock lock = this.stripe(store.getKey());
+            lock.writeLock().lock();
+            try {
+                for (Entry<String, Slot> slot : store.getValue().entrySet()) {
+                    if (slot.getValue().segment == segment.id) {
+                        Slot moved = this.append(this.read(slot.getValue()));
+                        slot.setValue(moved);
+                        synchronized (this.allocation) {
+                            segment.live -= moved.length;
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        synchronized (this.allocation) {
+            segment.compacting = false;
+            if (segment.live == 0) {
+                this.free(segment);
+            }
+        }
+    }
+
+    private Segment newSegment(int size) {
+        try {
+            File file = File.createTempFile("chorddht-" + this.name + "-", ".seg", this.directory);
+            file.deleteOnExit();
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) { //The mapping stays valid after the file is closed.
+                raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            Segment segment = new Segment(this.nextSegment++, buffer, file);
+            this.segments.put(segment.id, segment);
+            return segment;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not create storage segment in " + this.directory, ex);
+        }
+    }
+
+    private void free(Segment segment) {
+        this.segments.remove(segment.id);
+        segment.file.delete(); //The mapping is released once the buffer is garbage collected.
+    }
+
+    /**
+     * A memory mapped file that values are appended to.
+     */
+    private static class Segment {
+
+        int id;                     //Key of this segment in the segments.
+        MappedByteBuffer buffer;    //The mapped contents of the file.
+        File file;                  //The file backing this segment.
+        int position;               //Where the next value is written.
+        long live;                  //Bytes of values still in use.
+        boolean compacting;         //If its values are being copied out.
+
+        Segment(int id, MappedByteBuffer buffer, File file) {
+            this.id = id;
+            this.buffer = buffer;
+            this.file = file;
+        }
+
+        int remaining() {
+            return this.buffer.capacity() - this.position;
+        }
+    }
+
+    /**
+     * Where a value lives.
+     */
+    private static class Slot {
+
+        int segment;    //Id of the segment holding the value.
+        int offset;     //Position of the value in the segment.
+        int length;     //Length of the value.
+
+        Slot(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
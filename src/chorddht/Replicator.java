@@ -0,0 +1,186 @@
+package chorddht;
+
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends writes to, and reads from, the replicas of a key in parallel and waits
+ * for a quorum of them to answer.
+ *
+ * @author Dominic
+ */
+class Replicator {
+
+    static final int REPLICATION_FACTOR = Math.max(1, Integer.getInteger("chorddht.replicas", 3));                          //Copies kept of each value, including the owners.
+    static final int WRITE_QUORUM = clamp(Integer.getInteger("chorddht.writeQuorum", REPLICATION_FACTOR / 2 + 1));       //Copies that must be stored for a put to succeed.
+    static final int READ_QUORUM = clamp(Integer.getInteger("chorddht.readQuorum", 1));                                   //Replicas that must answer a get.
+    static final int QUORUM_TIMEOUT = 5000;     //In milliseconds. Time to wait for a quorum to answer.
+
+    private ExecutorService pool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "replicator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Limits a quorum setting to the range of the replication factor.
+     */
+    private static int clamp(int quorum) {
+        return Math.max(1, Math.min(REPLICATION_FACTOR, quorum));
+    }
+
+    /**
+     * Stores a value on the given replicas, in parallel, and waits until
+     * enough of them have acknowledged it to meet the write quorum. The copy
+     * the owner stores once the quorum is met counts towards it.
+     *
+     * @param replicas The nodes to store a copy on, not including the owner.
+     * @param key The key of the data to store.
+     * @param hashKey The hash of the key.
+     * @param value The bytes of the data to store.
+     * @return The amount of copies stored, including the owners.
+     */
+    int write(List<Finger> replicas, String key, long hashKey, byte[] value) throws RemoteException {
+        return this.write(replicas, key, replica -> Transport.get().putReplica(replica, key, hashKey, value), QUORUM_TIMEOUT, false);
+    }
+
+    /**
+     * Stores many values on the given replicas, in parallel, sending each
+     * replica all of them in one call, and waits until enough of them have
+     * acknowledged the batch to meet the write quorum.
+     *
+     * @param replicas The nodes to store a copy on, not including the owner.
+     * @param values The keys and values to store.
+     * @return The amount of copies stored, including the owners.
+     */
+    int writeBatch(List<Finger> replicas, Map<String, byte[]> values) throws RemoteException {
+        return this.write(replicas, values.size() + " keys", replica -> replica.getNode().putReplicas(values), QUORUM_TIMEOUT, false);
+    }
+
+    /**
+     * Stores a value held in a file on the given replicas, in parallel, a
+     * chunk at a time. Waits for every replica to finish, as they read the
+     * file until then, and for longer the larger the value is, then checks
+     * the write quorum as write() does.
+     *
+     * @param replicas The nodes to store a copy on, not including the owner.
+     * @param key The key of the data to store.
+     * @param source The file holding the encoded value from its start.
+     * @param length The length of the encoded value.
+     * @return The amount of copies stored, including the owners.
+     */
+    int writeChunked(List<Finger> replicas, String key, FileChannel source, int length) throws RemoteException {
+        return this.write(replicas, key, replica -> {
+            IChordNode node = replica.getNode();
+            node.commitReplicaWrite(ChunkedTransfer.send(node, key, source, length));
+        }, QUORUM_TIMEOUT * (1 + length / ChunkedTransfer.CHUNK_SIZE), true);
+    }
+
+    /**
+     * Runs a write on each of the given replicas, in parallel, and waits until
+     * enough of them have finished it to meet the write quorum.
+     *
+     * @param replicas The nodes to store a copy on, not including the owner.
+     * @param key The key of the data stored.
+     * @param write What stores the copy on one replica.
+     * @param timeout Most time to wait, in milliseconds.
+     * @param all If every replica is waited for, rather than only a quorum.
+     * @return The amount of copies stored, including the owners.
+     */
+    private int write(List<Finger> replicas, String key, ReplicaWrite write, long timeout, boolean all) throws RemoteException {
+        int quorum = Math.min(WRITE_QUORUM, replicas.size() + 1); //Small rings cannot hold more copies than they have nodes.
+        CompletionService<Boolean> acks = new ExecutorCompletionService<>(this.pool);
+        for (Finger replica : replicas) {
+            acks.submit(() -> {
+                write.to(replica);
+                return true;
+            });
+        }
+        int stored = 1;
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < replicas.size() && (all || stored < quorum); i++) {
+            if (this.await(acks, deadline) != null) {
+                stored++;
+            }
+        }
+        if (stored < quorum) {
+            throw new RemoteException("Write quorum not reached for " + key + ", stored " + stored + " of " + quorum + " copies.");
+        }
+        return stored;
+    }
+
+    /**
+     * Reads a value from the given replicas in parallel. Answers with the
+     * first value found once the read quorum has responded.
+     *
+     * @param replicas The nodes holding a copy of the key, owner first.
+     * @param key The key of the data to get.
+     * @param hashKey The hash of the key.
+     * @return The bytes stored at the key, or null if no replica has it.
+     */
+    byte[] read(List<Finger> replicas, String key, long hashKey) throws RemoteException {
+        int quorum = Math.min(READ_QUORUM, replicas.size());
+        CompletionService<byte[]> answers = new ExecutorCompletionService<>(this.pool);
+        for (Finger replica : replicas) {
+            answers.submit(() -> Transport.get().getStoreBytes(replica, key, hashKey));
+        }
+        byte[] value = null;
+        int responded = 0;
+        long deadline = System.currentTimeMillis() + QUORUM_TIMEOUT;
+        for (int i = 0; i < replicas.size(); i++) {
+            Future<byte[]> answer = this.await(answers, deadline);
+            if (answer == null) {
+                continue;
+            }
+            responded++;
+            try {
+                if (value == null) {
+                    value = answer.get(); //Already finished, so does not block.
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                Utility.log("Replica answer for " + key + " lost.");
+            }
+            if (responded >= quorum && value != null) {
+                break;
+            }
+        }
+        if (responded < quorum) {
+            throw new RemoteException("Read quorum not reached for " + key + ", " + responded + " of " + quorum + " replicas answered.");
+        }
+        return value;
+    }
+
+    /**
+     * Waits for the next task to finish successfully before the deadline.
+     *
+     * @return The finished task, or null if it failed or the deadline passed.
+     */
+    private <T> Future<T> await(CompletionService<T> service, long deadline) {
+        try {
+            Future<T> done = service.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (done != null) {
+                done.get();
+            }
+            return done;
+        } catch (ExecutionException | InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a copy of a value on one replica.
+     */
+    private interface ReplicaWrite {
+
+        void to(Finger replica) throws Exception;
+    }
+}
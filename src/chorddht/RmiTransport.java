@@ -0,0 +1,31 @@
+package chorddht;
+
+import java.rmi.RemoteException;
+
+/**
+ * Makes data requests on the RMI stubs of nodes.
+ *
+ * @author Dominic
+ */
+class RmiTransport implements Transport {
+
+    @Override
+    public byte[] getOwned(Finger owner, String key, long hashKey) throws RemoteException, NotOwnerException {
+        return owner.getNode().getOwned(key, hashKey);
+    }
+
+    @Override
+    public void putOwned(Finger owner, String key, byte[] value) throws RemoteException, NotOwnerException {
+        owner.getNode().putOwned(key, value);
+    }
+
+    @Override
+    public void putReplica(Finger replica, String key, long hashKey, byte[] value) throws RemoteException {
+        replica.getNode().putReplica(key, hashKey, value);
+    }
+
+    @Override
+    public byte[] getStoreBytes(Finger node, String key, long hashKey) throws RemoteException {
+        return node.getNode().getStoreBytes(key, hashKey);
+    }
+}
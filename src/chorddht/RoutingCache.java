@@ -0,0 +1,346 @@
+package chorddht;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Remembers which node owns which range of the ring, so that gets and puts
+ * for keys whose owner was found before go straight to that owner in one hop
+ * rather than being routed through a gateway node. The owner checks every
+ * direct request, so a range that has changed owner is dropped and found
+ * again by a normal lookup. Values sent to and read from owners directly are
+ * encoded and decoded here, as a routed put and get would.
+ *
+ * @author Dominic
+ */
+class RoutingCache {
+
+    static final int MAX_RANGES = Integer.getInteger("chorddht.routingCacheSize", 4096); //Most ranges remembered at once.
+
+    private IChordNode gateway;                 //The node lookups are made through.
+    private ValueCache values;                  //Copies of values read, or null to always read from the owner.
+    private KeyFilter.Cache filters;            //Key filters of owners, or null to always ask the owner.
+    private ConcurrentSkipListMap<Long, Range> ranges = new ConcurrentSkipListMap<>(Long::compareUnsigned); //Known ranges, by the key of their owner.
+
+    /**
+     * Creates an empty cache routing through the given node.
+     *
+     * @param gateway The node to make lookups through.
+     */
+    RoutingCache(IChordNode gateway) {
+        this(gateway, null, null);
+    }
+
+    /**
+     * Creates an empty cache routing through the given node, that also keeps
+     * copies of the values it reads and the key filters of owners.
+     *
+     * @param gateway The node to make lookups through.
+     * @param values Where to keep copies of values read, or null to always
+     * read from the owner.
+     * @param filters Where to keep key filters, used to answer batched gets
+     * of missing keys without asking their owner, or null to always ask.
+     */
+    RoutingCache(IChordNode gateway, ValueCache values, KeyFilter.Cache filters) {
+        this.gateway = gateway;
+        this.values = values;
+        this.filters = filters;
+    }
+
+    /**
+     * Changes the node lookups are made through, such as after it has failed.
+     * Known ranges are kept, as they do not depend on the gateway.
+     *
+     * @param gateway The node to make lookups through.
+     */
+    void setGateway(IChordNode gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Gets a value from its owner. If values are cached, a fresh copy is
+     * served without asking the owner, and an older copy is only fetched
+     * again if the owner holds a different version.
+     *
+     * @param key The key of the value.
+     * @return The value, or null if it is not stored.
+     */
+    byte[] get(String key) throws RemoteException {
+        ValueCache.Entry cached = this.values == null ? null : this.values.get(key);
+        if (cached != null && cached.isFresh()) {
+            return ValueCodec.decode(cached.value);
+        }
+        long hashKey = Utility.hash(key);
+        Finger owner = this.owner(hashKey);
+        byte[] value = null;
+        try {
+            if (cached != null) {
+                VersionedValue current = owner.getNode().getVersioned(key, hashKey, cached.version);
+                if (current.getVersion() == cached.version) {
+                    this.values.refresh(cached);
+                    return ValueCodec.decode(cached.value);
+                }
+                value = current.getValue();
+            }
+            if (value == null) {
+                value = Transport.get().getOwned(owner, key, hashKey);
+            }
+        } catch (NotOwnerException | RemoteException e) {
+            this.invalidate(owner);
+            if (this.values != null) {
+                this.values.invalidate(key);
+            }
+            return this.gateway.get(key); //The routed get can also answer from replicas.
+        }
+        if (this.values != null) {
+            if (value != null) {
+                this.values.put(key, value);
+            } else {
+                this.values.invalidate(key);
+            }
+        }
+        return ValueCodec.decode(value);
+    }
+
+    /**
+     * Stores a value on its owner.
+     *
+     * @param key The key of the value.
+     * @param value The value to store.
+     */
+    void put(String key, byte[] value) throws RemoteException {
+        if (this.values != null) {
+            this.values.invalidate(key);
+        }
+        long hashKey = Utility.hash(key);
+        Finger owner = this.owner(hashKey);
+        try {
+            Transport.get().putOwned(owner, key, ValueCodec.encode(value));
+            if (this.filters != null) {
+                this.filters.added(owner.getNode(), hashKey);
+            }
+        } catch (NotOwnerException | RemoteException e) {
+            this.invalidate(owner);
+            this.gateway.put(key, value);
+        }
+    }
+
+    /**
+     * Removes a value, routed through the gateway.
+     *
+     * @param key The key of the value.
+     */
+    void remove(String key) throws RemoteException {
+        if (this.values != null) {
+            this.values.invalidate(key);
+        }
+        this.gateway.remove(key, 0);
+    }
+
+    /**
+     * Stores or removes a value, giving back the value it replaced, routed
+     * through the gateway. The owner replaces it in one step.
+     *
+     * @param key The key of the value.
+     * @param value The value to store, or null to remove it.
+     * @return The value replaced, or null if none was held.
+     */
+    byte[] replace(String key, byte[] value) throws RemoteException {
+        if (this.values != null) {
+            this.values.invalidate(key);
+        }
+        return ValueCodec.decode(this.gateway.replace(key, ValueCodec.encode(value), 0));
+    }
+
+    /**
+     * Adds to the count of references to a value, routed through the
+     * gateway. The value is removed once its count reaches 0.
+     *
+     * @param key The key of the value.
+     * @param delta The amount to add, negative to take away.
+     * @return The count after the change. 0 if the value is not held, or once
+     * it is removed.
+     */
+    long adjustCount(String key, long delta) throws RemoteException {
+        return this.gateway.adjustCount(key, delta, 0);
+    }
+
+    /**
+     * Gets many values, sending one request to each owner. Keys an owner
+     * turned away are fetched with a routed batch.
+     *
+     * @param keys The keys of the values.
+     * @return The values found, and why any keys could not be read.
+     */
+    BatchResult multiGet(Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        for (Entry<Finger, ArrayList<String>> group : this.groupByOwner(keys).entrySet()) {
+            result.addAll(this.getFrom(group.getKey(), group.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Groups keys by the node responsible for them.
+     *
+     * @param keys The keys to group.
+     * @return The keys each owner is responsible for.
+     */
+    LinkedHashMap<Finger, ArrayList<String>> groupByOwner(Collection<String> keys) throws RemoteException {
+        HashMap<Long, Finger> owners = new HashMap<>(); //One Finger per owner, as lookups make new ones.
+        LinkedHashMap<Finger, ArrayList<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            Finger found = this.owner(Utility.hash(key));
+            Finger owner = owners.computeIfAbsent(found.getKey(), k -> found);
+            groups.computeIfAbsent(owner, k -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Gets many values from one owner. Keys the owners key filter does not
+     * hold are given as not found without asking it. Keys the owner turned
+     * away, or all of them if it could not be reached, are fetched with a
+     * routed batch.
+     *
+     * @param owner The node believed to own the keys.
+     * @param keys The keys of the values.
+     * @return The values found, and why any keys could not be read.
+     */
+    BatchResult getFrom(Finger owner, Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        if (this.filters != null) {
+            ArrayList<String> held = new ArrayList<>();
+            for (String key : keys) {
+                if (this.filters.mightHold(owner.getNode(), Utility.hash(key))) {
+                    held.add(key);
+                } else {
+                    result.succeeded(key, null);
+                }
+            }
+            if (held.isEmpty()) {
+                return result;
+            }
+            keys = held;
+        }
+        ArrayList<String> missed = new ArrayList<>();
+        try {
+            BatchResult answer = owner.getNode().getOwnedBatch(keys);
+            if (!answer.getErrors().isEmpty()) {
+                this.invalidate(owner);
+                missed.addAll(answer.getErrors().keySet());
+            }
+            for (Entry<String, byte[]> value : answer.getValues().entrySet()) {
+                result.succeeded(value.getKey(), ValueCodec.decode(value.getValue()));
+            }
+        } catch (RemoteException e) {
+            this.invalidate(owner);
+            missed.addAll(keys);
+        }
+        if (!missed.isEmpty()) {
+            result.addAll(this.gateway.multiGet(missed));
+        }
+        return result;
+    }
+
+    /**
+     * Checks which of many keys one owner holds, without fetching their
+     * values. Key filters are not used, as the owner answers with a flag per
+     * key, far less than its filter. Keys the owner turned away, or all of
+     * them if it could not be reached, are fetched with a routed batch
+     * instead.
+     *
+     * @param owner The node believed to own the keys.
+     * @param keys The keys to check.
+     * @return An empty value for each key held, null for each key not held,
+     * and why any keys could not be checked.
+     */
+    BatchResult holdsFrom(Finger owner, Collection<String> keys) throws RemoteException {
+        BatchResult result = new BatchResult();
+        ArrayList<String> missed = new ArrayList<>();
+        try {
+            BatchResult answer = owner.getNode().holdsOwnedBatch(keys);
+            if (!answer.getErrors().isEmpty()) {
+                this.invalidate(owner);
+                missed.addAll(answer.getErrors().keySet());
+            }
+            for (Entry<String, byte[]> value : answer.getValues().entrySet()) {
+                result.succeeded(value.getKey(), value.getValue());
+            }
+        } catch (RemoteException e) {
+            this.invalidate(owner);
+            missed.addAll(keys);
+        }
+        if (!missed.isEmpty()) {
+            BatchResult fetched = this.gateway.multiGet(missed);
+            for (Entry<String, byte[]> value : fetched.getValues().entrySet()) {
+                result.succeeded(value.getKey(), value.getValue() == null ? null : new byte[0]);
+            }
+            for (Entry<String, String> error : fetched.getErrors().entrySet()) {
+                result.failed(error.getKey(), error.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the node responsible for a key through the gateway, without
+     * using or changing the known ranges.
+     *
+     * @param hashKey The key to find the owner of.
+     * @return The node responsible for the key.
+     */
+    IChordNode findSuccessor(long hashKey) throws RemoteException {
+        return this.gateway.findSuccessor(hashKey);
+    }
+
+    /**
+     * Finds the owner of a key, from the known ranges if one holds it, or by a
+     * lookup through the gateway that then becomes a known range.
+     *
+     * @param hashKey The key to find the owner of.
+     * @return The Finger of the node responsible for the key.
+     */
+    private Finger owner(long hashKey) throws RemoteException {
+        Entry<Long, Range> entry = this.ranges.ceilingEntry(hashKey);
+        if (entry == null) { //Wrap around the ring to the first range.
+            entry = this.ranges.firstEntry();
+        }
+        if (entry != null && ChordNode.isInHalfOpenRangeR(hashKey, entry.getValue().from, entry.getKey())) {
+            return entry.getValue().owner;
+        }
+        Finger owner = this.gateway.lookup(hashKey).getOwner();
+        Finger predecessor = owner.getNode().getPredecessor();
+        if (predecessor != null) {
+            if (this.ranges.size() >= MAX_RANGES) {
+                this.ranges.pollFirstEntry(); //Ranges are evenly spread, so which goes matters little.
+            }
+            this.ranges.put(owner.getKey(), new Range(predecessor.getKey(), owner));
+        }
+        return owner;
+    }
+
+    private void invalidate(Finger owner) {
+        this.ranges.remove(owner.getKey());
+    }
+
+    /**
+     * A range of the ring and the node responsible for it. The key of the
+     * owner is the inclusive end of the range.
+     */
+    private static class Range {
+
+        long from;      //The exclusive start of the range, the key of the owners predecessor.
+        Finger owner;   //The node responsible for the range.
+
+        Range(long from, Finger owner) {
+            this.from = from;
+            this.owner = owner;
+        }
+    }
+}
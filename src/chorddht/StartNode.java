@@ -10,6 +10,7 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,8 +57,11 @@ public class StartNode {
         } else {
             this.node = new ChordNode(nodeName);
         }
-        try { //Register node on RMI registry
+        try { //Register node on RMI registry. Virtual nodes are exported on the same port, but not bound.
             IChordNode chordStub = (IChordNode) UnicastRemoteObject.exportObject(node, 0);
+            for (ChordNode virtualNode : this.node.getVirtualNodes()) {
+                UnicastRemoteObject.exportObject(virtualNode, 0);
+            }
             LocateRegistry.getRegistry().rebind(nodeName, chordStub);
         } catch (RemoteException ex) {
             log("Could not register node within the RMI server.");
@@ -71,6 +75,11 @@ public class StartNode {
             inputString = input.nextLine();
             this.joinNode(inputString);
         } else {
+            try {
+                this.node.createRing();
+            } catch (RemoteException ex) {
+                log("Could not create a ring with the virtual nodes.");
+            }
             this.inRing = true;
             System.out.println("Idling");
         }
@@ -108,6 +117,18 @@ public class StartNode {
                     case "put":
                         this.put(inputString.substring(4));
                         break;
+                    case "lookup":
+                        this.lookup(inputString.substring(7));
+                        break;
+                    case "share":
+                        this.share();
+                        break;
+                    case "fingers":
+                        log("Routing table of " + this.node.getName() + ":\n" + this.node.fingerStats());
+                        break;
+                    case "mode":
+                        this.node.setLookupMode(LookupMode.stringToMode(inputString.substring(5)));
+                        break;
                 }
             } catch (IllegalArgumentException e) {
                 log("Passed to many arguments to command.");
@@ -146,6 +167,32 @@ public class StartNode {
         }
     }
 
+    /**
+     * Looks up the owner of a specified key and prints the route taken.
+     * @param key The key to find the owner of in the Chord ring.
+     */
+    public void lookup(String key) {
+        try {
+            LookupResult result = this.node.lookup(Utility.hash(key));
+            log(this.node.getLookupMode() + " lookup of " + key + ": " + result);
+        } catch (RemoteException ex) {
+            log("Could not look up key " + key + ".");
+        }
+    }
+
+    /**
+     * Prints the share of the key space each process in the ring owns.
+     */
+    public void share() {
+        try {
+            for (Entry<String, Double> share : this.node.keySpaceShares().entrySet()) {
+                log(share.getKey() + ": " + String.format("%.2f", share.getValue() * 100) + "% of key space");
+            }
+        } catch (RemoteException ex) {
+            log("Could not walk the ring to work out key space shares.");
+        }
+    }
+
     /**
      * Makes the node leave the Chord ring and safely distributes any remaining data it held onto.
      */
@@ -0,0 +1,206 @@
+package chorddht;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the data of a Chord node, grouped into stores by hash key. Hash keys
+ * are kept in ring order so ranges of them can be handed to other nodes.
+ * Implementations must be safe to use from many threads at once.
+ *
+ * @author Dominic
+ */
+interface StorageEngine {
+
+    int STRIPE_BITS = 6;                                                        //Bits of the hash key picking its lock stripe.
+    int STRIPE_SHIFT = Math.max(0, ChordNode.KEY_BITS - STRIPE_BITS);           //Shift taking a hash key to its stripe.
+
+    /**
+     * Adds a value, replacing any value already held under its key.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     * @param value The bytes of the value.
+     */
+    void put(long hashKey, String key, byte[] value);
+
+    /**
+     * Gets a value.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     * @return The bytes of the value, or null if it is not held.
+     */
+    byte[] get(long hashKey, String key);
+
+    /**
+     * Removes a value, dropping its store once it holds nothing else. Other
+     * values under the same hash key are untouched, even if they are changed
+     * at the same time.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     */
+    void remove(long hashKey, String key);
+
+    /**
+     * Gets part of a value, without copying the rest of it where the engine
+     * can avoid it.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     * @param offset The position in the value to start reading from.
+     * @param length The most bytes to read.
+     * @return The bytes read, fewer than asked for at the end of the value, or
+     * null if it is not held.
+     */
+    default byte[] getRange(long hashKey, String key, long offset, int length) {
+        byte[] value = this.get(hashKey, key);
+        if (value == null) {
+            return null;
+        }
+        int start = (int) Math.min(offset, value.length);
+        return Arrays.copyOfRange(value, start, (int) Math.min(value.length, (long) start + length));
+    }
+
+    /**
+     * Adds a value read from a file, replacing any value already held under
+     * its key. Engines that can copy the file straight into their own storage
+     * do so, rather than reading it into the heap first.
+     *
+     * @param hashKey The hash of the key.
+     * @param key The key of the value.
+     * @param source The file holding the bytes of the value from its start.
+     * @param length The length of the value.
+     */
+    default void put(long hashKey, String key, FileChannel source, int length) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(length);
+        while (value.hasRemaining()) {
+            if (source.read(value, value.position()) < 0) {
+                throw new IOException("File ended before the value did.");
+            }
+        }
+        this.put(hashKey, key, value.array());
+    }
+
+    /**
+     * Gets all values held under a hash key as a store that can be sent to
+     * another node.
+     *
+     * @param hashKey The hash key.
+     * @return A copy of the store, or null if nothing is held under the hash
+     * key.
+     */
+    Store getStore(long hashKey);
+
+    /**
+     * Adds the values of a store, replacing any values already held under its
+     * hash key.
+     *
+     * @param store The store to add.
+     */
+    void putStore(Store store);
+
+    /**
+     * Adds the values of a store that are not already held.
+     *
+     * @param store The store to add.
+     */
+    void mergeStore(Store store);
+
+    /**
+     * Removes all values held under a hash key.
+     *
+     * @param hashKey The hash key.
+     */
+    void removeStore(long hashKey);
+
+    /**
+     * Removes all values held under the hash key of a store, but only if they
+     * are still exactly the values of the store, checked and removed without
+     * any other change to the hash key in between.
+     *
+     * @param store The values expected to be held.
+     * @return A boolean representing if the values were removed.
+     */
+    boolean removeStoreIfSame(Store store);
+
+    /**
+     * Gets the hash keys in the ring range (from, to], in ring order. The
+     * range wraps if to is not after from.
+     *
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range.
+     * @return A snapshot of the hash keys in the range.
+     */
+    List<Long> keysInRange(long from, long to);
+
+    /**
+     * Gets every hash key held, in ring order.
+     *
+     * @return A snapshot of the hash keys.
+     */
+    List<Long> keys();
+
+    /**
+     * Gets the digest of each store in the ring range (from, to], as made by
+     * MerkleTree.digest(). Engines that keep digests as stores change give
+     * them without reading any values.
+     *
+     * @param from The exclusive start of the range.
+     * @param to The inclusive end of the range.
+     * @return The digest of each store in the range, by hash key.
+     */
+    default Map<Long, Long> digestsInRange(long from, long to) {
+        HashMap<Long, Long> digests = new HashMap<>();
+        for (long hashKey : this.keysInRange(from, to)) {
+            Store store = this.getStore(hashKey);
+            if (store != null) {
+                digests.put(hashKey, MerkleTree.digest(store));
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Picks the lock stripe of a hash key, by the range of the ring it is in,
+     * so writes to different parts of the ring do not wait for each other.
+     *
+     * @param hashKey The hash key.
+     * @return The stripe, from 0 to 2^STRIPE_BITS - 1.
+     */
+    static int stripeOf(long hashKey) {
+        return (int) (hashKey >>> STRIPE_SHIFT) & ((1 << STRIPE_BITS) - 1);
+    }
+
+    /**
+     * Creates the storage engine chosen with -Dchorddht.storage. Either
+     * "heap", the default, or "offheap". If -Dchorddht.dataDir is set, changes
+     * are also logged there and the data the node held when it last stopped
+     * is loaded. Digests of the stores are kept for replica repair, below the
+     * log, so loaded data is digested as it loads.
+     *
+     * @param name The name of the node the engine is for.
+     * @return A new storage engine.
+     */
+    static StorageEngine create(String name) {
+        StorageEngine engine;
+        if ("offheap".equalsIgnoreCase(System.getProperty("chorddht.storage"))) {
+            engine = new OffHeapStorageEngine(name);
+        } else {
+            engine = new HeapStorageEngine();
+        }
+        engine = new DigestedStorageEngine(engine);
+        String dataDir = System.getProperty("chorddht.dataDir");
+        if (dataDir != null) {
+            engine = new LoggedStorageEngine(engine, new File(dataDir), name);
+        }
+        return engine;
+    }
+}
@@ -1,21 +1,30 @@
 package chorddht;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * Class used to store data within the DHT system.
  * @author Dominic
  */
 class Store implements Serializable{
-    private int key;     //Key for the data to store, for searching purposes.
+    private long key;    //Key for the data to store, for searching purposes.
     private HashMap<String,byte[]> values = new HashMap<>();
 
     /**
      * Creates a new store with a key associated to some data.
      * @param hashKey The key of the data.
      */
-    Store(int hashKey) {
+    Store(long hashKey) {
         this.key = hashKey;
     }
     
@@ -23,7 +32,7 @@ class Store implements Serializable{
      * Creates a new store with a key associated to some data.
      * @param hashKey The key of the data.
      */
-    Store(int hashKey, String key ,byte[] bytes) {
+    Store(long hashKey, String key ,byte[] bytes) {
         this.key = hashKey;
         this.values.put(key, bytes);
     }
@@ -32,7 +41,7 @@ class Store implements Serializable{
      * Gets the key of this store.
      * @return The key of this store.
      */
-    public int getKey() {
+    public long getKey() {
         return key;
     }
 
@@ -59,6 +68,83 @@ class Store implements Serializable{
     public byte[] put(String key, byte[] value) {
         return this.values.put(key,value);
     }
+
+    /**
+     * Gets all the values in this store, by name.
+     * @return The values in this store.
+     */
+    public Map<String, byte[]> getValues() {
+        return this.values;
+    }
+
+    /**
+     * Adds the values of another store with the same key, keeping any value
+     * already held for a given name.
+     * @param other The store to take missing values from.
+     */
+    public void putAbsent(Store other) {
+        for (Entry<String, byte[]> entry : other.values.entrySet()) {
+            this.values.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Checks if another store holds exactly the same values as this one.
+     * @param other The store to compare with.
+     * @return A boolean representing if both stores hold the same values.
+     */
+    public boolean sameValues(Store other) {
+        if (other == null || other.values.size() != this.values.size()) {
+            return false;
+        }
+        for (Entry<String, byte[]> entry : this.values.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), other.values.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts this store to bytes, as the hash key, the amount of values,
+     * then each key and value prefixed by their lengths.
+     * @return The bytes of this store.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(this.key);
+            out.writeInt(this.values.size());
+            for (Entry<String, byte[]> value : this.values.entrySet()) {
+                byte[] name = value.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(value.getValue().length);
+                out.write(value.getValue());
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); //Cannot happen writing to memory.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Converts bytes made by encode() back to a store.
+     * @param bytes The bytes of the store.
+     * @return The store.
+     */
+    static Store decode(ByteBuffer bytes) {
+        Store store = new Store(bytes.getLong());
+        int count = bytes.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[bytes.getInt()];
+            bytes.get(name);
+            byte[] value = new byte[bytes.getInt()];
+            bytes.get(value);
+            store.put(new String(name, StandardCharsets.UTF_8), value);
+        }
+        return store;
+    }
     
     
 }
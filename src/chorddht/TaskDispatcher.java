@@ -0,0 +1,383 @@
+package chorddht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+/**
+ * The queue of tasks waiting for a worker, handing each task to a worker on a
+ * process holding its input where it can, so the input is read from the local
+ * store rather than moved across the ring.
+ *
+ * Each task is queued with the hosts of the owner of its input and of the
+ * replicas of the owner. A worker asking for a task gets the oldest task held
+ * by its own host. If there is none, it takes the oldest task no other worker
+ * could read locally: one whose hosts had no workers taking tasks when it was
+ * queued, or one that has waited STEAL_DELAY without a worker of its hosts
+ * taking it. Tasks are kept apart by which of these they are, in the order
+ * they may be stolen, so a worker finds one without looking through the
+ * tasks kept for other hosts.
+ *
+ * Every task handed out is leased, alone or in a batch, and indexed by its
+ * lease while in flight. Workers renew their leases while they process the
+ * tasks, and complete them with the tasks they finished in one call. A lease
+ * not renewed for LEASE_TIME runs out and its tasks are queued again, once,
+ * so the time to recover the tasks of a failed worker is set by
+ * chorddht.leaseTime.
+ *
+ * @author Dominic
+ */
+public class TaskDispatcher {
+
+    static final int STEAL_DELAY = Integer.getInteger("chorddht.stealDelay", 200); //In milliseconds. Time a task is kept for the workers holding its input.
+    static final int WORKER_TIMEOUT = 60 * 1000;    //In milliseconds. Time since a host last asked for a task before it counts as having no workers.
+    static final int LEASE_TIME = Integer.getInteger("chorddht.leaseTime", 30 * 1000); //In milliseconds. Time a lease lasts after being given or renewed.
+
+    private int capacity;                                                       //Most tasks queued at once by add(). Leased tasks queued again may go past it.
+    private LinkedHashMap<Task, Queued> queued = new LinkedHashMap<>();         //Tasks waiting, oldest first.
+    private HashMap<String, LinkedHashSet<Task>> byHost = new HashMap<>();      //Tasks waiting, by the hosts holding their input, oldest first.
+    private LinkedHashSet<Task> unplaced = new LinkedHashSet<>();               //Tasks waiting whose hosts had no workers when queued, oldest first. Any worker may take them.
+    private LinkedHashSet<Task> placed = new LinkedHashSet<>();                 //Tasks waiting for workers of their hosts, oldest first, so soonest to be stolen first.
+    private HashMap<String, Long> workers = new HashMap<>();                    //When each host last asked for a task.
+    private HashMap<Long, Leased> leases = new HashMap<>();                     //Leases held by workers, by id.
+    private TreeSet<Leased> byExpiry = new TreeSet<>(Comparator.comparingLong((Leased l) -> l.expiresAt).thenComparingLong(l -> l.id)); //Leases held, soonest to run out first.
+    private HashMap<Task, Long> leasedTasks = new HashMap<>();                  //Ids of the leases holding each leased task.
+    private long nextLeaseId;                                                   //Id of the last lease given.
+    private long nextSteal;                                                     //In milliseconds. Time until a queued task may be stolen, found by the last poll. 0 if none.
+    private long local;                                                         //Tasks handed to a host holding their input.
+    private long stolen;                                                        //Tasks handed to any other host.
+    private long redelivered;                                                   //Tasks handed out again after their lease ran out.
+
+    /**
+     * Creates an empty dispatcher.
+     *
+     * @param capacity Most tasks queued at once.
+     */
+    public TaskDispatcher(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a task that any worker is as well placed to process.
+     *
+     * @param task The task to queue.
+     */
+    public void add(Task task) {
+        this.add(task, Collections.emptyList());
+    }
+
+    /**
+     * Queues a task for the workers on the hosts holding its input.
+     *
+     * @param task The task to queue.
+     * @param hosts The names of the hosts holding the input of the task.
+     * @throws IllegalStateException If the queue is full.
+     */
+    public synchronized void add(Task task, List<String> hosts) {
+        if (this.queued.containsKey(task)) {
+            return;
+        }
+        if (this.queued.size() >= this.capacity) {
+            throw new IllegalStateException("Task queue full");
+        }
+        this.enqueue(task, new ArrayList<>(new LinkedHashSet<>(hosts)));
+    }
+
+    private void enqueue(Task task, List<String> hosts) {
+        Queued entry = new Queued(hosts);
+        this.queued.put(task, entry);
+        for (String host : entry.hosts) {
+            this.byHost.computeIfAbsent(host, h -> new LinkedHashSet<>()).add(task);
+        }
+        if (this.hasWorkers(entry.hosts, entry.at)) {
+            this.placed.add(task);
+        } else {
+            this.unplaced.add(task);
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Checks if a task is queued or leased to a worker.
+     *
+     * @param task The task to check.
+     * @return A boolean representing if the task is waiting for or held by a worker.
+     */
+    public synchronized boolean contains(Task task) {
+        return this.queued.containsKey(task) || this.leasedTasks.containsKey(task);
+    }
+
+    /**
+     * Takes the next task for a worker, waiting until there is one. The task
+     * is leased alone, and the lease ends once the task is finished.
+     *
+     * @param host The name of the host the worker runs on, or null if it holds
+     * no input.
+     * @return The task to process.
+     */
+    public Task take(String host) throws InterruptedException {
+        TaskLease lease;
+        while ((lease = this.takeBatch(host, 1, LEASE_TIME)) == null) {
+            //Nothing queued yet.
+        }
+        return lease.getTasks().get(0);
+    }
+
+    /**
+     * Leases a batch of tasks to a worker, waiting a while for the first. The
+     * batch is filled with any further tasks the worker may take, without
+     * waiting for them.
+     *
+     * @param host The name of the host the worker runs on, or null if it holds
+     * no input.
+     * @param max Most tasks to lease.
+     * @param waitMillis Most time to wait for a first task, in milliseconds.
+     * @return The lease, or null if no task could be taken in time.
+     */
+    public synchronized TaskLease takeBatch(String host, int max, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        Task task;
+        while ((task = this.poll(host)) == null) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            long wake = this.nextWake();
+            this.wait(wake == 0 ? left : Math.min(left, wake));
+        }
+        Leased leased = new Leased(++this.nextLeaseId);
+        do {
+            leased.tasks.put(task, this.remove(task));
+        } while (leased.tasks.size() < max && (task = this.poll(host)) != null);
+        this.leases.put(leased.id, leased);
+        this.byExpiry.add(leased);
+        for (Task leasedTask : leased.tasks.keySet()) {
+            this.leasedTasks.put(leasedTask, leased.id);
+        }
+        return new TaskLease(leased.id, new ArrayList<>(leased.tasks.keySet()), LEASE_TIME);
+    }
+
+    /**
+     * Extends a lease, as the worker holding it is still processing its tasks.
+     *
+     * @param leaseId The id of the lease.
+     * @return A boolean representing if the lease is still held. False once it
+     * has run out and its tasks were handed out again.
+     */
+    public synchronized boolean renew(long leaseId) {
+        this.expire(System.currentTimeMillis());
+        Leased leased = this.leases.get(leaseId);
+        if (leased == null) {
+            return false;
+        }
+        this.byExpiry.remove(leased);
+        leased.expiresAt = System.currentTimeMillis() + LEASE_TIME;
+        this.byExpiry.add(leased);
+        return true;
+    }
+
+    /**
+     * Ends a lease. Tasks of the lease that were not finished are queued
+     * again for their hosts. If the lease had already run out, the finished
+     * tasks are taken back off the queue where they still wait to be handed
+     * out again.
+     *
+     * @param leaseId The id of the lease.
+     * @param done The tasks of the lease that were finished.
+     */
+    public synchronized void complete(long leaseId, Collection<Task> done) {
+        Leased leased = this.leases.remove(leaseId);
+        if (leased == null) {
+            for (Task task : done) {
+                if (this.queued.containsKey(task)) {
+                    this.remove(task);
+                }
+            }
+            return;
+        }
+        this.byExpiry.remove(leased);
+        HashSet<Task> finished = new HashSet<>(done);
+        for (Entry<Task, Queued> entry : leased.tasks.entrySet()) {
+            this.leasedTasks.remove(entry.getKey());
+            if (!finished.contains(entry.getKey())) {
+                this.requeue(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Marks one leased task finished, ending its lease once every task of the
+     * lease is.
+     *
+     * @param task The task finished.
+     */
+    public synchronized void finish(Task task) {
+        Long leaseId = this.leasedTasks.remove(task);
+        Leased leased = leaseId == null ? null : this.leases.get(leaseId);
+        if (leased == null) {
+            this.complete(-1, Collections.singletonList(task)); //Its lease ran out.
+            return;
+        }
+        leased.tasks.remove(task);
+        if (leased.tasks.isEmpty()) {
+            this.leases.remove(leaseId);
+            this.byExpiry.remove(leased);
+        }
+    }
+
+    /**
+     * Hands out again the tasks of leases that have run out, each lease once,
+     * as the worker holding it has stopped renewing it.
+     *
+     * @param now The current time.
+     */
+    private void expire(long now) {
+        Leased leased;
+        while (!this.byExpiry.isEmpty() && (leased = this.byExpiry.first()).expiresAt <= now) {
+            this.byExpiry.pollFirst();
+            this.leases.remove(leased.id);
+            for (Entry<Task, Queued> entry : leased.tasks.entrySet()) {
+                this.leasedTasks.remove(entry.getKey());
+                this.requeue(entry.getKey(), entry.getValue());
+                this.redelivered++;
+            }
+        }
+    }
+
+    /**
+     * Queues a leased task again. The task was already let in when first
+     * queued, so it is queued even past capacity, rather than being lost.
+     *
+     * @param task The task.
+     * @param entry How the task was queued before it was leased.
+     */
+    private void requeue(Task task, Queued entry) {
+        if (this.queued.containsKey(task)) {
+            return;
+        }
+        if (this.queued.size() >= this.capacity) {
+            Utility.log("Task queue over capacity, with " + (this.queued.size() + 1) + " tasks, as leased tasks were queued again.");
+        }
+        this.enqueue(task, entry.hosts);
+    }
+
+    /**
+     * Gets the time until a waiting worker may find a task: a queued task may
+     * be stolen, or a lease runs out.
+     *
+     * @return The time in milliseconds, or 0 to wait for a new task.
+     */
+    private long nextWake() {
+        long wake = this.nextSteal;
+        if (!this.byExpiry.isEmpty()) {
+            long expiry = Math.max(1, this.byExpiry.first().expiresAt - System.currentTimeMillis());
+            wake = wake == 0 ? expiry : Math.min(wake, expiry);
+        }
+        return wake;
+    }
+
+    /**
+     * Picks the next task for a worker, without taking it. When there is
+     * none, sets nextSteal to the time until a queued task may be stolen.
+     *
+     * @param host The name of the host the worker runs on, or null.
+     * @return The task, or null if there is none the worker may take yet.
+     */
+    private Task poll(String host) {
+        long now = System.currentTimeMillis();
+        this.expire(now);
+        if (host != null) {
+            this.workers.put(host, now);
+        }
+        LinkedHashSet<Task> own = host == null ? null : this.byHost.get(host);
+        if (own != null && !own.isEmpty()) {
+            this.local++;
+            return own.iterator().next();
+        }
+        this.nextSteal = 0; //0 waits for a new task.
+        if (!this.unplaced.isEmpty()) {
+            this.stolen++;
+            return this.unplaced.iterator().next();
+        }
+        if (this.placed.isEmpty()) {
+            return null;
+        }
+        Task oldest = this.placed.iterator().next();
+        long left = this.queued.get(oldest).at + STEAL_DELAY - now;
+        if (left <= 0) {
+            this.stolen++;
+            return oldest;
+        }
+        this.nextSteal = left;
+        return null;
+    }
+
+    /**
+     * Describes how many tasks were handed to a host holding their input.
+     *
+     * @return The counts of tasks handed out locally and stolen.
+     */
+    public synchronized String describe() {
+        return "Tasks queued " + this.queued.size() + ", leased " + this.leasedTasks.size() + " in " + this.leases.size() + " leases, local " + this.local + ", stolen " + this.stolen + ", redelivered " + this.redelivered;
+    }
+
+    private boolean hasWorkers(Collection<String> hosts, long now) {
+        for (String host : hosts) {
+            Long seen = this.workers.get(host);
+            if (seen != null && now - seen < WORKER_TIMEOUT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Queued remove(Task task) {
+        Queued entry = this.queued.remove(task);
+        if (!this.unplaced.remove(task)) {
+            this.placed.remove(task);
+        }
+        for (String host : entry.hosts) {
+            LinkedHashSet<Task> tasks = this.byHost.get(host);
+            tasks.remove(task);
+            if (tasks.isEmpty()) {
+                this.byHost.remove(host);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * A queued task's input hosts and when it was queued.
+     */
+    private static class Queued {
+
+        final List<String> hosts;                       //The hosts holding the input of the task.
+        final long at = System.currentTimeMillis();     //When the task was queued.
+
+        Queued(List<String> hosts) {
+            this.hosts = hosts;
+        }
+    }
+
+    /**
+     * The tasks of a lease and when it runs out.
+     */
+    private static class Leased {
+
+        final long id;                                                      //The id of the lease.
+        final LinkedHashMap<Task, Queued> tasks = new LinkedHashMap<>();    //The tasks leased, with how they were queued.
+        long expiresAt = System.currentTimeMillis() + LEASE_TIME;           //When the lease runs out unless renewed.
+
+        Leased(long id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package chorddht;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A batch of tasks handed to a worker at once. The worker owns the tasks for
+ * as long as it holds the lease, renewing it while it processes them, and
+ * hands back the tasks it finished in one call when done.
+ *
+ * @author Dominic
+ */
+public class TaskLease implements Serializable {
+
+    private long id;                    //The id the lease is renewed and completed with.
+    private ArrayList<Task> tasks;      //The tasks leased.
+    private long duration;              //In milliseconds. Time the lease lasts after being given or renewed.
+
+    /**
+     * Creates a lease of the given tasks.
+     *
+     * @param id The id of the lease.
+     * @param tasks The tasks leased.
+     * @param duration Time the lease lasts after being given or renewed, in milliseconds.
+     */
+    public TaskLease(long id, ArrayList<Task> tasks, long duration) {
+        this.id = id;
+        this.tasks = tasks;
+        this.duration = duration;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public ArrayList<Task> getTasks() {
+        return tasks;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+}
@@ -22,6 +22,15 @@ public enum TaskType {
             return type;
         }
 
+        /**
+         * Checks if processing the same resource again always gives the same results, so results can be reused.
+         * Encryption makes a new key each time, which must not be shared between tasks.
+         * @return A boolean representing if results of this type can be reused.
+         */
+        public boolean isReusable() {
+            return this == WORD_METRICS || this == HASH;
+        }
+
         /**
          * Converts a given string to a TaskType.
          * @param type The string to convert to a type.
@@ -0,0 +1,42 @@
+package chorddht;
+
+import java.rmi.RemoteException;
+
+/**
+ * Carries the small, frequent data requests made between nodes and by
+ * clients. Chosen with -Dchorddht.transport. "rmi", the default, makes the
+ * calls on the RMI stubs. "nio" sends them over the binary transport to
+ * nodes that serve it, using RMI for nodes that do not.
+ *
+ * @author Dominic
+ */
+interface Transport {
+
+    static final Transport INSTANCE = "nio".equalsIgnoreCase(System.getProperty("chorddht.transport")) ? new NioTransport() : new RmiTransport();
+
+    /**
+     * Gets the transport this process uses.
+     *
+     * @return The transport chosen with -Dchorddht.transport.
+     */
+    static Transport get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if nodes of this process should serve the binary transport.
+     *
+     * @return A boolean representing if the binary transport is in use.
+     */
+    static boolean isNio() {
+        return INSTANCE instanceof NioTransport;
+    }
+
+    byte[] getOwned(Finger owner, String key, long hashKey) throws RemoteException, NotOwnerException;
+
+    void putOwned(Finger owner, String key, byte[] value) throws RemoteException, NotOwnerException;
+
+    void putReplica(Finger replica, String key, long hashKey, byte[] value) throws RemoteException;
+
+    byte[] getStoreBytes(Finger node, String key, long hashKey) throws RemoteException;
+}
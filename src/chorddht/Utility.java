@@ -1,6 +1,9 @@
 package chorddht;
 
-import static chorddht.ChordNode.KEY_BITS;
+import static chorddht.ChordNode.KEY_MASK;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -12,20 +15,34 @@ public class Utility {
 
     /**
      * Converts a given string to a key that can be used with the distributed
-     * hash table.
+     * hash table. The key is the SHA-1 digest of the string, truncated to the
+     * width of the identifier ring. Keys are unsigned when the ring is 64 bits
+     * wide.
      *
      * @param s The string to return the hash of.
      * @return The has of the string.
      */
-    public static int hash(String s) {
-        int hash = 0;
-        for (int i = 0; i < s.length(); i++) {
-            hash = hash * 31 + (int) s.charAt(i);
+    public static long hash(String s) {
+        byte[] digest = sha1(s.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
         }
-        if (hash < 0) {
-            hash = hash * -1;
+        return hash & KEY_MASK;
+    }
+
+    /**
+     * Produces the SHA-1 digest of the given bytes.
+     *
+     * @param bytes The bytes to digest.
+     * @return The 160 bit digest of the bytes.
+     */
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException ex) { //Every Java platform is required to support SHA-1.
+            throw new IllegalStateException("SHA-1 not available.", ex);
         }
-        return hash % ((int) Math.pow(2, KEY_BITS));
     }
     
     /**
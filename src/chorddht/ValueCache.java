@@ -0,0 +1,308 @@
+package chorddht;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps copies of values read from other nodes, bounded by their total size,
+ * so popular values are answered by the first node reached rather than by
+ * their owner every time.
+ *
+ * Entries are chosen as in W-TinyLFU. New values enter a small window kept in
+ * least recently used order. Values leaving the window only enter the main
+ * part of the cache if they have been asked for more often than the value
+ * they would push out, as counted by a frequency sketch that is halved now
+ * and then so old popularity fades. The main part is split into a probation
+ * segment, and a protected segment for values asked for again while in
+ * probation.
+ *
+ * Every entry holds the version of its value, a digest of its bytes. Entries
+ * are served as they are for TTL after being fetched, then checked against
+ * the owner, which only sends the value back if its version has changed.
+ *
+ * @author Dominic
+ */
+class ValueCache {
+
+    static final long MAX_BYTES = Long.getLong("chorddht.valueCacheBytes", 32L * 1024 * 1024); //Most bytes held. 0 turns the cache off.
+    static final int TTL = Integer.getInteger("chorddht.valueCacheTtl", 1000); //In milliseconds. Time an entry is served without checking its version.
+    static final int ENTRY_OVERHEAD = 64;       //Bytes counted for each entry on top of its key and value.
+    static final int WINDOW_PERCENT = 1;        //Share of the cache new values enter.
+    static final int PROTECTED_PERCENT = 80;    //Share of the main part of the cache kept for values asked for again.
+
+    private long maxBytes;                      //Most bytes held.
+    private long windowMax;                     //Most bytes held in the window.
+    private long protectedMax;                  //Most bytes held in the protected segment.
+    private long windowBytes;                   //Bytes held in the window.
+    private long probationBytes;                //Bytes held in the probation segment.
+    private long protectedBytes;                //Bytes held in the protected segment.
+    private LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);     //New entries, least recently used first.
+    private LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);  //Admitted entries, least recently used first.
+    private LinkedHashMap<String, Entry> protect = new LinkedHashMap<>(16, 0.75f, true);    //Entries used again while in probation, least recently used first.
+    private FrequencySketch sketch;             //How often each key has been asked for, roughly.
+
+    /**
+     * Creates a cache of the size given by chorddht.valueCacheBytes.
+     */
+    ValueCache() {
+        this(MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache of the given size.
+     *
+     * @param maxBytes Most bytes to hold. 0 turns the cache off.
+     */
+    ValueCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.windowMax = Math.max(1, this.maxBytes * WINDOW_PERCENT / 100);
+        this.protectedMax = (this.maxBytes - this.windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(this.maxBytes);
+    }
+
+    boolean isEnabled() {
+        return this.maxBytes > 0;
+    }
+
+    /**
+     * Gets the entry for a key, counting the request towards how popular the
+     * key is whether it is held or not.
+     *
+     * @param key The key of the value.
+     * @return The entry, or null if the value is not held.
+     */
+    synchronized Entry get(String key) {
+        if (!this.isEnabled()) {
+            return null;
+        }
+        this.sketch.increment(key);
+        Entry entry = this.window.get(key);
+        if (entry == null) {
+            entry = this.protect.get(key);
+        }
+        if (entry == null) {
+            entry = this.probation.remove(key);
+            if (entry != null) { //Used again, so protect it.
+                this.probationBytes -= entry.size;
+                this.protect.put(key, entry);
+                this.protectedBytes += entry.size;
+                this.demote();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Holds a value fetched from another node.
+     *
+     * @param key The key of the value.
+     * @param value The value.
+     * @return The version of the value.
+     */
+    synchronized long put(String key, byte[] value) {
+        long version = version(value);
+        if (!this.isEnabled()) {
+            return version;
+        }
+        this.invalidate(key);
+        Entry entry = new Entry(key, value, version);
+        if (entry.size > this.maxBytes - this.windowMax) {
+            return version; //Would push out the whole cache.
+        }
+        this.window.put(key, entry);
+        this.windowBytes += entry.size;
+        while (this.windowBytes > this.windowMax) {
+            Iterator<Entry> oldest = this.window.values().iterator();
+            Entry candidate = oldest.next();
+            oldest.remove();
+            this.windowBytes -= candidate.size;
+            this.admit(candidate);
+        }
+        return version;
+    }
+
+    /**
+     * Marks an entry as just checked to be current.
+     *
+     * @param entry The entry.
+     */
+    void refresh(Entry entry) {
+        entry.fetchedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Drops the entry for a key, such as when a new value is stored for it.
+     *
+     * @param key The key of the value.
+     */
+    synchronized void invalidate(String key) {
+        Entry entry;
+        if ((entry = this.window.remove(key)) != null) {
+            this.windowBytes -= entry.size;
+        } else if ((entry = this.probation.remove(key)) != null) {
+            this.probationBytes -= entry.size;
+        } else if ((entry = this.protect.remove(key)) != null) {
+            this.protectedBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Moves an entry leaving the window into probation, if it is more popular
+     * than every entry it would push out. The entries it would push out are
+     * all compared before any is removed, so a candidate that is dropped
+     * leaves the cache as it was.
+     *
+     * @param candidate The entry leaving the window.
+     */
+    private void admit(Entry candidate) {
+        long excess = this.probationBytes + this.protectedBytes + candidate.size - (this.maxBytes - this.windowMax);
+        int frequency = this.sketch.frequency(candidate.key);
+        ArrayList<Entry> victims = new ArrayList<>();
+        Iterator<Entry> probationOldest = this.probation.values().iterator();
+        Iterator<Entry> protectedOldest = this.protect.values().iterator();
+        for (long freed = 0; freed < excess; ) { //Iterating does not change the order of either segment.
+            Entry victim = probationOldest.hasNext() ? probationOldest.next() : protectedOldest.next();
+            if (frequency <= this.sketch.frequency(victim.key)) {
+                return; //The candidate is dropped.
+            }
+            victims.add(victim);
+            freed += victim.size;
+        }
+        for (Entry victim : victims) {
+            if (this.probation.remove(victim.key) != null) {
+                this.probationBytes -= victim.size;
+            } else {
+                this.protect.remove(victim.key);
+                this.protectedBytes -= victim.size;
+            }
+        }
+        this.probation.put(candidate.key, candidate);
+        this.probationBytes += candidate.size;
+    }
+
+    /**
+     * Moves the least recently used protected entries back into probation
+     * until the protected segment fits.
+     */
+    private void demote() {
+        while (this.protectedBytes > this.protectedMax) {
+            Iterator<Entry> oldest = this.protect.values().iterator();
+            Entry entry = oldest.next();
+            oldest.remove();
+            this.protectedBytes -= entry.size;
+            this.probation.put(entry.key, entry);
+            this.probationBytes += entry.size;
+        }
+    }
+
+    /**
+     * Gets the version of a value, a digest of its bytes. Never 0, which
+     * stands for a value that is not stored.
+     *
+     * @param value The value.
+     * @return The version.
+     */
+    static long version(byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ value.length) * 0x9e3779b97f4a7c15L;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A cached value.
+     */
+    static class Entry {
+
+        final String key;                       //The key of the value.
+        final byte[] value;                     //The value.
+        final long version;                     //The version of the value.
+        final long size;                        //Bytes counted for the entry.
+        volatile long fetchedAt = System.currentTimeMillis(); //When the value was last known to be current.
+
+        Entry(String key, byte[] value, long version) {
+            this.key = key;
+            this.value = value;
+            this.version = version;
+            this.size = ENTRY_OVERHEAD + 2L * key.length() + value.length;
+        }
+
+        /**
+         * Checks if the entry can be served without checking its version.
+         *
+         * @return A boolean representing if the entry was fetched within TTL.
+         */
+        boolean isFresh() {
+            return System.currentTimeMillis() - this.fetchedAt < TTL;
+        }
+    }
+
+    /**
+     * Counts how often keys are asked for in little memory, as a count-min
+     * sketch of four rows of counters that stop at 15. Once as many keys have
+     * been counted as ten times the width, every counter is halved.
+     */
+    private static class FrequencySketch {
+
+        static final int ROWS = 4;              //Counters each key is counted in.
+        static final int MAX_COUNT = 15;        //Highest a counter goes.
+        static final int MIN_WIDTH = 256;       //Fewest counters in a row.
+        static final int MAX_WIDTH = 1 << 20;   //Most counters in a row.
+        static final int BYTES_PER_KEY = 1024;  //Guess at the size of a cached value, used to size the rows.
+
+        private byte[][] counters;              //The counters, by row.
+        private int mask;                       //Width of a row less one.
+        private int added;                      //Keys counted since the counters were last halved.
+
+        FrequencySketch(long maxBytes) {
+            long keys = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, maxBytes / BYTES_PER_KEY));
+            int width = Integer.highestOneBit((int) keys - 1) << 1;
+            this.counters = new byte[ROWS][width];
+            this.mask = width - 1;
+        }
+
+        void increment(String key) {
+            long hash = spread(key);
+            for (int row = 0; row < ROWS; row++) {
+                int index = this.index(hash, row);
+                if (this.counters[row][index] < MAX_COUNT) {
+                    this.counters[row][index]++;
+                }
+            }
+            if (++this.added >= 10 * this.counters[0].length) {
+                this.halve();
+            }
+        }
+
+        int frequency(String key) {
+            long hash = spread(key);
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, this.counters[row][this.index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (byte[] row : this.counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            this.added /= 2;
+        }
+
+        private int index(long hash, int row) {
+            return ((int) hash + row * ((int) (hash >>> 32) | 1)) & this.mask;
+        }
+
+        private static long spread(String key) {
+            long z = key.hashCode() * 0x9e3779b97f4a7c15L;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            return z ^ (z >>> 31);
+        }
+    }
+}
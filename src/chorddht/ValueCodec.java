@@ -0,0 +1,470 @@
+package chorddht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Defines how a value is compressed while held and moved by the ring. Values
+ * are encoded as they enter the ring through put, and decoded as they leave it
+ * through get, so stores, replicas, logs and every transfer between nodes hold
+ * the encoded form.
+ *
+ * An encoded value is a byte naming its codec, then for compressed values the
+ * length of the value as an int, then the bytes of the codec. Values smaller
+ * than THRESHOLD, or that do not get smaller, are kept as they are after the
+ * codec byte.
+ *
+ * Compressed values larger than FRAME_SIZE, and every compressed value written
+ * in chunks, are split into frames instead, each compressed on its own, so a
+ * part of the value is read by decoding only the frames it falls in. Their
+ * codec byte has FRAMED set, followed by the length of the value, the frame
+ * size and the position of the frame index as ints, then the frames. The
+ * index holds the position of each frame as an int, then the position of the
+ * index itself, where the last frame ends.
+ *
+ * @author Dominic
+ */
+public enum ValueCodec {
+    NONE(0, Deflater.NO_COMPRESSION), FAST(1, Deflater.BEST_SPEED), HIGH(2, Deflater.BEST_COMPRESSION);
+
+    static final ValueCodec DEFAULT = stringToCodec(System.getProperty("chorddht.codec")); //Codec values are encoded with.
+    static final int THRESHOLD = Integer.getInteger("chorddht.compressThreshold", 512); //Smallest value that is compressed, in bytes.
+    static final int RAW_HEADER = 1;            //Bytes before the value, in a value that is not compressed.
+    static final int HEADER = 1 + Integer.BYTES; //Bytes before the compressed bytes, in a value that is.
+    static final int FRAMED_HEADER = 1 + 3 * Integer.BYTES; //Bytes before the first frame, in a value split into frames.
+    static final byte FRAMED = 0x10;            //Set in the codec byte of a value split into frames.
+    static final int FRAME_SIZE = Integer.getInteger("chorddht.frameSize", 1024 * 1024); //Bytes of the value in each frame.
+
+    private final byte marker;                  //The first byte of values encoded with this codec.
+    private final int level;                    //The deflate level used.
+
+    ValueCodec(int marker, int level) {
+        this.marker = (byte) marker;
+        this.level = level;
+    }
+
+    /**
+     * Converts a given string to a ValueCodec. Unknown strings fall back to
+     * the fast codec.
+     *
+     * @param codec The string to convert to a codec.
+     * @return The ValueCodec that the string associates with.
+     */
+    public static ValueCodec stringToCodec(String codec) {
+        if (codec != null && codec.trim().equalsIgnoreCase("none")) {
+            return NONE;
+        } else if (codec != null && codec.trim().equalsIgnoreCase("high")) {
+            return HIGH;
+        }
+        return FAST;
+    }
+
+    /**
+     * Encodes a value with the default codec.
+     *
+     * @param value The value, or null.
+     * @return The encoded value, or null if the value was null.
+     */
+    static byte[] encode(byte[] value) {
+        return encode(value, DEFAULT);
+    }
+
+    /**
+     * Encodes a value with the given codec.
+     *
+     * @param value The value, or null.
+     * @param codec The codec to compress with.
+     * @return The encoded value, or null if the value was null.
+     */
+    static byte[] encode(byte[] value, ValueCodec codec) {
+        if (value == null) {
+            return null;
+        }
+        if (codec != NONE && value.length > FRAME_SIZE) {
+            byte[] framed = encodeFramed(value, codec);
+            if (framed.length < RAW_HEADER + value.length) {
+                return framed;
+            }
+        } else if (codec != NONE && value.length >= THRESHOLD) {
+            Deflater deflater = new Deflater(codec.level, true);
+            try {
+                deflater.setInput(value);
+                deflater.finish();
+                byte[] out = new byte[HEADER + value.length - 1]; //Any larger is not worth keeping.
+                int length = HEADER;
+                while (!deflater.finished() && length < out.length) {
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                if (deflater.finished()) {
+                    ByteBuffer.wrap(out).put(codec.marker).putInt(value.length);
+                    return Arrays.copyOf(out, length);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        byte[] raw = new byte[RAW_HEADER + value.length];
+        raw[0] = NONE.marker;
+        System.arraycopy(value, 0, raw, RAW_HEADER, value.length);
+        return raw;
+    }
+
+    /**
+     * Encodes a value split into frames.
+     *
+     * @param value The value.
+     * @param codec The codec to compress each frame with.
+     * @return The encoded value.
+     */
+    private static byte[] encodeFramed(byte[] value, ValueCodec codec) {
+        int frames = (value.length + FRAME_SIZE - 1) / FRAME_SIZE;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2);
+        out.write(new byte[FRAMED_HEADER], 0, FRAMED_HEADER); //Filled in once the index is placed.
+        ByteBuffer index = ByteBuffer.allocate((frames + 1) * Integer.BYTES);
+        byte[] buffer = new byte[64 * 1024];
+        Deflater deflater = new Deflater(codec.level, true);
+        try {
+            for (int start = 0; start < value.length; start += FRAME_SIZE) {
+                index.putInt(out.size());
+                deflater.reset();
+                deflater.setInput(value, start, Math.min(FRAME_SIZE, value.length - start));
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        int indexAt = out.size();
+        index.putInt(indexAt);
+        out.write(index.array(), 0, index.capacity());
+        byte[] encoded = out.toByteArray();
+        ByteBuffer.wrap(encoded).put((byte) (codec.marker | FRAMED)).putInt(value.length).putInt(FRAME_SIZE).putInt(indexAt);
+        return encoded;
+    }
+
+    /**
+     * Decodes a value.
+     *
+     * @param encoded The encoded value, or null.
+     * @return The value, or null if the encoded value was null.
+     */
+    static byte[] decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        if (codecOf(encoded) == NONE) {
+            return Arrays.copyOfRange(encoded, RAW_HEADER, encoded.length);
+        }
+        ByteBuffer header = ByteBuffer.wrap(encoded);
+        byte marker = header.get();
+        byte[] value = new byte[header.getInt()];
+        if (!isFramed(marker)) {
+            inflate(encoded, HEADER, encoded.length - HEADER, value, 0, value.length);
+            return value;
+        }
+        int frameSize = header.getInt();
+        int indexAt = header.getInt();
+        ByteBuffer index = ByteBuffer.wrap(encoded, indexAt, encoded.length - indexAt);
+        int start = index.getInt();
+        for (int position = 0; position < value.length; position += frameSize) {
+            int end = index.getInt();
+            inflate(encoded, start, end - start, value, position, Math.min(frameSize, value.length - position));
+            start = end;
+        }
+        return value;
+    }
+
+    /**
+     * Reads part of a value straight from where it is held, decoding only
+     * what is needed. For a value split into frames, that is the frames the
+     * part falls in, so the memory used is bounded by the frame size rather
+     * than the size of the value.
+     *
+     * @param source Reads parts of the encoded value.
+     * @param offset The position in the value to start reading from.
+     * @param length The most bytes to read.
+     * @return The bytes read, fewer than asked for at the end of the value, or
+     * null if the value is not held.
+     */
+    static byte[] readRange(RangeSource source, long offset, int length) {
+        byte[] head = source.read(0, FRAMED_HEADER);
+        if (head == null) {
+            return null;
+        } else if (codecOf(head) == NONE) {
+            return source.read(RAW_HEADER + offset, length);
+        } else if (!isFramed(head[0])) { //Small enough to be decoded whole.
+            byte[] value = decode(source.read(0, Integer.MAX_VALUE));
+            if (value == null) {
+                return null;
+            }
+            int start = (int) Math.min(offset, value.length);
+            return Arrays.copyOfRange(value, start, (int) Math.min(value.length, (long) start + length));
+        }
+        ByteBuffer header = ByteBuffer.wrap(head, 1, FRAMED_HEADER - 1);
+        int size = header.getInt();
+        int frameSize = header.getInt();
+        int indexAt = header.getInt();
+        int start = (int) Math.min(offset, size);
+        byte[] part = new byte[Math.min(size - start, length)];
+        if (part.length == 0) {
+            return part;
+        }
+        int first = start / frameSize;
+        int last = (start + part.length - 1) / frameSize;
+        byte[] positions = source.read(indexAt + (long) first * Integer.BYTES, (last - first + 2) * Integer.BYTES);
+        if (positions == null) {
+            return null; //Removed since the header was read.
+        }
+        ByteBuffer index = ByteBuffer.wrap(positions);
+        byte[] frame = new byte[frameSize];
+        int frameStart = index.getInt();
+        for (int i = first; i <= last; i++) {
+            int frameEnd = index.getInt();
+            byte[] compressed = source.read(frameStart, frameEnd - frameStart);
+            if (compressed == null) {
+                return null;
+            }
+            int frameLength = (int) Math.min(frameSize, size - (long) i * frameSize);
+            inflate(compressed, 0, compressed.length, frame, 0, frameLength);
+            long frameOffset = (long) i * frameSize;
+            int from = (int) Math.max(0, start - frameOffset);
+            int to = (int) Math.min(frameLength, start + part.length - frameOffset);
+            System.arraycopy(frame, from, part, (int) (frameOffset + from - start), to - from);
+            frameStart = frameEnd;
+        }
+        return part;
+    }
+
+    /**
+     * Decodes compressed bytes into exactly the given space.
+     *
+     * @param in The compressed bytes.
+     * @param inOffset Where they start.
+     * @param inLength How many there are.
+     * @param out Where to decode them to.
+     * @param outOffset Where the decoded bytes start.
+     * @param outLength How many decoded bytes there are to be.
+     */
+    private static void inflate(byte[] in, int inOffset, int inLength, byte[] out, int outOffset, int outLength) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(in, inOffset, inLength);
+            int length = 0;
+            while (length < outLength && !inflater.finished()) {
+                int read = inflater.inflate(out, outOffset + length, outLength - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != outLength) {
+                throw new DataFormatException("Value ended after " + length + " of " + outLength + " bytes.");
+            }
+        } catch (DataFormatException ex) {
+            throw new UncheckedIOException(new IOException("Could not decode value.", ex));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decodes every value of a batch in place.
+     *
+     * @param result The batch, holding encoded values.
+     * @return The batch, now holding values.
+     */
+    static BatchResult decode(BatchResult result) {
+        for (Entry<String, byte[]> value : result.getValues().entrySet()) {
+            value.setValue(decode(value.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the codec an encoded value was made with.
+     *
+     * @param encoded The encoded value.
+     * @return The codec.
+     */
+    static ValueCodec codecOf(byte[] encoded) {
+        for (ValueCodec codec : values()) {
+            if (codec.marker == (encoded[0] & ~FRAMED)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown value codec " + encoded[0]);
+    }
+
+    /**
+     * Gets the first byte of values encoded with this codec.
+     *
+     * @return The marker byte.
+     */
+    byte marker() {
+        return this.marker;
+    }
+
+    /**
+     * Checks if an encoded value is split into frames.
+     *
+     * @param marker The first byte of the encoded value.
+     * @return A boolean representing if it is.
+     */
+    static boolean isFramed(byte marker) {
+        return (marker & FRAMED) != 0;
+    }
+
+    /**
+     * Encodes a value a part at a time into a file, front to back, so a value
+     * arriving in chunks is compressed as it arrives rather than held whole.
+     * Unlike encode(), compressed values are always split into frames, and
+     * the codec is used whatever the size of the value, as it is not known
+     * until the end.
+     */
+    static class Writer {
+
+        private Deflater deflater;                  //Compresses the current frame, or null if the codec does not.
+        private FileChannel channel;                //The file the encoded value is written to.
+        private long length;                        //Bytes written to the file so far.
+        private long size;                          //Bytes of the value taken so far.
+        private int inFrame;                        //Bytes of the value taken into the current frame.
+        private ByteArrayOutputStream index = new ByteArrayOutputStream(); //Position of each frame written, as ints.
+        private byte[] buffer = new byte[64 * 1024]; //Holds compressed bytes on their way to the file.
+
+        /**
+         * Starts encoding a value, writing its header.
+         *
+         * @param codec The codec to encode with.
+         * @param channel The empty file to write the encoded value to.
+         */
+        Writer(ValueCodec codec, FileChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(codec == NONE ? RAW_HEADER : FRAMED_HEADER);
+            if (codec == NONE) {
+                header.put(codec.marker);
+            } else {
+                this.deflater = new Deflater(codec.level, true);
+                header.put((byte) (codec.marker | FRAMED)).putInt(0).putInt(FRAME_SIZE).putInt(0); //The length of the value and position of the index, filled in by finish().
+            }
+            header.flip();
+            this.write(header);
+        }
+
+        /**
+         * Encodes the next part of the value.
+         *
+         * @param part The bytes to add to the end of the value.
+         */
+        void write(byte[] part) throws IOException {
+            this.size += part.length;
+            if (this.deflater == null) {
+                this.write(ByteBuffer.wrap(part));
+                return;
+            }
+            for (int offset = 0; offset < part.length; ) {
+                if (this.inFrame == 0) {
+                    this.startFrame();
+                }
+                int taken = Math.min(FRAME_SIZE - this.inFrame, part.length - offset);
+                this.deflater.setInput(part, offset, taken);
+                while (!this.deflater.needsInput()) {
+                    this.write(ByteBuffer.wrap(this.buffer, 0, this.deflater.deflate(this.buffer)));
+                }
+                offset += taken;
+                this.inFrame += taken;
+                if (this.inFrame == FRAME_SIZE) {
+                    this.endFrame();
+                }
+            }
+        }
+
+        private void startFrame() {
+            this.index.write((int) (this.length >>> 24));
+            this.index.write((int) (this.length >>> 16));
+            this.index.write((int) (this.length >>> 8));
+            this.index.write((int) this.length);
+        }
+
+        private void endFrame() throws IOException {
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                this.write(ByteBuffer.wrap(this.buffer, 0, this.deflater.deflate(this.buffer)));
+            }
+            this.deflater.reset();
+            this.inFrame = 0;
+        }
+
+        /**
+         * Writes what is left of the encoded value and its frame index, and
+         * fills in the header, then frees the encoder.
+         */
+        void finish() throws IOException {
+            if (this.deflater == null) {
+                return;
+            }
+            if (this.inFrame > 0) {
+                this.endFrame();
+            }
+            this.end();
+            long indexAt = this.length;
+            this.startFrame(); //The end of the last frame.
+            this.write(ByteBuffer.wrap(this.index.toByteArray()));
+            if (this.length > Integer.MAX_VALUE) {
+                return; //Refused by the caller, as too large to hold.
+            }
+            ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES).putInt((int) this.size).putInt(FRAME_SIZE).putInt((int) indexAt);
+            header.flip();
+            while (header.hasRemaining()) {
+                this.channel.write(header, 1 + header.position());
+            }
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                this.length += this.channel.write(bytes, this.length);
+            }
+        }
+
+        long length() {
+            return this.length;
+        }
+
+        long size() {
+            return this.size;
+        }
+
+        /**
+         * Frees the encoder. Called once the writer is no longer needed.
+         */
+        void end() {
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Reads parts of an encoded value from where it is held.
+     */
+    @FunctionalInterface
+    interface RangeSource {
+
+        /**
+         * @param position Where in the encoded value to start reading.
+         * @param length The most bytes to read.
+         * @return The bytes read, fewer than asked for at the end of the
+         * value, or null if the value is not held.
+         */
+        byte[] read(long position, int length);
+    }
+}
@@ -0,0 +1,36 @@
+package chorddht;
+
+import java.io.Serializable;
+
+/**
+ * A value along with its version, as answered to a node checking whether a
+ * copy it cached is still current. The value is left out when the version
+ * asked about is still current, so the check costs only a few bytes.
+ *
+ * @author Dominic
+ */
+public class VersionedValue implements Serializable {
+
+    private byte[] value;       //The current value. Null if unchanged or not stored.
+    private long version;       //The current version. 0 if not stored.
+
+    /**
+     * Creates the answer to a version check.
+     *
+     * @param value The current value, or null if it is unchanged or not
+     * stored.
+     * @param version The current version, or 0 if the value is not stored.
+     */
+    VersionedValue(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    byte[] getValue() {
+        return this.value;
+    }
+
+    long getVersion() {
+        return this.version;
+    }
+}
@@ -11,9 +11,14 @@ import java.rmi.RemoteException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -36,14 +41,29 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
- * A worker that polls a passed Queue and conducts processing.
+ * A worker that polls a passed Queue and conducts processing. The worker may
+ * be run by many threads at once, each a slot taking and processing its own
+ * tasks. At most PROCESSORS tasks are processed at once, and each task type
+ * can be limited further with chorddht.workerLimit.TYPE, such as
+ * chorddht.workerLimit.ENCRYPT.
  *
  * @author Dominic
  */
 public class Worker implements Runnable {
-    
+
+    static final int PROCESSORS = Runtime.getRuntime().availableProcessors(); //Most tasks processed at once.
+    static final int BATCH_SIZE = Math.max(1, Integer.getInteger("chorddht.batchSize", 16)); //Most tasks leased at once.
+    static final int BATCH_WAIT = Integer.getInteger("chorddht.batchWait", 1000); //In milliseconds. Most time waited for a task in one call.
+    static final int HEARTBEAT_IDLE = 1000;     //In milliseconds. Time between checks for leases to renew while none are held.
+
     private ChordNode node;                     //A node this worker can use to get and store files.
-    private WorkerManagement managementServer;  //A remote reference to the management server.
+    private RoutingCache routes;                //Owners of keys seen before, so they can be reached in one hop.
+    private ContentStore content;               //Stores results once by their contents, and remembers results made for each resource.
+    private volatile WorkerManagement managementServer; //A remote reference to the management server.
+    private Semaphore processors = new Semaphore(PROCESSORS); //Taken while processing a task.
+    private EnumMap<TaskType, Semaphore> limits = new EnumMap<>(TaskType.class); //Taken while a task of the type is handled.
+    private ConcurrentHashMap<Long, TaskLease> held = new ConcurrentHashMap<>(); //Leases being processed by the slots, by id.
+    private Set<Long> lost = ConcurrentHashMap.newKeySet();                     //Ids of held leases that ran out before being renewed.
 
     /**
      * Creates a generic worker to handle Task requests from the given queue.
@@ -52,7 +72,15 @@ public class Worker implements Runnable {
      */
     public Worker(ChordNode node) {
         this.node = node;
+        this.routes = new RoutingCache(node);
+        this.content = new ContentStore(this.routes);
+        for (TaskType type : TaskType.values()) {
+            this.limits.put(type, new Semaphore(Math.max(1, Integer.getInteger("chorddht.workerLimit." + type.name(), Integer.MAX_VALUE))));
+        }
         this.managementServer = this.getManagementServer();
+        Thread heartbeat = new Thread(this::renewLeases, "worker-lease-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
     }
 
     /**
@@ -60,29 +88,22 @@ public class Worker implements Runnable {
      */
     @Override
     public void run() {
-        Task task;
+        TaskLease lease;
         while (true) {
             try {
-                task = (Task) this.getManagementServer().take(); //Blocks until task is put in queue.
-                switch (task.getType()) {
-                    case WORD_METRICS:
-                        wordMetricsTask(task);
-                        break;
-                    case ENCRYPT:
-                        encrypt(task);
-                        break;
-                    case HASH:
-                        hash(task);
-                        break;
-                    case UNDEFINED:
-                        break;
+                WorkerManagement server = this.getManagementServer();
+                if (server == null) {
+                    throw new RemoteException("No management server found.");
+                }
+                lease = server.takeBatch(this.node.getHostName(), BATCH_SIZE, BATCH_WAIT); //Prefers tasks whose resource this process holds.
+                if (lease != null) {
+                    this.processBatch(server, lease);
                 }
-                this.getManagementServer().notifyReady(task);
-                log("Processed task: " + task.getFileName());
             } catch (InterruptedException ex) {
                 Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
             } catch (RemoteException ex) {
                 log("Remote exception occurred while attempting to process tasks. Management server may be down.");
+                this.managementServer = null; //Looked up again.
                 //Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, "Could not complete processing of a task due to remote exception.", ex);
                 try {
                     Thread.sleep(1000); //Sleep to avoid constantly repolling.
@@ -95,19 +116,112 @@ public class Worker implements Runnable {
     }
 
     /**
-     * Gets the management server from RMI, with some fault tolerance
-     * mechanisms.
+     * Processes the tasks of a lease, while the heartbeat thread renews it, then hands back the tasks processed in
+     * one call. Tasks that could not be processed are queued again by the management server. If the lease is lost,
+     * its tasks have been handed to another worker, so the rest are left to it.
      *
-     * @return The remote interface object of the management server.
+     * @param server The management server the lease is held from.
+     * @param lease The lease.
      */
-    private WorkerManagement getManagementServer() {
-        boolean alive = false;
+    private void processBatch(WorkerManagement server, TaskLease lease) throws RemoteException, InterruptedException {
+        ArrayList<Task> done = new ArrayList<>();
+        this.held.put(lease.getId(), lease);
+        try {
+            for (Task task : lease.getTasks()) {
+                if (this.lost.contains(lease.getId())) {
+                    log("Lease " + lease.getId() + " ran out, leaving its remaining tasks to other workers.");
+                    break;
+                }
+                try {
+                    if (task.getType() != TaskType.UNDEFINED) {
+                        this.process(task);
+                    }
+                    done.add(task);
+                    log("Processed task: " + task.getFileName());
+                } catch (RemoteException ex) {
+                    log("Unable to process task " + task.getFileName() + ", returning it to the queue.");
+                }
+            }
+        } finally {
+            this.held.remove(lease.getId());
+            this.lost.remove(lease.getId());
+        }
+        server.completeBatch(lease.getId(), done);
+    }
+
+    /**
+     * Renews the leases held by the slots of this worker every third of their duration, so they only run out if
+     * this process stops. Runs on its own thread.
+     */
+    private void renewLeases() {
+        while (true) {
+            long interval = HEARTBEAT_IDLE;
+            WorkerManagement server = this.managementServer;
+            for (TaskLease lease : this.held.values()) {
+                interval = Math.min(interval, Math.max(1, lease.getDuration() / 3));
+                try {
+                    if (server != null && !server.renewLease(lease.getId())) {
+                        this.lost.add(lease.getId());
+                    }
+                } catch (RemoteException ex) {
+                    log("Unable to renew lease " + lease.getId() + ".");
+                }
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
 
-        if (this.managementServer != null) { //Checks if first initializing the variable
-            alive = this.isServerAlive();
+    /**
+     * Processes a task once its type is under its limit. Only the processing itself waits for a processor, so slots
+     * blocked fetching or storing bytes leave the processors to other slots.
+     *
+     * @param task The task to process.
+     */
+    private void process(Task task) throws RemoteException, InterruptedException {
+        Semaphore limit = this.limits.get(task.getType());
+        limit.acquire();
+        try {
+            byte[] request = this.getTaskBytes(task);
+            if (request == null) {
+                throw new RemoteException("Missing " + task.requestName() + ".");
+            }
+            byte[] results;
+            this.processors.acquire();
+            try {
+                switch (task.getType()) {
+                    case WORD_METRICS:
+                        results = this.wordMetrics(request);
+                        break;
+                    case ENCRYPT:
+                        results = this.encrypt(request);
+                        break;
+                    default:
+                        results = this.hash(request);
+                        break;
+                }
+            } finally {
+                this.processors.release();
+            }
+            this.storeResults(task, results);
+        } finally {
+            limit.release();
         }
-        if (alive) {
-            return this.managementServer;
+    }
+
+    /**
+     * Gets the management server from RMI, looking it up again once a call to
+     * it has failed.
+     *
+     * @return The remote interface object of the management server.
+     */
+    private WorkerManagement getManagementServer() {
+        WorkerManagement server = this.managementServer;
+        if (server != null) { //Checked by the lease calls made with it, rather than pinged each time.
+            return server;
         } else {
             try {
                 this.managementServer = (WorkerManagement) Naming.lookup(RMI_SERVER_NAME + "WorkerManagement");
@@ -142,11 +256,10 @@ public class Worker implements Runnable {
     /**
      * Conducts the "Word Metric" TaskType job.
      *
-     * @param task The task with associated information to conduct the
-     * processing.
+     * @param fileBytes The bytes of the resource to process.
+     * @return The bytes of the results.
      */
-    private void wordMetricsTask(Task task) throws RemoteException {
-        byte[] fileBytes = this.getTaskBytes(task);
+    private byte[] wordMetrics(byte[] fileBytes) {
         //Get metrics
         String[] words = getWords(new String(fileBytes));
         int averageWordLength = this.averageStringLength(words);
@@ -182,8 +295,8 @@ public class Worker implements Runnable {
             Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, "Transformer configuration failed.", ex);
         } catch (TransformerException ex) {
             Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, "Transformer threw an exception.", ex);
-        } //Store the result.
-        this.node.put(task.resultName(), output.toByteArray());
+        }
+        return output.toByteArray();
     }
 
     /**
@@ -237,12 +350,27 @@ public class Worker implements Runnable {
     }
 
     /**
-     * Gets the unprocessed bytes of the associated task from DHT.
+     * Stores the results of a task, and remembers them for the resource of the task so the same resource is not
+     * processed again with the same task type.
+     * @param task The task processed.
+     * @param results The bytes that resulted from the task.
+     */
+    private void storeResults(Task task, byte[] results) throws RemoteException {
+        String resultDigest = this.content.put(task.resultName(), results);
+        String requestDigest = this.content.digestOf(task.requestName());
+        if (requestDigest != null) { //Null if the request was released meanwhile, or not stored by its contents.
+            this.content.cacheResult(requestDigest, task.getType(), resultDigest);
+        }
+    }
+
+    /**
+     * Gets the unprocessed bytes of the associated task from DHT. Tasks are dispatched to the hosts holding their
+     * resource, as owner or replica, so it is read from this process first.
      * @param t The task to get the bytes of.
      * @return The bytes of the unprocessed task.
      */
     public byte[] getTaskBytes(Task t) throws RemoteException{
-        return this.node.get(t.requestName());
+        return this.content.getNear(t.requestName(), this.node);
     }
 
     /**
@@ -262,13 +390,13 @@ public class Worker implements Runnable {
     /**
      * Encrypts data within a Task using the DES algorithm.
      *
-     * @param task The task to run the encryption job on.
+     * @param toEncrypt The bytes of the resource to encrypt.
+     * @return The bytes of the results.
      */
-    private void encrypt(Task task) throws RemoteException {
+    private byte[] encrypt(byte[] toEncrypt) {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
-            //Get and encrypt the bits
-            byte[] toEncrypt = this.getTaskBytes(task);
+            //Encrypt the bits
             SecretKey key = KeyGenerator.getInstance("DES").generateKey();
             Cipher des = Cipher.getInstance("DES");
             des.init(Cipher.ENCRYPT_MODE, key);
@@ -301,8 +429,6 @@ public class Worker implements Runnable {
             log("No such cipher detected.");
         } catch (InvalidKeyException ex) {
             log("Invalid initialization of cipher.");
-        } catch (RemoteException ex) {
-            log("Failed to get bytes from DHT.");
         } catch (IllegalBlockSizeException | BadPaddingException ex) {
             log("Failed to encrypt bytes.");
         } catch (ParserConfigurationException ex) {
@@ -310,19 +436,19 @@ public class Worker implements Runnable {
         } catch (TransformerException ex) {
             log("Failed to make XML document into the ByteOutputStream.");
         }
-        this.node.put(task.resultName(), output.toByteArray());
+        return output.toByteArray();
     }
 
     /**
      * Conducts the hashing job on a given task.
      *
-     * @param task The task to conducting the hashing job on.
+     * @param toHash The bytes of the resource to hash.
+     * @return The bytes of the results.
      */
-    private void hash(Task task) throws RemoteException {
+    private byte[] hash(byte[] toHash) {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
             //Hash the bytes
-            byte[] toHash = this.getTaskBytes(task);
             MessageDigest md5 = MessageDigest.getInstance("MD5");
             //Base 64 encode for storage
             byte[] hashedBytes = md5.digest(toHash);
@@ -351,14 +477,12 @@ public class Worker implements Runnable {
             transformer.transform(new DOMSource(xml), new StreamResult(output));
         } catch (NoSuchAlgorithmException ex) {
             log("Invalid algorithm provided for message digest object.");
-        } catch (RemoteException ex) {
-            log("Exception thrown during retrieval of bytes to hash.");
         } catch (ParserConfigurationException ex) {
             log("Failed to create XML document object.");
         } catch (TransformerException ex) {
             log("Failed to make XML document into the ByteOutputStream.");
         }
-        this.node.put(task.resultName(), output.toByteArray());
+        return output.toByteArray();
     }
 
 }
@@ -2,6 +2,7 @@ package chorddht;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * The remote interface used by the worker to communicate with the management
@@ -16,4 +17,12 @@ public interface WorkerManagement extends Remote {
     public boolean ping() throws RemoteException;
     
     public Task take() throws RemoteException, InterruptedException;
+
+    public Task take(String hostName) throws RemoteException, InterruptedException;
+
+    public TaskLease takeBatch(String hostName, int max, long waitMillis) throws RemoteException, InterruptedException;
+
+    public boolean renewLease(long leaseId) throws RemoteException;
+
+    public void completeBatch(long leaseId, List<Task> done) throws RemoteException;
 }
@@ -3,7 +3,7 @@ package chorddht;
 import static chorddht.Utility.log;
 import java.rmi.RemoteException;
 import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
 
 /**
  * A management class that handles the interface between the worker threads in
@@ -14,7 +14,7 @@ import java.util.concurrent.BlockingQueue;
 public class WorkerManager implements WorkerManagement {
 
     private HashMap<Task, Boolean> files; //Reference to a management servers files directory.
-    private BlockingQueue taskQueue;      //The list of tasks to process.
+    private TaskDispatcher taskQueue;     //The list of tasks to process.
 
     /**
      * Creates an instance of the WorkerManager using the passed files to
@@ -24,7 +24,7 @@ public class WorkerManager implements WorkerManagement {
      * interface with.
      * @param taskQueue The task queue from the management server.
      */
-    public WorkerManager(HashMap<Task, Boolean> files, BlockingQueue taskQueue) {
+    public WorkerManager(HashMap<Task, Boolean> files, TaskDispatcher taskQueue) {
         this.files = files;
         this.taskQueue = taskQueue;
     }
@@ -39,8 +39,11 @@ public class WorkerManager implements WorkerManagement {
     @Override
     public void notifyReady(Task task) throws RemoteException {
         if (task.getType() != TaskType.UNDEFINED) {
-            this.files.put(task, true);
+            synchronized (this.files) { //Many worker slots may finish at once.
+                this.files.put(task, true);
+            }
         }
+        this.taskQueue.finish(task);
         log("Processing finished on task " + task.getFileName());
     }
 
@@ -57,6 +60,62 @@ public class WorkerManager implements WorkerManagement {
 
     @Override
     public Task take() throws RemoteException, InterruptedException {
-        return (Task) this.taskQueue.take();
+        return this.taskQueue.take(null);
+    }
+
+    /**
+     * Takes the next task for a worker, preferring tasks whose resource is
+     * held by the worker's host.
+     *
+     * @param hostName The name of the host the worker runs on.
+     * @return The task to process.
+     */
+    @Override
+    public Task take(String hostName) throws RemoteException, InterruptedException {
+        return this.taskQueue.take(hostName);
+    }
+
+    /**
+     * Leases a batch of tasks to a worker, so it takes many tasks in one call.
+     *
+     * @param hostName The name of the host the worker runs on.
+     * @param max Most tasks to lease.
+     * @param waitMillis Most time to wait for a first task, in milliseconds.
+     * @return The lease, or null if no task was queued in time.
+     */
+    @Override
+    public TaskLease takeBatch(String hostName, int max, long waitMillis) throws RemoteException, InterruptedException {
+        return this.taskQueue.takeBatch(hostName, max, waitMillis);
+    }
+
+    /**
+     * Extends a lease held by a worker still processing its tasks.
+     *
+     * @param leaseId The id of the lease.
+     * @return true if the lease is still held.
+     */
+    @Override
+    public boolean renewLease(long leaseId) throws RemoteException {
+        return this.taskQueue.renew(leaseId);
+    }
+
+    /**
+     * Marks the finished tasks of a lease done in one call, and ends the
+     * lease.
+     *
+     * @param leaseId The id of the lease.
+     * @param done The tasks of the lease that were processed.
+     */
+    @Override
+    public void completeBatch(long leaseId, List<Task> done) throws RemoteException {
+        synchronized (this.files) {
+            for (Task task : done) {
+                if (task.getType() != TaskType.UNDEFINED) {
+                    this.files.put(task, true);
+                }
+            }
+        }
+        this.taskQueue.complete(leaseId, done);
+        log("Processing finished on " + done.size() + " tasks");
     }
 }
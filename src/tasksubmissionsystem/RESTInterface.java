@@ -15,4 +15,14 @@ public interface RESTInterface extends Remote {
     public String fileList() throws RemoteException;
 
     public byte[] getResults(String fileName, String taskType) throws RemoteException;
+
+    public long openTask(String fileName, String type) throws RemoteException;
+
+    public void appendTask(long uploadId, byte[] chunk) throws RemoteException;
+
+    public void commitTask(long uploadId) throws RemoteException;
+
+    public String resolveResults(String fileName, String taskType) throws RemoteException;
+
+    public byte[] getResultsRange(String resultsKey, long offset, int length) throws RemoteException;
 }